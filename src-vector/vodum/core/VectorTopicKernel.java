@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Topic kernel processing the topics in the SIMD lanes of the processor
+ * with the Vector API (incubator module jdk.incubator.vector, which must be
+ * added at compile and run time with --add-modules jdk.incubator.vector).
+ * This class is in its own source directory, compiled against the main
+ * sources only when the module is available.
+ * The logs and exponentials are polynomial approximations, whose relative
+ * error is below 1e-13; the remaining topics that do not fill a vector are
+ * processed by the scalar code.
+ */
+public class VectorTopicKernel extends TopicKernel {
+	
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	// species of the int counts, with as many lanes as SPECIES
+	private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+	private static final int LANES = SPECIES.length();
+	
+	private static final double LN2 = 0.6931471805599453;
+	private static final double LN2_HI = 0.693145751953125; // high bits of LN2, exact product with small integers
+	private static final double LN2_LO = 1.4286068203094173e-6; // LN2 - LN2_HI
+	private static final double LOG2E = 1.4426950408889634;
+	private static final double SQRT2 = 1.4142135623730951;
+	private static final double ROUND = 6755399441055744.0; // 1.5 * 2^52, adding and subtracting it rounds to the nearest integer
+	private static final long MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+	private static final long ONE_BITS = 0x3FF0000000000000L; // bits of 1.0
+	
+	private final int bound; // number of topics processed by vectors
+	
+	public VectorTopicKernel(int T) {
+		super(T);
+		bound = SPECIES.loopBound(T);
+	}
+	
+	/**
+	 * @return true if the processor has SIMD registers of at least 4 doubles
+	 */
+	public static boolean isSupported() {
+		return LANES >= 4;
+	}
+	
+	public String getName() {
+		return "vector (" + LANES + " lanes)";
+	}
+	
+	/**
+	 * @return the vector of the logs of the lanes of x, -infinity for the
+	 * lanes that are 0
+	 */
+	static DoubleVector log(DoubleVector x) {
+		// x = 2^e * m, with m in [1, 2) and then in [sqrt(1/2), sqrt(2))
+		LongVector bits = x.reinterpretAsLongs();
+		LongVector e = bits.lanewise(VectorOperators.LSHR, 52).sub(1023);
+		DoubleVector m = bits.and(MANTISSA_MASK).or(ONE_BITS).reinterpretAsDoubles();
+		VectorMask<Double> large = m.compare(VectorOperators.GT, SQRT2);
+		m = m.blend(m.mul(0.5), large);
+		DoubleVector ed = ((DoubleVector) e.convert(VectorOperators.L2D, 0)).add(1.0, large);
+		
+		// log(m) = 2 atanh(s) = 2 (s + s^3/3 + s^5/5 + ...), with |s| <= 0.172
+		DoubleVector s = m.sub(1.0).div(m.add(1.0));
+		DoubleVector s2 = s.mul(s);
+		DoubleVector p = s2.fma(1.0/17, 1.0/15);
+		p = p.mul(s2).add(1.0/13);
+		p = p.mul(s2).add(1.0/11);
+		p = p.mul(s2).add(1.0/9);
+		p = p.mul(s2).add(1.0/7);
+		p = p.mul(s2).add(1.0/5);
+		p = p.mul(s2).add(1.0/3);
+		p = p.mul(s2).add(1.0);
+		
+		DoubleVector result = ed.mul(LN2).add(s.mul(p).mul(2.0));
+		return result.blend(Double.NEGATIVE_INFINITY, x.compare(VectorOperators.LE, 0.0));
+	}
+	
+	/**
+	 * @return the vector of the exponentials of the lanes of x, which must
+	 * not be greater than 0 (0 for the lanes below -708)
+	 */
+	static DoubleVector exp(DoubleVector x) {
+		// exp(x) = 2^k exp(r), with k integer and |r| <= ln(2)/2
+		VectorMask<Double> underflow = x.compare(VectorOperators.LT, -708.0);
+		x = x.max(-708.0);
+		DoubleVector k = x.mul(LOG2E).add(ROUND).sub(ROUND);
+		DoubleVector r = x.sub(k.mul(LN2_HI)).sub(k.mul(LN2_LO));
+		
+		// Taylor series up to r^11/11!
+		DoubleVector p = r.fma(1.0/39916800, 1.0/3628800);
+		p = p.mul(r).add(1.0/362880);
+		p = p.mul(r).add(1.0/40320);
+		p = p.mul(r).add(1.0/5040);
+		p = p.mul(r).add(1.0/720);
+		p = p.mul(r).add(1.0/120);
+		p = p.mul(r).add(1.0/24);
+		p = p.mul(r).add(1.0/6);
+		p = p.mul(r).add(0.5);
+		p = p.mul(r).add(1.0);
+		p = p.mul(r).add(1.0);
+		
+		LongVector kl = (LongVector) k.convert(VectorOperators.D2L, 0);
+		DoubleVector twoK = kl.add(1023).lanewise(VectorOperators.LSHL, 52).reinterpretAsDoubles();
+		
+		return p.mul(twoK).blend(0.0, underflow);
+	}
+	
+	/**
+	 * Flush the lanes of the product that left [MIN_PRODUCT, MAX_PRODUCT]
+	 * into the log accumulator of the topics from j.
+	 * @return the product to keep accumulating
+	 */
+	private DoubleVector flush(DoubleVector p, int j) {
+		VectorMask<Double> out = p.compare(VectorOperators.GT, MAX_PRODUCT).or(p.compare(VectorOperators.LT, MIN_PRODUCT));
+		if (out.anyTrue()) {
+			DoubleVector acc = DoubleVector.fromArray(SPECIES, logAcc, j);
+			acc.add(log(p), out).intoArray(logAcc, j);
+			p = p.blend(1.0, out);
+		}
+		
+		return p;
+	}
+	
+	private static DoubleVector counts(int[] counts, int start, double offset) {
+		return ((DoubleVector) IntVector.fromArray(INT_SPECIES, counts, start).convertShape(VectorOperators.I2D, SPECIES, 0)).add(offset);
+	}
+	
+	public void multiplyRising(int[] counts, int start, double offset, int count) {
+		for (int j = 0; j < bound; j += LANES) {
+			DoubleVector n = counts(counts, start + j, offset);
+			DoubleVector p = DoubleVector.fromArray(SPECIES, prod, j);
+			for (int t = 0; t < count; t++) {
+				p = flush(p.mul(n.add(t)), j);
+			}
+			p.intoArray(prod, j);
+		}
+		multiplyRising(counts, start, offset, count, bound);
+	}
+	
+	public void divideRising(int[] counts, int start, double offset, int count) {
+		for (int j = 0; j < bound; j += LANES) {
+			DoubleVector n = counts(counts, start + j, offset);
+			DoubleVector p = DoubleVector.fromArray(SPECIES, prod, j);
+			for (int t = 0; t < count; t++) {
+				p = flush(p.div(n.add(t)), j);
+			}
+			p.intoArray(prod, j);
+		}
+		divideRising(counts, start, offset, count, bound);
+	}
+	
+	public void multiply(double[] factors) {
+		for (int j = 0; j < bound; j += LANES) {
+			DoubleVector p = DoubleVector.fromArray(SPECIES, prod, j).mul(DoubleVector.fromArray(SPECIES, factors, j));
+			flush(p, j).intoArray(prod, j);
+		}
+		multiply(factors, bound);
+	}
+	
+	public void log(double[] dest) {
+		for (int j = 0; j < bound; j += LANES) {
+			DoubleVector p = DoubleVector.fromArray(SPECIES, prod, j);
+			DoubleVector.fromArray(SPECIES, logAcc, j).add(log(p)).intoArray(dest, j);
+		}
+		log(dest, bound);
+	}
+	
+	private double max(double[] logP) {
+		DoubleVector maxV = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		for (int j = 0; j < bound; j += LANES) {
+			maxV = maxV.max(DoubleVector.fromArray(SPECIES, logP, j));
+		}
+		
+		double max = maxV.reduceLanes(VectorOperators.MAX);
+		for (int j = bound; j < T; j++) {
+			max = Math.max(max, logP[j]);
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * Write exp(logP[j] - max) in weights[j].
+	 * @return the sum of the weights
+	 */
+	private double exp(double[] logP, double max) {
+		DoubleVector sumV = DoubleVector.zero(SPECIES);
+		for (int j = 0; j < bound; j += LANES) {
+			DoubleVector w = exp(DoubleVector.fromArray(SPECIES, logP, j).sub(max));
+			w.intoArray(weights, j);
+			sumV = sumV.add(w);
+		}
+		
+		double sum = sumV.reduceLanes(VectorOperators.ADD);
+		for (int j = bound; j < T; j++) {
+			weights[j] = Math.exp(logP[j] - max);
+			sum += weights[j];
+		}
+		
+		return sum;
+	}
+	
+	public int sample(double[] logP, double u) {
+		double total = exp(logP, max(logP));
+		
+		// find the vector of the sampled topic from the sums of the
+		// vectors, instead of cumulating the weights one by one
+		double target = u * total;
+		double sum = 0;
+		for (int j = 0; j < bound; j += LANES) {
+			double vectorSum = DoubleVector.fromArray(SPECIES, weights, j).reduceLanes(VectorOperators.ADD);
+			if (sum + vectorSum > target) {
+				return pick(u, total, j, sum);
+			}
+			sum += vectorSum;
+		}
+		
+		return pick(u, total, bound, sum);
+	}
+	
+	public double logSumExp(double[] logP) {
+		double max = max(logP);
+		return max + Math.log(exp(logP, max));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import vodum.utils.Utils;
+
+/**
+ * Corpus stored on disk in chunks of consecutive documents, for corpora
+ * that do not fit in memory (out-of-core training). The chunks are written
+ * in a directory next to the data file (with the suffix .chunks), and the
+ * topic and viewpoint assignments of every chain are stored along with
+ * them, so that only the chunk being sampled (and the next one, read ahead)
+ * is held in memory. The chunks are built again at every run.
+ */
+public class ChunkedCorpus {
+	
+	public static final String suffix = ".chunks";
+	
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	private final Path dir;
+	private final long chunkBytes;
+	private int nchunks;
+	private int[] chunkDocStart = new int[17]; // chunkDocStart[c]: index of the first document of chunk c, size nchunks + 1
+	
+	/**
+	 * Create the directory of the chunks of a data file, and remove the
+	 * chunks of a previous run.
+	 * @param filename data file
+	 * @param chunkBytes number of bytes of the data file parsed into a chunk
+	 */
+	public ChunkedCorpus(String filename, long chunkBytes) throws IOException {
+		this.dir = Paths.get(filename + suffix);
+		this.chunkBytes = chunkBytes;
+		
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.bin")) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of bytes of the data file parsed into a chunk
+	 */
+	public long getChunkBytes() {
+		return chunkBytes;
+	}
+	
+	/**
+	 * @return the number of chunks
+	 */
+	public int getChunkCount() {
+		return nchunks;
+	}
+	
+	/**
+	 * @return the index in the dataset of the first document of chunk c
+	 */
+	public int getDocStart(int c) {
+		return chunkDocStart[c];
+	}
+	
+	/**
+	 * Write the corpus of the documents following those of the previous
+	 * chunks as a new chunk.
+	 */
+	public void addChunk(Corpus corpus) throws IOException {
+		CorpusCache.writeCorpus(corpusFile(nchunks), corpus);
+		
+		if (nchunks + 2 > chunkDocStart.length) {
+			chunkDocStart = Arrays.copyOf(chunkDocStart, 2*chunkDocStart.length);
+		}
+		chunkDocStart[nchunks + 1] = chunkDocStart[nchunks] + corpus.D;
+		nchunks++;
+	}
+	
+	/**
+	 * Read the corpus of chunk c.
+	 */
+	public Corpus readCorpus(int c) throws IOException {
+		return CorpusCache.readCorpus(corpusFile(c));
+	}
+	
+	/**
+	 * Write the viewpoint assignments of the documents of chunk c, followed
+	 * by the topic assignments of their sentences.
+	 * @param name name of the assignments (one per chain)
+	 */
+	public void writeAssignments(String name, int c, int[] vAssign, int[][] zAssign) throws IOException {
+		try (FileChannel channel = FileChannel.open(assignFile(name, c), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			CorpusCache.writeInts(channel, buffer, vAssign);
+			for (int[] topics : zAssign) {
+				CorpusCache.writeInts(channel, buffer, topics);
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+	
+	/**
+	 * Read the assignments of chunk c written by writeAssignments().
+	 * @param corpus corpus of chunk c
+	 * @param vAssign viewpoint assignments of the documents, size corpus.D
+	 * @param zAssign topic assignments of the sentences, zAssign[d] of size
+	 * corpus.length(d)
+	 */
+	public void readAssignments(String name, int c, Corpus corpus, int[] vAssign, int[][] zAssign) throws IOException {
+		try (FileChannel channel = FileChannel.open(assignFile(name, c), StandardOpenOption.READ)) {
+			if (channel.size() != 4L*(corpus.D + corpus.S)) {
+				throw new IOException("Invalid size of " + assignFile(name, c));
+			}
+			int[] assignments = new int[corpus.D + corpus.S];
+			CorpusCache.readInts(channel, 0, assignments);
+			System.arraycopy(assignments, 0, vAssign, 0, corpus.D);
+			for (int d = 0; d < corpus.D; d++) {
+				System.arraycopy(assignments, corpus.D + corpus.docStart[d], zAssign[d], 0, corpus.length(d));
+			}
+		}
+	}
+	
+	private Path corpusFile(int c) {
+		return dir.resolve("corpus-" + Utils.zeroPad(c, 5) + ".bin");
+	}
+	
+	private Path assignFile(String name, int c) {
+		return dir.resolve("assign-" + name + "-" + Utils.zeroPad(c, 5) + ".bin");
+	}
+}
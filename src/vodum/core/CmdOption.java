@@ -62,6 +62,18 @@ public class CmdOption {
 	@Option(name="-inf", usage="Specify whether we want to do inference")
 	public boolean inf = true;
 	
+	@Option(name="-serve", usage="Specify whether we want to serve inference over HTTP with a loaded model")
+	public boolean serve = false;
+	
+	@Option(name="-port", usage="Specify the port of the inference server (on the loopback interface)")
+	public int port = 8080;
+	
+	@Option(name="-maxbatch", usage="Specify the maximal number of documents scored together by the inference server")
+	public int maxbatch = 32;
+	
+	@Option(name="-maxwait", usage="Specify the maximal wait in milliseconds of the inference server for a batch to fill up (0 to score the documents already queued without waiting)")
+	public int maxwait = 0;
+	
 	@Option(name="-dir", usage="Specify directory")
 	public String dir = "";
 	
@@ -92,15 +104,69 @@ public class CmdOption {
 	@Option(name="-nchains", usage="Specify the number of chains")
 	public int nchains = 1;
 	
+	@Option(name="-chainthreads", usage="Specify the number of chains sampled concurrently (0 for as many as there are processors)")
+	public int chainthreads = 0;
+	
+	@Option(name="-nthreads", usage="Specify the number of threads used to sample each chain, to compute the perplexity and to score the batches of the inference server")
+	public int nthreads = 1;
+	
+	@Option(name="-sampler", usage="Specify the topic sampler: exact (full conditional distribution) or mh (Metropolis-Hastings, for large numbers of topics)")
+	public String sampler = "exact";
+	
+	@Option(name="-mhsteps", usage="Specify the number of Metropolis-Hastings steps per sentence with the mh sampler")
+	public int mhsteps = 2;
+	
+	@Option(name="-kernel", usage="Specify the kernel computing the topic probabilities: auto, scalar or vector (requires --add-modules jdk.incubator.vector)")
+	public String kernel = "auto";
+	
 	@Option(name="-niters", usage="Specify the number of iterations per chain")
 	public int niters = 1000;
 	
+	@Option(name="-convstep", usage="Specify the number of iterations between two convergence checks of each chain, which stops once it has converged (0 to always run niters iterations)")
+	public int convstep = 0;
+	
+	@Option(name="-convtol", usage="Specify the relative change of the joint log-likelihood between two checks below which a chain is stable")
+	public double convtol = 1e-4;
+	
+	@Option(name="-churntol", usage="Specify the fraction of documents whose viewpoint changed between two checks up to which a chain is stable")
+	public double churntol = 0.01;
+	
+	@Option(name="-convwindow", usage="Specify the number of consecutive checks at which a chain must be stable to stop")
+	public int convwindow = 3;
+	
+	@Option(name="-rhat", usage="Specify the R-hat of the joint log-likelihood below which chains sampled concurrently stop together (0 for each chain to stop on its own)")
+	public double rhat = 1.1;
+	
 	@Option(name="-savestep", usage="Specify the number of steps to save the model since the last save")
 	public int savestep = 100;
 	
 	@Option(name="-topwords", usage="Specify the number of most likely (top) words to be printed")
 	public int topwords = 100;
 	
+	@Option(name="-maxdensecounts", usage="Specify the maximal size (V x T x W) of the opinion word count table for it to be stored densely, larger tables are stored sparsely")
+	public int maxdensecounts = 1 << 26;
+	
+	@Option(name="-seed", usage="Specify the seed of the random number generators (0 for a seed drawn from the clock)")
+	public int seed = 0;
+	
+	@Option(name="-savequeue", usage="Specify the maximal number of samples waiting to be saved in the background while the sampling goes on (0 to save the samples synchronously)")
+	public int savequeue = 1;
+	
+	@Option(name="-resume", usage="Specify whether the chains are resumed from their last checkpoint (written every savestep iterations)")
+	public boolean resume = false;
+	
+	@Option(name="-batch", usage="Specify whether the new documents are sampled independently of each other and in parallel (inference)")
+	public boolean batch = false;
+	
+	@Option(name="-readthreads", usage="Specify the number of threads reading the data file (0 for as many as there are processors)")
+	public int readthreads = 0;
+	
+	@Option(name="-nocache", usage="Specify whether the binary cache of the data file (written next to it) is neither read nor written")
+	public boolean nocache = false;
+	
+	@Option(name="-chunksize", usage="Specify the size in KB of the chunks of the data file streamed from disk during estimation, for corpora that do not fit in memory (0 to keep the corpus in memory)")
+	public int chunksize = 0;
+	
 	@Option(name="-withrawdata", usage="Specify whether we include raw data in the input")
 	public boolean withrawdata = false;
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Convergence diagnostic shared by chains sampled concurrently. At each of
+ * its convergence checks, every chain reports its joint log-likelihood and
+ * waits for the other chains to reach the same check; the potential scale
+ * reduction factor (split R-hat, Gelman and Rubin) of the log-likelihood
+ * is then computed over the second half of the checks of all chains. A chain
+ * that is stable on its own stops without reporting its check and leaves;
+ * the chains still running all stop at the same check once R-hat is below a
+ * threshold. Since R-hat is computed over the chains that reported the
+ * check only, and whether a chain stops on its own depends on its own trace
+ * only, the samples do not depend on the scheduling of the threads.
+ */
+public class ConvergenceMonitor {
+	
+	private final double threshold; // R-hat below which the chains have converged
+	private final int minChecks; // minimal number of checks of each chain over which R-hat is computed
+	private final List<List<Double>> logLikelihoods; // logLikelihoods.get(c - 1): log-likelihood of chain c at each of its checks
+	private final boolean[] left; // left[c - 1]: whether chain c has ended, size nchains
+	private final List<Boolean> decisions; // decisions.get(m): whether the chains stop at check m
+	
+	/**
+	 * @param nchains number of chains, all sampled concurrently
+	 * @param threshold R-hat below which the chains have converged
+	 * @param minChecks minimal number of checks of each chain over which
+	 * R-hat is computed
+	 */
+	public ConvergenceMonitor(int nchains, double threshold, int minChecks) {
+		this.threshold = threshold;
+		this.minChecks = minChecks;
+		logLikelihoods = new ArrayList<List<Double>>();
+		for (int c = 0; c < nchains; c++) {
+			logLikelihoods.add(new ArrayList<Double>());
+		}
+		left = new boolean[nchains];
+		decisions = new ArrayList<Boolean>();
+	}
+	
+	/**
+	 * Report the next check of a chain, and wait for the other chains to
+	 * report theirs (chains that have ended are no longer waited for).
+	 * @param chain index of the chain, starting from 1
+	 * @param logLikelihood joint log-likelihood of the chain
+	 * @return whether the chains stop
+	 */
+	public synchronized boolean report(int chain, double logLikelihood) throws InterruptedException {
+		int check = logLikelihoods.get(chain - 1).size();
+		logLikelihoods.get(chain - 1).add(logLikelihood);
+		notifyAll();
+		
+		while (decisions.size() <= check) {
+			if (isReported(check)) {
+				decide(check);
+				notifyAll();
+			} else {
+				wait();
+			}
+		}
+		
+		return decisions.get(check);
+	}
+	
+	/**
+	 * Restore the checks reported by a chain before it was resumed from
+	 * its checkpoint: the chains do not decide on these checks until it is
+	 * restored (or has left).
+	 * @param chain index of the chain, starting from 1
+	 * @param reported log-likelihoods reported by the chain at its checks
+	 */
+	public synchronized void restore(int chain, List<Double> reported) {
+		logLikelihoods.get(chain - 1).addAll(reported);
+		notifyAll();
+	}
+	
+	/**
+	 * Report that a chain has ended (normally or not): the other chains no
+	 * longer wait for it.
+	 */
+	public synchronized void leave(int chain) {
+		left[chain - 1] = true;
+		notifyAll();
+	}
+	
+	/**
+	 * @return whether every chain that has not ended has reported check m
+	 */
+	private boolean isReported(int m) {
+		for (int c = 0; c < left.length; c++) {
+			if (!left[c] && logLikelihoods.get(c).size() <= m) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Decide whether the chains stop at check m, and at all the previous
+	 * checks not decided yet.
+	 */
+	private void decide(int m) {
+		while (decisions.size() <= m) {
+			int check = decisions.size();
+			
+			double rhat = computeRhat(check);
+			if (!Double.isNaN(rhat)) {
+				System.out.println("Check " + (check + 1) + ": R-hat of the log-likelihood " + rhat);
+			}
+			
+			decisions.add(rhat < threshold);
+		}
+	}
+	
+	/**
+	 * Compute the split R-hat over checks (m + 1)/2 to m of the chains that
+	 * reported check m: the checks of each chain are split in two halves,
+	 * considered as two chains, so that a chain whose log-likelihood still
+	 * drifts is not taken for a converged one.
+	 * @return R-hat, or NaN if there are less than minChecks such checks
+	 */
+	private double computeRhat(int m) {
+		int n = (m + 1 - (m + 1)/2)/2; // length of each half
+		int first = m + 1 - 2*n;
+		if (2*n < minChecks || n < 2) {
+			return Double.NaN;
+		}
+		
+		List<Double> means = new ArrayList<Double>();
+		List<Double> variances = new ArrayList<Double>();
+		for (int c = 0; c < left.length; c++) {
+			List<Double> trace = logLikelihoods.get(c);
+			if (trace.size() <= m) {
+				continue;
+			}
+			
+			for (int start = first; start <= m; start += n) {
+				double mean = 0;
+				for (int t = start; t < start + n; t++) {
+					mean += trace.get(t);
+				}
+				mean /= n;
+				
+				double variance = 0;
+				for (int t = start; t < start + n; t++) {
+					variance += (trace.get(t) - mean)*(trace.get(t) - mean);
+				}
+				variance /= (n - 1);
+				
+				means.add(mean);
+				variances.add(variance);
+			}
+		}
+		
+		// within-chain and between-chain variances
+		int nchains = means.size();
+		double W = 0;
+		double grandMean = 0;
+		for (int c = 0; c < nchains; c++) {
+			W += variances.get(c);
+			grandMean += means.get(c);
+		}
+		W /= nchains;
+		grandMean /= nchains;
+		
+		double B = 0;
+		for (int c = 0; c < nchains; c++) {
+			B += (means.get(c) - grandMean)*(means.get(c) - grandMean);
+		}
+		B *= (double) n/(nchains - 1);
+		
+		if (W == 0) {
+			return Double.NaN;
+		}
+		
+		double varianceEstimate = (n - 1.0)/n*W + B/n;
+		return Math.sqrt(varianceEstimate/W);
+	}
+}
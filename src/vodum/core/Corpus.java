@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+/**
+ * Read-only word occurrences of a dataset, stored in a few flat arrays
+ * (compressed sparse rows) instead of one object per document and per
+ * sentence. Sentences are numbered over the whole corpus: the sentences of
+ * document d are docStart[d] to docStart[d + 1] - 1, and the word
+ * occurrences of sentence s are sentenceStart[s] to sentenceStart[s + 1] - 1.
+ * The distinct topical (resp. opinion) words of sentence s and their counts
+ * are n0Words[x] and n0Counts[x] (resp. n1Words[x] and n1Counts[x]) for x
+ * from n0Start[s] (resp. n1Start[s]) to n0Start[s + 1] - 1 (resp.
+ * n1Start[s + 1] - 1), sorted by word id.
+ */
+public class Corpus {
+	
+	public final int D; // number of documents
+	public final int S; // number of sentences
+	public final int N; // number of word occurrences
+	
+	public final int[] docStart; // docStart[d]: index of the first sentence of document d, size D + 1
+	public final int[] sentenceStart; // sentenceStart[s]: index of the first word occurrence of sentence s, size S + 1
+	public final int[] words; // words[n]: word of occurrence n, size N
+	final long[] opinion; // bit n is set if occurrence n is an opinion word (part-of-speech category 1)
+	
+	public final int[] n0Start; // n0Start[s]: index of the first distinct topical word of sentence s, size S + 1
+	public final int[] n0Words; // distinct topical words of the sentences
+	public final int[] n0Counts; // n0Counts[x]: number of occurrences of n0Words[x] in its sentence
+	public final int[] n1Start; // n1Start[s]: index of the first distinct opinion word of sentence s, size S + 1
+	public final int[] n1Words; // distinct opinion words of the sentences
+	public final int[] n1Counts; // n1Counts[x]: number of occurrences of n1Words[x] in its sentence
+	final int[] sentenceN1; // sentenceN1[s]: number of opinion word occurrences in sentence s, size S
+	
+	// raw strings of the documents and sentences, null unless the raw data is kept
+	public final String[] docRawStr;
+	public final String[] sentenceRawStr;
+	
+	Corpus(int D, int S, int N, int[] docStart, int[] sentenceStart, int[] words, long[] opinion,
+			int[] n0Start, int[] n0Words, int[] n0Counts, int[] n1Start, int[] n1Words, int[] n1Counts, int[] sentenceN1,
+			String[] docRawStr, String[] sentenceRawStr) {
+		this.D = D;
+		this.S = S;
+		this.N = N;
+		this.docStart = docStart;
+		this.sentenceStart = sentenceStart;
+		this.words = words;
+		this.opinion = opinion;
+		this.n0Start = n0Start;
+		this.n0Words = n0Words;
+		this.n0Counts = n0Counts;
+		this.n1Start = n1Start;
+		this.n1Words = n1Words;
+		this.n1Counts = n1Counts;
+		this.sentenceN1 = sentenceN1;
+		this.docRawStr = docRawStr;
+		this.sentenceRawStr = sentenceRawStr;
+	}
+	
+	/**
+	 * Concatenate corpora, whose documents follow each other in the order
+	 * of the array. The raw strings are kept if they are kept in all parts.
+	 */
+	public static Corpus concat(Corpus[] parts) {
+		int D = 0;
+		int S = 0;
+		int N = 0;
+		int N0distinct = 0;
+		int N1distinct = 0;
+		boolean withRawData = true;
+		for (Corpus part : parts) {
+			D += part.D;
+			S += part.S;
+			N += part.N;
+			N0distinct += part.n0Words.length;
+			N1distinct += part.n1Words.length;
+			withRawData &= (part.docRawStr != null);
+		}
+		
+		int[] docStart = new int[D + 1];
+		int[] sentenceStart = new int[S + 1];
+		int[] words = new int[N];
+		long[] opinion = new long[(N + 63) >>> 6];
+		int[] n0Start = new int[S + 1];
+		int[] n0Words = new int[N0distinct];
+		int[] n0Counts = new int[N0distinct];
+		int[] n1Start = new int[S + 1];
+		int[] n1Words = new int[N1distinct];
+		int[] n1Counts = new int[N1distinct];
+		int[] sentenceN1 = new int[S];
+		String[] docRawStr = (withRawData ? new String[D] : null);
+		String[] sentenceRawStr = (withRawData ? new String[S] : null);
+		
+		// offsets of the current part in the concatenated arrays
+		int d0 = 0;
+		int s0 = 0;
+		int n0 = 0;
+		int x0 = 0;
+		int x1 = 0;
+		for (Corpus part : parts) {
+			for (int d = 0; d < part.D; d++) {
+				docStart[d0 + d] = s0 + part.docStart[d];
+			}
+			for (int s = 0; s < part.S; s++) {
+				sentenceStart[s0 + s] = n0 + part.sentenceStart[s];
+				n0Start[s0 + s] = x0 + part.n0Start[s];
+				n1Start[s0 + s] = x1 + part.n1Start[s];
+			}
+			System.arraycopy(part.words, 0, words, n0, part.N);
+			for (int n = 0; n < part.N; n++) {
+				opinion[(n0 + n) >>> 6] |= (long) part.pos(n) << (n0 + n);
+			}
+			System.arraycopy(part.n0Words, 0, n0Words, x0, part.n0Words.length);
+			System.arraycopy(part.n0Counts, 0, n0Counts, x0, part.n0Words.length);
+			System.arraycopy(part.n1Words, 0, n1Words, x1, part.n1Words.length);
+			System.arraycopy(part.n1Counts, 0, n1Counts, x1, part.n1Words.length);
+			System.arraycopy(part.sentenceN1, 0, sentenceN1, s0, part.S);
+			if (withRawData) {
+				System.arraycopy(part.docRawStr, 0, docRawStr, d0, part.D);
+				System.arraycopy(part.sentenceRawStr, 0, sentenceRawStr, s0, part.S);
+			}
+			
+			d0 += part.D;
+			s0 += part.S;
+			n0 += part.N;
+			x0 += part.n0Words.length;
+			x1 += part.n1Words.length;
+		}
+		docStart[D] = S;
+		sentenceStart[S] = N;
+		n0Start[S] = N0distinct;
+		n1Start[S] = N1distinct;
+		
+		return new Corpus(D, S, N, docStart, sentenceStart, words, opinion,
+				n0Start, n0Words, n0Counts, n1Start, n1Words, n1Counts, sentenceN1, docRawStr, sentenceRawStr);
+	}
+	
+	/**
+	 * @return the number of sentences of document d
+	 */
+	public int length(int d) {
+		return docStart[d + 1] - docStart[d];
+	}
+	
+	/**
+	 * @return the index in the corpus of the m-th sentence of document d
+	 */
+	public int sentence(int d, int m) {
+		return docStart[d] + m;
+	}
+	
+	/**
+	 * @return the number of word occurrences of sentence s
+	 */
+	public int sentenceLength(int s) {
+		return sentenceStart[s + 1] - sentenceStart[s];
+	}
+	
+	/**
+	 * @return the part-of-speech category (0 or 1) of word occurrence n
+	 */
+	public int pos(int n) {
+		return (int) (opinion[n >>> 6] >>> n) & 1;
+	}
+	
+	/**
+	 * @return the number of topical word occurrences of sentence s
+	 */
+	public int N0(int s) {
+		return sentenceLength(s) - sentenceN1[s];
+	}
+	
+	/**
+	 * @return the number of opinion word occurrences of sentence s
+	 */
+	public int N1(int s) {
+		return sentenceN1[s];
+	}
+	
+	/**
+	 * Builder of a corpus, to which the sentences of the documents are
+	 * appended in order.
+	 */
+	public static class Builder {
+		
+		private final boolean withRawData;
+		
+		private int D;
+		private int S;
+		private int N;
+		private int[] docStart = new int[16];
+		private int[] sentenceStart = new int[16];
+		private int[] words = new int[256];
+		private long[] opinion = new long[4];
+		private int[] n0Start = new int[16];
+		private int[] n0Words = new int[256];
+		private int[] n0Counts = new int[256];
+		private int[] n1Start = new int[16];
+		private int[] n1Words = new int[256];
+		private int[] n1Counts = new int[256];
+		private int[] sentenceN1 = new int[16];
+		private String[] docRawStr;
+		private String[] sentenceRawStr;
+		
+		private int[] ids0 = new int[64]; // topical words of the current sentence
+		private int[] ids1 = new int[64]; // opinion words of the current sentence
+		
+		/**
+		 * @param withRawData whether the raw strings of the documents and
+		 * sentences are kept
+		 */
+		public Builder(boolean withRawData) {
+			this.withRawData = withRawData;
+			if (withRawData) {
+				docRawStr = new String[16];
+				sentenceRawStr = new String[16];
+			}
+		}
+		
+		/**
+		 * Append a sentence to the current document.
+		 * @param words words of the sentence
+		 * @param pos part-of-speech categories (0 or 1) of the words
+		 * @param length number of words of the sentence
+		 * @param rawStr raw string of the sentence
+		 */
+		public void addSentence(int[] words, int[] pos, int length, String rawStr) {
+			if (S + 2 > sentenceStart.length) {
+				int capacity = 2*sentenceStart.length;
+				sentenceStart = Arrays.copyOf(sentenceStart, capacity);
+				n0Start = Arrays.copyOf(n0Start, capacity);
+				n1Start = Arrays.copyOf(n1Start, capacity);
+				sentenceN1 = Arrays.copyOf(sentenceN1, capacity);
+				if (withRawData) {
+					sentenceRawStr = Arrays.copyOf(sentenceRawStr, capacity);
+				}
+			}
+			if (N + length > this.words.length) {
+				int capacity = Math.max(2*this.words.length, N + length);
+				this.words = Arrays.copyOf(this.words, capacity);
+				opinion = Arrays.copyOf(opinion, (capacity + 63) >>> 6);
+			}
+			if (length > ids0.length) {
+				ids0 = new int[length];
+				ids1 = new int[length];
+			}
+			
+			int N0 = 0;
+			int N1 = 0;
+			for (int n = 0; n < length; n++) {
+				this.words[N + n] = words[n];
+				if (pos[n] == 0) {
+					ids0[N0++] = words[n];
+				} else if (pos[n] == 1) {
+					ids1[N1++] = words[n];
+					opinion[(N + n) >>> 6] |= 1L << (N + n);
+				} else {
+					throw new IllegalArgumentException("Invalid part-of-speech category: " + pos[n]);
+				}
+			}
+			
+			if (withRawData) {
+				sentenceRawStr[S] = rawStr;
+			}
+			sentenceN1[S] = N1;
+			N += length;
+			S++;
+			sentenceStart[S] = N;
+			
+			n0Start[S] = n0Start[S - 1] + addDistinctWords(ids0, N0, n0Start[S - 1], 0);
+			n1Start[S] = n1Start[S - 1] + addDistinctWords(ids1, N1, n1Start[S - 1], 1);
+		}
+		
+		/**
+		 * Sort the first n ids and append the distinct ones and their counts
+		 * to the distinct words of category pos, from index x0.
+		 * @return the number of distinct ids
+		 */
+		private int addDistinctWords(int[] ids, int n, int x0, int pos) {
+			Arrays.sort(ids, 0, n);
+			
+			int[] distinctWords = (pos == 0 ? n0Words : n1Words);
+			int[] counts = (pos == 0 ? n0Counts : n1Counts);
+			if (x0 + n > distinctWords.length) {
+				int capacity = Math.max(2*distinctWords.length, x0 + n);
+				distinctWords = Arrays.copyOf(distinctWords, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				if (pos == 0) {
+					n0Words = distinctWords;
+					n0Counts = counts;
+				} else {
+					n1Words = distinctWords;
+					n1Counts = counts;
+				}
+			}
+			
+			int x = x0 - 1;
+			for (int i = 0; i < n; i++) {
+				if (i == 0 || ids[i] != ids[i - 1]) {
+					x++;
+					distinctWords[x] = ids[i];
+					counts[x] = 0;
+				}
+				counts[x]++;
+			}
+			
+			return x + 1 - x0;
+		}
+		
+		/**
+		 * End the current document, made of the sentences appended since the
+		 * end of the previous one.
+		 * @param rawStr raw string of the document
+		 */
+		public void endDocument(String rawStr) {
+			if (D + 2 > docStart.length) {
+				docStart = Arrays.copyOf(docStart, 2*docStart.length);
+				if (withRawData) {
+					docRawStr = Arrays.copyOf(docRawStr, docStart.length);
+				}
+			}
+			
+			if (withRawData) {
+				docRawStr[D] = rawStr;
+			}
+			D++;
+			docStart[D] = S;
+		}
+		
+		/**
+		 * Remove all the documents, so that the builder can be reused
+		 * without reallocating its arrays.
+		 */
+		public void clear() {
+			Arrays.fill(opinion, 0, (N + 63) >>> 6, 0L);
+			D = 0;
+			S = 0;
+			N = 0;
+		}
+		
+		/**
+		 * @return the corpus of the documents ended so far
+		 */
+		public Corpus build() {
+			return new Corpus(D, S, N, Arrays.copyOf(docStart, D + 1), Arrays.copyOf(sentenceStart, S + 1),
+					Arrays.copyOf(words, N), Arrays.copyOf(opinion, (N + 63) >>> 6),
+					Arrays.copyOf(n0Start, S + 1), Arrays.copyOf(n0Words, n0Start[S]), Arrays.copyOf(n0Counts, n0Start[S]),
+					Arrays.copyOf(n1Start, S + 1), Arrays.copyOf(n1Words, n1Start[S]), Arrays.copyOf(n1Counts, n1Start[S]),
+					Arrays.copyOf(sentenceN1, S),
+					(withRawData ? Arrays.copyOf(docRawStr, D) : null), (withRawData ? Arrays.copyOf(sentenceRawStr, S) : null));
+		}
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache of a parsed data file, written next to it (with the suffix
+ * .corpus) so that later runs do not parse the data file again. The cache
+ * holds the vocabulary, the part-of-speech categories of the words and the
+ * arrays of the corpus, and is memory-mapped to be read. It records the
+ * size and a CRC32 checksum of the content of the data file, as well as a
+ * checksum of the dictionary against which it was read (for inference), so
+ * that a stale cache is detected and replaced.
+ * The raw strings of the documents are not cached.
+ */
+public class CorpusCache {
+	
+	public static final String suffix = ".corpus";
+	
+	private static final int MAGIC = 0x56444D43; // "VDMC"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 64;
+	private static final int CORPUS_HEADER_SIZE = 24;
+	private static final int CHUNK_SIZE = 1 << 26; // number of bytes mapped or written at once
+	
+	private final Path dataFile;
+	private final Path cacheFile;
+	private long dataSize = -1; // size of the data file, -1 until its checksum is computed
+	private int dataChecksum; // CRC32 checksum of the content of the data file
+	
+	/**
+	 * @param dataFile data file whose parsed content is cached
+	 */
+	public CorpusCache(String dataFile) {
+		this.dataFile = Paths.get(dataFile);
+		this.cacheFile = Paths.get(dataFile + suffix);
+	}
+	
+	/**
+	 * Read the dataset from the cache.
+	 * @param globalDict dictionary against which the data file is read,
+	 * null for training data
+	 * @return the dataset, or null if there is no cache or if it is stale
+	 */
+	public Dataset read(Dictionary globalDict) throws IOException {
+		if (!Files.isRegularFile(cacheFile)) {
+			return null;
+		}
+		
+		try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) {
+				return null;
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				return null;
+			}
+			long size = header.getLong();
+			int checksum = header.getInt();
+			int dictChecksum = header.getInt();
+			if (size != Files.size(dataFile) || dictChecksum != dictionaryChecksum(globalDict)) {
+				return null;
+			}
+			computeDataChecksum();
+			if (checksum != dataChecksum) {
+				return null;
+			}
+			
+			int W = header.getInt();
+			
+			Corpus corpus = readCorpus(channel, HEADER_SIZE);
+			long offset = HEADER_SIZE + corpusBytes(corpus);
+			
+			// vocabulary: part-of-speech categories, global ids and words
+			int[] posSeen = new int[W];
+			offset = readInts(channel, offset, posSeen);
+			int[] globalIds = new int[globalDict != null ? W : 0];
+			offset = readInts(channel, offset, globalIds);
+			int[] wordEnd = new int[W];
+			offset = readInts(channel, offset, wordEnd);
+			byte[] wordBytes = new byte[W > 0 ? wordEnd[W - 1] : 0];
+			offset = readBytes(channel, offset, wordBytes);
+			if (offset != channel.size()) {
+				return null;
+			}
+			
+			Dataset data = (globalDict == null ? new Dataset(corpus.D) : new Dataset(corpus.D, globalDict));
+			data.corpus = corpus;
+			for (int k = 0; k < W; k++) {
+				int wordStart = (k == 0 ? 0 : wordEnd[k - 1]);
+				data.localDict.addWord(wordBytes, wordStart, wordEnd[k]);
+				if (globalDict != null) {
+					data.lid2gid.put(k, globalIds[k]);
+				}
+				
+				if ((posSeen[k] & 1) != 0) {
+					data.topicalWords.set(k);
+					data.W0++;
+				}
+				if ((posSeen[k] & 2) != 0) {
+					data.opinionWords.set(k);
+					data.W1++;
+				}
+			}
+			data.W = W;
+			
+			return data;
+		}
+	}
+	
+	/**
+	 * Write the dataset to the cache. The cache is written to a temporary
+	 * file, which then replaces the previous cache.
+	 * @param data dataset read from the data file
+	 * @param globalDict dictionary against which the data file was read,
+	 * null for training data
+	 */
+	public void write(Dataset data, Dictionary globalDict) throws IOException {
+		computeDataChecksum();
+		
+		int[] posSeen = new int[data.W];
+		int[] globalIds = new int[globalDict != null ? data.W : 0];
+		int[] wordEnd = new int[data.W];
+		byte[][] words = new byte[data.W][];
+		int wordBytes = 0;
+		for (int k = 0; k < data.W; k++) {
+			posSeen[k] = (data.topicalWords.get(k) ? 1 : 0) | (data.opinionWords.get(k) ? 2 : 0);
+			if (globalDict != null) {
+				globalIds[k] = data.lid2gid.get(k);
+			}
+			words[k] = data.localDict.getWord(k).getBytes(StandardCharsets.UTF_8);
+			wordBytes += words[k].length;
+			wordEnd[k] = wordBytes;
+		}
+		
+		Path tmpFile = Paths.get(cacheFile + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(dataSize);
+			buffer.putInt(dataChecksum);
+			buffer.putInt(dictionaryChecksum(globalDict));
+			buffer.putInt(data.W);
+			buffer.position(HEADER_SIZE);
+			
+			writeCorpus(channel, buffer, data.corpus);
+			writeInts(channel, buffer, posSeen);
+			writeInts(channel, buffer, globalIds);
+			writeInts(channel, buffer, wordEnd);
+			for (byte[] word : words) {
+				for (byte b : word) {
+					flushIfFull(channel, buffer, 1);
+					buffer.put(b);
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Write a corpus alone to a file.
+	 */
+	public static void writeCorpus(Path file, Corpus corpus) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			writeCorpus(channel, buffer, corpus);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+	
+	/**
+	 * Read a corpus written by writeCorpus(Path, Corpus).
+	 */
+	public static Corpus readCorpus(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return readCorpus(channel, 0);
+		}
+	}
+	
+	/**
+	 * Write the sizes and the arrays of a corpus through the buffer.
+	 */
+	private static void writeCorpus(FileChannel channel, ByteBuffer buffer, Corpus corpus) throws IOException {
+		flushIfFull(channel, buffer, CORPUS_HEADER_SIZE);
+		buffer.putInt(corpus.D);
+		buffer.putInt(corpus.S);
+		buffer.putInt(corpus.N);
+		buffer.putInt(corpus.n0Words.length);
+		buffer.putInt(corpus.n1Words.length);
+		buffer.putInt(0);
+		
+		writeInts(channel, buffer, corpus.docStart);
+		writeInts(channel, buffer, corpus.sentenceStart);
+		writeInts(channel, buffer, corpus.words);
+		for (long bits : corpus.opinion) {
+			flushIfFull(channel, buffer, 8);
+			buffer.putLong(bits);
+		}
+		writeInts(channel, buffer, corpus.n0Start);
+		writeInts(channel, buffer, corpus.n0Words);
+		writeInts(channel, buffer, corpus.n0Counts);
+		writeInts(channel, buffer, corpus.n1Start);
+		writeInts(channel, buffer, corpus.n1Words);
+		writeInts(channel, buffer, corpus.n1Counts);
+		writeInts(channel, buffer, corpus.sentenceN1);
+	}
+	
+	/**
+	 * Read the corpus written at the given offset by
+	 * writeCorpus(FileChannel, ByteBuffer, Corpus).
+	 */
+	private static Corpus readCorpus(FileChannel channel, long offset) throws IOException {
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, offset, CORPUS_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		int D = header.getInt();
+		int S = header.getInt();
+		int N = header.getInt();
+		int N0distinct = header.getInt();
+		int N1distinct = header.getInt();
+		offset += CORPUS_HEADER_SIZE;
+		
+		int[] docStart = new int[D + 1];
+		offset = readInts(channel, offset, docStart);
+		int[] sentenceStart = new int[S + 1];
+		offset = readInts(channel, offset, sentenceStart);
+		int[] words = new int[N];
+		offset = readInts(channel, offset, words);
+		long[] opinion = new long[(N + 63) >>> 6];
+		offset = readLongs(channel, offset, opinion);
+		int[] n0Start = new int[S + 1];
+		offset = readInts(channel, offset, n0Start);
+		int[] n0Words = new int[N0distinct];
+		offset = readInts(channel, offset, n0Words);
+		int[] n0Counts = new int[N0distinct];
+		offset = readInts(channel, offset, n0Counts);
+		int[] n1Start = new int[S + 1];
+		offset = readInts(channel, offset, n1Start);
+		int[] n1Words = new int[N1distinct];
+		offset = readInts(channel, offset, n1Words);
+		int[] n1Counts = new int[N1distinct];
+		offset = readInts(channel, offset, n1Counts);
+		int[] sentenceN1 = new int[S];
+		offset = readInts(channel, offset, sentenceN1);
+		
+		return new Corpus(D, S, N, docStart, sentenceStart, words, opinion,
+				n0Start, n0Words, n0Counts, n1Start, n1Words, n1Counts, sentenceN1, null, null);
+	}
+	
+	/**
+	 * @return the number of bytes written by
+	 * writeCorpus(FileChannel, ByteBuffer, Corpus)
+	 */
+	private static long corpusBytes(Corpus corpus) {
+		return CORPUS_HEADER_SIZE + 4L*(corpus.D + 1) + 4L*(corpus.S + 1) + 4L*corpus.N + 8L*corpus.opinion.length
+				+ 2*4L*(corpus.S + 1) + 2*4L*corpus.n0Words.length + 2*4L*corpus.n1Words.length + 4L*corpus.S;
+	}
+	
+	/**
+	 * @return the name of the cache file
+	 */
+	public String getFilename() {
+		return cacheFile.toString();
+	}
+	
+	/**
+	 * Compute the size and the checksum of the content of the data file,
+	 * once.
+	 */
+	private void computeDataChecksum() throws IOException {
+		if (dataSize >= 0) {
+			return;
+		}
+		
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += CHUNK_SIZE) {
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position)));
+			}
+			dataSize = size;
+		}
+		dataChecksum = (int) crc.getValue();
+	}
+	
+	/**
+	 * @return a checksum of the words of the dictionary in the order of
+	 * their ids, 0 for no dictionary
+	 */
+	private static int dictionaryChecksum(Dictionary dict) {
+		if (dict == null) {
+			return 0;
+		}
+		
+		CRC32 crc = new CRC32();
+		int nwords = dict.size();
+		for (int id = 0; id < nwords; id++) {
+			String word = dict.getWord(id);
+			if (word != null) {
+				crc.update(word.getBytes(StandardCharsets.UTF_8));
+			}
+			crc.update('\n');
+		}
+		return (int) crc.getValue() | 1;
+	}
+	
+	/**
+	 * Read the ints of an array from the cache, by chunks.
+	 * @return the offset following the array
+	 */
+	static long readInts(FileChannel channel, long offset, int[] dest) throws IOException {
+		for (int i = 0; i < dest.length; i += CHUNK_SIZE / 4) {
+			int n = Math.min(CHUNK_SIZE / 4, dest.length - i);
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4L*i, 4L*n);
+			chunk.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dest, i, n);
+		}
+		return offset + 4L*dest.length;
+	}
+	
+	private static long readLongs(FileChannel channel, long offset, long[] dest) throws IOException {
+		for (int i = 0; i < dest.length; i += CHUNK_SIZE / 8) {
+			int n = Math.min(CHUNK_SIZE / 8, dest.length - i);
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8L*i, 8L*n);
+			chunk.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(dest, i, n);
+		}
+		return offset + 8L*dest.length;
+	}
+	
+	private static long readBytes(FileChannel channel, long offset, byte[] dest) throws IOException {
+		for (int i = 0; i < dest.length; i += CHUNK_SIZE) {
+			int n = Math.min(CHUNK_SIZE, dest.length - i);
+			channel.map(FileChannel.MapMode.READ_ONLY, offset + i, n).get(dest, i, n);
+		}
+		return offset + dest.length;
+	}
+	
+	/**
+	 * Write the ints of an array to the cache, through the buffer.
+	 */
+	static void writeInts(FileChannel channel, ByteBuffer buffer, int[] src) throws IOException {
+		for (int i = 0; i < src.length; ) {
+			flushIfFull(channel, buffer, 4);
+			int n = Math.min(buffer.remaining() / 4, src.length - i);
+			buffer.asIntBuffer().put(src, i, n);
+			buffer.position(buffer.position() + 4*n);
+			i += n;
+		}
+	}
+	
+	/**
+	 * Write the content of the buffer to the channel if it has less than
+	 * the given number of bytes remaining.
+	 */
+	static void flushIfFull(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -53,11 +53,9 @@
 package vodum.core;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
 public class Dataset {
 	
@@ -66,12 +64,14 @@ public class Dataset {
 	//---------------------------------------------------------------
 	
 	public Dictionary localDict; // local dictionary	
-	public Document[] docs; // a list of documents	
+	public Corpus corpus; // word occurrences of the documents
+	public ChunkedCorpus chunks; // chunks of the corpus on disk, null if the whole corpus is in memory
 	public int D; // number of documents
 	public int W; // number of words
 	public int W0; // number of topical words
 	public int W1; // number of opinion words
-	public Map<Integer, Map<Integer, Boolean>> wordIdPosMap; // key1=wordId, key2=posCategory, value=isWordPos
+	public BitSet topicalWords; // bit k set if word k occurs as a topical word (part-of-speech category 0)
+	public BitSet opinionWords; // bit k set if word k occurs as an opinion word (part-of-speech category 1)
 	
 	// map from local coordinates (id) to global ones 
 	// null if the global dictionary is not set
@@ -80,6 +80,10 @@ public class Dataset {
 	// link to a global dictionary (optional), null for train data, not null for test data
 	public Dictionary globalDict;	 		
 	
+	// buffers of the words and part-of-speech categories of the sentence being read
+	private int[] ids = new int[64];
+	private int[] pos = new int[64];
+	
 	//--------------------------------------------------------------
 	// Constructors
 	//--------------------------------------------------------------
@@ -90,8 +94,10 @@ public class Dataset {
 		W = 0;
 		W0 = 0;
 		W1 = 0;
-		docs = null;
-		wordIdPosMap = new HashMap<Integer, Map<Integer, Boolean>>();
+		corpus = null;
+		chunks = null;
+		topicalWords = new BitSet();
+		opinionWords = new BitSet();
 	
 		globalDict = null;
 		lid2gid = null;
@@ -103,8 +109,10 @@ public class Dataset {
 		this.W = 0;
 		this.W0 = 0;
 		this.W1 = 0;
-		docs = new Document[M];	
-		wordIdPosMap = new HashMap<Integer, Map<Integer, Boolean>>();
+		corpus = null;
+		chunks = null;
+		topicalWords = new BitSet();
+		opinionWords = new BitSet();
 		
 		globalDict = null;
 		lid2gid = null;
@@ -116,8 +124,10 @@ public class Dataset {
 		this.W = 0;
 		this.W0 = 0;
 		this.W1 = 0;
-		docs = new Document[M];
-		wordIdPosMap = new HashMap<Integer, Map<Integer, Boolean>>();
+		corpus = null;
+		chunks = null;
+		topicalWords = new BitSet();
+		opinionWords = new BitSet();
 		
 		this.globalDict = globalDict;
 		lid2gid = new HashMap<Integer, Integer>();
@@ -128,109 +138,101 @@ public class Dataset {
 	//-------------------------------------------------------------
 	
 	/**
-	 * Set the document at the index idx if idx is greater than 0 and less than D.
-	 * @param doc document to be set
-	 * @param idx index in the document array
-	 */	
-	public void setDoc(Document doc, int idx) {
-		if (0 <= idx && idx < D) {
-			docs[idx] = doc;
-		}
+	 * @return a dataset sharing the vocabulary and the chunks of this one,
+	 * but with its own current corpus, so that models can stream the chunks
+	 * independently
+	 */
+	public Dataset shallowCopy() {
+		Dataset copy = new Dataset();
+		copy.localDict = localDict;
+		copy.corpus = corpus;
+		copy.chunks = chunks;
+		copy.D = D;
+		copy.W = W;
+		copy.W0 = W0;
+		copy.W1 = W1;
+		copy.topicalWords = topicalWords;
+		copy.opinionWords = opinionWords;
+		copy.lid2gid = lid2gid;
+		copy.globalDict = globalDict;
+		return copy;
 	}
 	
 	/**
-	 * Set the document at the index idx if idx is greater than 0 and less than D.
+	 * Parse a document and append it to the corpus being built.
 	 * @param str string contains doc
-	 * @param idx index in the document array
+	 * @param builder builder of the corpus
 	 */
-	public void setDoc(String str, int idx) {
-		if (0 <= idx && idx < D) {
-			String[] sentences = str.split("[|]"); // each sentence is separated by a |
-			
-			Vector<Sentence> sents = new Vector<Sentence>();
-			
-			for (String sentence : sentences) {
-				String[] posWords = sentence.split("[ \\t\\n]");
-
-				Vector<Integer> ids = new Vector<Integer>();
-				Vector<Integer> pos = new Vector<Integer>();
-
-				for (String posWord : posWords) {
-					String[] posWordSplit = posWord.split("[:]");
-					String word = posWordSplit[0];
-					int _pos = Integer.parseInt(posWordSplit[1]);
-					
-					int _id = localDict.word2id.size();
+	public void addDoc(String str, Corpus.Builder builder) {
+		String[] sentences = str.split("[|]"); // each sentence is separated by a |
+		
+		for (String sentence : sentences) {
+			String[] posWords = sentence.split("[ \\t\\n]");
+			if (posWords.length > ids.length) {
+				ids = new int[posWords.length];
+				pos = new int[posWords.length];
+			}
+			int length = 0;
 
-					if (localDict.contains(word)) {		
-						_id = localDict.getID(word);
-					} else {
-						// first time this word occurs at all
-						Map<Integer, Boolean> currentWordPosMap = new HashMap<Integer, Boolean>();
-						currentWordPosMap.put(0, false); // word with pos category 0 hasn't been seen yet
-						currentWordPosMap.put(1, false); // word with pos category 1 hasn't been seen yet
-						wordIdPosMap.put(_id, currentWordPosMap);
-					}
+			for (String posWord : posWords) {
+				String[] posWordSplit = posWord.split("[:]");
+				String word = posWordSplit[0];
+				int _pos = Integer.parseInt(posWordSplit[1]);
+				
+				int _id = localDict.size();
 
-					if (globalDict != null) {
-						// get the global id
-						Integer id = globalDict.getID(word);
+				if (localDict.contains(word)) {		
+					_id = localDict.getID(word);
+				}
 
-						if (id != null) {
-							localDict.addWord(word);
+				if (globalDict != null) {
+					// get the global id
+					Integer id = globalDict.getID(word);
 
-							lid2gid.put(_id, id);
-							ids.add(_id);
-							pos.add(_pos);
-							
-							// updating W0/W1
-							if (_pos == 0 && !wordIdPosMap.get(_id).get(0)) {
-								// first time this word occurs as a topical word
-								W0++;
-								
-								// word with pos category 0 has now been seen
-								wordIdPosMap.get(_id).put(0, true);
-							} else if (_pos == 1 && !wordIdPosMap.get(_id).get(1)) {
-								// first time this word occurs as an opinion word
-								W1++;
-								
-								// word with pos category 1 has now been seen
-								wordIdPosMap.get(_id).put(1, true);
-							}
-						} else { //not in global dictionary
-							// the word will not be considered in the model, remove it
-							wordIdPosMap.remove(_id);
-						}
-					} else {
+					// the words that are not in the global dictionary are not considered in the model
+					if (id != null) {
 						localDict.addWord(word);
-						ids.add(_id);
-						pos.add(_pos);
+
+						lid2gid.put(_id, id);
+						ids[length] = _id;
+						pos[length] = _pos;
+						length++;
 						
 						// updating W0/W1
-						if (_pos == 0 && !wordIdPosMap.get(_id).get(0)) {
+						if (_pos == 0 && !topicalWords.get(_id)) {
 							// first time this word occurs as a topical word
 							W0++;
-							
-							// word with pos category 0 has now been seen
-							wordIdPosMap.get(_id).put(0, true);
-						} else if (_pos == 1 && !wordIdPosMap.get(_id).get(1)) {
+							topicalWords.set(_id);
+						} else if (_pos == 1 && !opinionWords.get(_id)) {
 							// first time this word occurs as an opinion word
 							W1++;
-							
-							// word with pos category 1 has now been seen
-							wordIdPosMap.get(_id).put(1, true);
+							opinionWords.set(_id);
 						}
 					}
+				} else {
+					localDict.addWord(word);
+					ids[length] = _id;
+					pos[length] = _pos;
+					length++;
+					
+					// updating W0/W1
+					if (_pos == 0 && !topicalWords.get(_id)) {
+						// first time this word occurs as a topical word
+						W0++;
+						topicalWords.set(_id);
+					} else if (_pos == 1 && !opinionWords.get(_id)) {
+						// first time this word occurs as an opinion word
+						W1++;
+						opinionWords.set(_id);
+					}
 				}
-
-				Sentence sent = new Sentence(ids, pos, sentence);
-				sents.add(sent);
 			}
-			
-			Document doc = new Document(sents, str);
-			docs[idx] = doc;
-			W = localDict.word2id.size();
+
+			builder.addSentence(ids, pos, length, sentence);
 		}
+		
+		builder.endDocument(str);
+		W = localDict.size();
 	}
 	
 	//---------------------------------------------------------------
@@ -238,22 +240,11 @@ public class Dataset {
 	//---------------------------------------------------------------
 	
 	/**
-	 * Read a dataset from a stream, create new dictionary.
+	 * Read a dataset from a file, create new dictionary.
 	 * @return dataset if success and null otherwise
 	 */
 	public static Dataset readDataSet(String filename) {
-		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(filename), "UTF-8"));
-			Dataset data = readDataSet(reader);
-			reader.close();
-			
-			return data;
-		} catch (Exception e) {
-			System.out.println("Read Dataset Error: " + e.getMessage());
-			e.printStackTrace();
-			return null;
-		}
+		return readDataSet(filename, null, false, 0);
 	}
 	
 	/**
@@ -263,13 +254,22 @@ public class Dataset {
 	 * @return dataset if success and null otherwise
 	 */
 	public static Dataset readDataSet(String filename, Dictionary dict) {
+		return readDataSet(filename, dict, false, 0);
+	}
+	
+	/**
+	 * Read a dataset from a file, with several threads.
+	 * @param filename file from which we read dataset
+	 * @param dict the dictionary, or null to create a new dictionary
+	 * @param withRawData whether the raw strings of the documents and
+	 * sentences are kept in the corpus
+	 * @param nthreads number of threads, 0 for as many as there are
+	 * processors
+	 * @return dataset if success and null otherwise
+	 */
+	public static Dataset readDataSet(String filename, Dictionary dict, boolean withRawData, int nthreads) {
 		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(filename), "UTF-8"));
-			Dataset data = readDataSet(reader, dict);
-			reader.close();
-			
-			return data;
+			return new DatasetParser(filename, dict, withRawData, nthreads).parse();
 		} catch (Exception e) {
 			System.out.println("Read Dataset Error: " + e.getMessage());
 			e.printStackTrace();
@@ -278,24 +278,17 @@ public class Dataset {
 	}
 	
 	/**
-	 * Read a dataset from a stream, create new dictionary.
+	 * Read a dataset from a file, with several threads, and write its
+	 * corpus into chunks on disk instead of keeping it in memory.
+	 * @param filename file from which we read dataset
+	 * @param chunks chunks into which the corpus is written
+	 * @param nthreads number of threads, 0 for as many as there are
+	 * processors
 	 * @return dataset if success and null otherwise
 	 */
-	public static Dataset readDataSet(BufferedReader reader) {
+	public static Dataset readDataSet(String filename, ChunkedCorpus chunks, int nthreads) {
 		try {
-			// read number of documents
-			String line;
-			line = reader.readLine();
-			int D = Integer.parseInt(line);
-			
-			Dataset data = new Dataset(D);
-			for (int d = 0; d < D; ++d) {
-				line = reader.readLine();
-				
-				data.setDoc(line, d);
-			}
-			
-			return data;
+			return new DatasetParser(filename, null, false, nthreads).parse(chunks);
 		} catch (Exception e) {
 			System.out.println("Read Dataset Error: " + e.getMessage());
 			e.printStackTrace();
@@ -303,6 +296,14 @@ public class Dataset {
 		}
 	}
 	
+	/**
+	 * Read a dataset from a stream, create new dictionary.
+	 * @return dataset if success and null otherwise
+	 */
+	public static Dataset readDataSet(BufferedReader reader) {
+		return readDataSet(reader, null, false);
+	}
+	
 	/**
 	 * Read a dataset from a stream with respect to a specified dictionary.
 	 * @param reader stream from which we read dataset
@@ -310,18 +311,32 @@ public class Dataset {
 	 * @return dataset if success and null otherwise
 	 */
 	public static Dataset readDataSet(BufferedReader reader, Dictionary dict) {
+		return readDataSet(reader, dict, false);
+	}
+	
+	/**
+	 * Read a dataset from a stream with respect to a specified dictionary.
+	 * @param reader stream from which we read dataset
+	 * @param dict the dictionary, or null to create a new dictionary
+	 * @param withRawData whether the raw strings of the documents and
+	 * sentences are kept in the corpus
+	 * @return dataset if success and null otherwise
+	 */
+	public static Dataset readDataSet(BufferedReader reader, Dictionary dict, boolean withRawData) {
 		try {
 			// read number of document
 			String line;
 			line = reader.readLine();
 			int D = Integer.parseInt(line);
 			
-			Dataset data = new Dataset(D, dict);
+			Dataset data = (dict == null ? new Dataset(D) : new Dataset(D, dict));
+			Corpus.Builder builder = new Corpus.Builder(withRawData);
 			for (int d = 0; d < D; ++d) {
 				line = reader.readLine();
 				
-				data.setDoc(line, d);
+				data.addDoc(line, builder);
 			}
+			data.corpus = builder.build();
 			
 			return data;
 		} catch (Exception e) {
@@ -337,27 +352,23 @@ public class Dataset {
 	 * @return dataset if success and null otherwise
 	 */
 	public static Dataset readDataSet(String[] strs) {
-		Dataset data = new Dataset(strs.length);
-		
-		for (int d = 0 ; d < strs.length; ++d) {
-			data.setDoc(strs[d], d);
-		}
-		
-		return data;
+		return readDataSet(strs, null);
 	}
 	
 	/**
 	 * Read a dataset from a string with respect to a specified dictionary.
 	 * @param str String from which we get the dataset, documents are seperated by newline character	
-	 * @param dict the dictionary
+	 * @param dict the dictionary, or null to create a new dictionary
 	 * @return dataset if success and null otherwise
 	 */
 	public static Dataset readDataSet(String[] strs, Dictionary dict) {
-		Dataset data = new Dataset(strs.length, dict);
+		Dataset data = (dict == null ? new Dataset(strs.length) : new Dataset(strs.length, dict));
+		Corpus.Builder builder = new Corpus.Builder(false);
 		
 		for (int d = 0 ; d < strs.length; ++d) {
-			data.setDoc(strs[d], d);
+			data.addDoc(strs[d], builder);
 		}
+		data.corpus = builder.build();
 		
 		return data;
 	}
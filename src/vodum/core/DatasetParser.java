@@ -0,0 +1,605 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parser of a data file, which tokenizes the documents in parallel.
+ * The file is memory-mapped and split into parts made of whole lines. Each
+ * part is scanned byte by byte by a task, which assigns local ids to its
+ * words in their order of first occurrence. The local vocabularies are then
+ * merged in the order of the parts, so that the words get the ids that a
+ * sequential reading of the file assigns (by first occurrence), whatever
+ * the number of threads. Finally, each part builds its corpus with the
+ * merged ids, and the corpora of the parts are concatenated.
+ */
+public class DatasetParser {
+	
+	private static final int PART_SIZE = 1 << 24; // nominal number of bytes of a part
+	
+	private final String filename;
+	private final Dictionary globalDict;
+	private final boolean withRawData;
+	private final int nthreads;
+	
+	// merged vocabulary of the parts parsed so far
+	private byte[] posSeen; // bit c of posSeen[k] set if word k occurs with part-of-speech category c
+	private int docs; // number of documents kept
+	
+	/**
+	 * @param filename data file
+	 * @param globalDict dictionary of the words to keep, or null to keep
+	 * all words
+	 * @param withRawData whether the raw strings of the documents and
+	 * sentences are kept in the corpus
+	 * @param nthreads number of threads, 0 for as many as there are
+	 * processors
+	 */
+	public DatasetParser(String filename, Dictionary globalDict, boolean withRawData, int nthreads) {
+		this.filename = filename;
+		this.globalDict = globalDict;
+		this.withRawData = withRawData;
+		this.nthreads = (nthreads > 0 ? nthreads : Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Read the dataset.
+	 */
+	public Dataset parse() throws IOException, InterruptedException, ExecutionException {
+		return parse(null);
+	}
+	
+	/**
+	 * Read the dataset, and write its corpus into chunks if they are
+	 * given: the data file is then parsed by pieces of about
+	 * chunks.getChunkBytes() bytes, one after the other, and each piece is
+	 * written as a chunk, so that only the corpus of one chunk is held in
+	 * memory. The corpus of the dataset is then null.
+	 * @param chunks chunks of the corpus, null to keep the corpus in memory
+	 */
+	public Dataset parse(ChunkedCorpus chunks) throws IOException, InterruptedException, ExecutionException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = channel.size();
+			
+			// the first line contains the number of documents
+			long dataStart = nextLine(channel, 0, size);
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(dataStart, 64));
+			channel.read(header, 0);
+			int D = Integer.parseInt(new String(header.array(), 0, header.position(), StandardCharsets.UTF_8).trim());
+			
+			Dataset data = (globalDict == null ? new Dataset(D) : new Dataset(D, globalDict));
+			posSeen = new byte[256];
+			docs = 0;
+			
+			int nchunks = 1;
+			if (chunks != null) {
+				nchunks = (int) Math.max(1, (size - dataStart + chunks.getChunkBytes() - 1) / chunks.getChunkBytes());
+			}
+			long[] chunkStart = splitLines(channel, dataStart, size, nchunks);
+			
+			ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+			try {
+				for (int c = 0; c < nchunks && (c == 0 || docs < D); c++) {
+					Corpus corpus = parseChunk(channel, executor, data, chunkStart[c], chunkStart[c + 1]);
+					if (chunks == null) {
+						data.corpus = corpus;
+					} else if (corpus.D > 0) {
+						chunks.addChunk(corpus);
+					}
+				}
+			} finally {
+				executor.shutdown();
+			}
+			
+			finishVocabulary(data);
+			data.chunks = chunks;
+			
+			return data;
+		}
+	}
+	
+	/**
+	 * Parse the documents of the data file in [start, end), made of whole
+	 * lines, in parallel.
+	 * @return the corpus of the documents
+	 */
+	private Corpus parseChunk(FileChannel channel, ExecutorService executor, Dataset data, long start, long end) throws IOException, InterruptedException, ExecutionException {
+		// split the documents into parts made of whole lines
+		int nparts = (int) Math.max(nthreads, (end - start + PART_SIZE - 1) / PART_SIZE);
+		long[] partStart = splitLines(channel, start, end, nparts);
+		
+		final Part[] parts = new Part[nparts];
+		for (int p = 0; p < nparts; p++) {
+			if (partStart[p + 1] - partStart[p] > Integer.MAX_VALUE) {
+				throw new IOException("Too long line in " + filename);
+			}
+			parts[p] = new Part(channel.map(FileChannel.MapMode.READ_ONLY, partStart[p], partStart[p + 1] - partStart[p]));
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Part part : parts) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					part.tokenize();
+					return null;
+				}
+			});
+		}
+		runTasks(executor, tasks);
+		
+		mergeVocabularies(data, parts);
+		
+		tasks.clear();
+		final Corpus[] corpora = new Corpus[nparts];
+		for (int p = 0; p < nparts; p++) {
+			final int _p = p;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					corpora[_p] = parts[_p].buildCorpus();
+					return null;
+				}
+			});
+		}
+		runTasks(executor, tasks);
+		
+		return Corpus.concat(corpora);
+	}
+	
+	/**
+	 * Split [start, end) into n ranges made of whole lines, of about the
+	 * same size.
+	 * @return the offsets of the ranges, size n + 1
+	 */
+	private static long[] splitLines(FileChannel channel, long start, long end, int n) throws IOException {
+		long[] offsets = new long[n + 1];
+		offsets[0] = start;
+		for (int p = 1; p < n; p++) {
+			long offset = start + (end - start) * p / n;
+			offsets[p] = Math.max(offsets[p - 1], nextLine(channel, offset - 1, end));
+		}
+		offsets[n] = end;
+		return offsets;
+	}
+	
+	/**
+	 * @return the offset following the first line terminator (\n, \r or
+	 * \r\n) found at offset or after, size if there is none
+	 */
+	private static long nextLine(FileChannel channel, long offset, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long position = offset;
+		
+		while (position < size) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n <= 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n') {
+					return position + i + 1;
+				} else if (b == '\r') {
+					// \r\n is a single terminator
+					ByteBuffer next = ByteBuffer.allocate(1);
+					if (channel.read(next, position + i + 1) == 1 && next.get(0) == '\n') {
+						return position + i + 2;
+					}
+					return position + i + 1;
+				}
+			}
+			position += n;
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Run the tasks on a thread pool and wait for all of them to complete.
+	 */
+	private static void runTasks(ExecutorService executor, List<Callable<Void>> tasks) throws InterruptedException, ExecutionException {
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			future.get();
+		}
+	}
+	
+	/**
+	 * Assign the ids of the dictionary of the dataset to the local words of
+	 * the parts, in the order of the parts. Only the first D documents are
+	 * kept.
+	 */
+	private void mergeVocabularies(Dataset data, Part[] parts) {
+		for (Part part : parts) {
+			if (docs + part.ndocs > data.D) {
+				part.truncate(data.D - docs);
+			}
+			docs += part.ndocs;
+			
+			part.localToGlobal = new int[part.nwords];
+			for (int l = 0; l < part.nwords; l++) {
+				int start = part.wordStart[l];
+				int end = part.wordStart[l + 1];
+				
+				int id = -1;
+				if (globalDict == null) {
+					id = data.localDict.addWord(part.pool, start, end);
+				} else {
+					int globalId = globalDict.getID(part.pool, start, end);
+					if (globalId >= 0) {
+						id = data.localDict.addWord(part.pool, start, end);
+						data.lid2gid.put(id, globalId);
+					}
+				}
+				
+				if (id >= 0) {
+					if (id >= posSeen.length) {
+						posSeen = Arrays.copyOf(posSeen, 2*id);
+					}
+					posSeen[id] |= part.posSeen[l];
+				}
+				part.localToGlobal[l] = id;
+			}
+		}
+	}
+	
+	/**
+	 * Check that all the documents were read, and count the topical and
+	 * opinion words.
+	 */
+	private void finishVocabulary(Dataset data) throws IOException {
+		if (docs < data.D) {
+			throw new IOException("Only " + docs + " documents out of " + data.D + " in " + filename);
+		}
+		
+		data.W = data.localDict.size();
+		for (int k = 0; k < data.W; k++) {
+			if ((posSeen[k] & 1) != 0) {
+				data.topicalWords.set(k);
+				data.W0++;
+			}
+			if ((posSeen[k] & 2) != 0) {
+				data.opinionWords.set(k);
+				data.W1++;
+			}
+		}
+	}
+	
+	/**
+	 * Lines of the data file parsed by a task.
+	 */
+	private class Part {
+		
+		private final MappedByteBuffer buffer;
+		private final ByteBuffer view; // view of buffer whose position is moved to copy bytes (absolute bulk gets need Java 13)
+		
+		// local vocabulary: the words of the part in their order of first occurrence
+		private byte[] pool = new byte[1 << 12]; // UTF-8 bytes of the local words
+		private int[] wordStart = new int[256]; // wordStart[l]: offset in pool of local word l, size nwords + 1
+		private int nwords;
+		private int[] table = new int[512]; // hash table of the local words, l + 1 for local word l and 0 for an empty slot
+		private byte[] posSeen = new byte[256]; // bit c of posSeen[l] set if local word l occurs with part-of-speech category c
+		private int[] localToGlobal; // localToGlobal[l]: id of local word l in the dictionary, -1 if it is not kept
+		
+		// word occurrences of the part
+		private int[] ids = new int[1 << 12]; // local words
+		private byte[] pos = new byte[1 << 12]; // part-of-speech categories
+		private int ntokens;
+		private int[] sentenceLength = new int[256];
+		private int nsentences;
+		private int[] docLength = new int[64]; // number of sentences of the documents
+		private int ndocs;
+		
+		// byte ranges (start, end) of the raw strings, only with raw data
+		private int[] docRange = new int[128];
+		private int[] sentenceRange = new int[512];
+		
+		Part(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			this.view = buffer.duplicate();
+		}
+		
+		/**
+		 * Scan the lines of the part: each line is a document, whose
+		 * sentences are separated by | and whose words, separated by spaces,
+		 * are followed by : and their part-of-speech category.
+		 */
+		void tokenize() {
+			int limit = buffer.limit();
+			int i = 0;
+			
+			while (i < limit) {
+				int lineStart = i;
+				int sentenceStart = i;
+				int sentenceTokens = 0;
+				int docSentences = 0;
+				byte b = 0;
+				
+				while (true) {
+					b = (i < limit ? buffer.get(i) : (byte) '\n');
+					
+					if (b == '|' || b == '\n' || b == '\r') {
+						// end of a sentence, empty sentences are ignored
+						if (sentenceTokens > 0) {
+							addSentence(sentenceTokens, sentenceStart, i);
+							docSentences++;
+						}
+						if (b != '|') {
+							break;
+						}
+						i++;
+						sentenceStart = i;
+						sentenceTokens = 0;
+					} else if (b == ' ' || b == '\t') {
+						i++;
+					} else {
+						// word followed by : and its part-of-speech category
+						int wordStart = i;
+						while (i < limit && !isTokenEnd(b = buffer.get(i)) && b != ':') {
+							i++;
+						}
+						if (i == limit || b != ':') {
+							throw new IllegalArgumentException("Invalid word without part-of-speech category: " + string(wordStart, i));
+						}
+						int wordEnd = i;
+						i++;
+						
+						int category = 0;
+						int digits = 0;
+						while (i < limit && (b = buffer.get(i)) >= '0' && b <= '9') {
+							category = 10*category + (b - '0');
+							digits++;
+							i++;
+						}
+						if (digits == 0 || category > 1) {
+							throw new IllegalArgumentException("Invalid part-of-speech category: " + string(wordStart, i));
+						}
+						// the rest of the token is ignored
+						while (i < limit && !isTokenEnd(buffer.get(i))) {
+							i++;
+						}
+						
+						addToken(wordId(wordStart, wordEnd), category);
+						sentenceTokens++;
+					}
+				}
+				
+				addDocument(docSentences, lineStart, i);
+				
+				// skip the line terminator
+				if (i < limit && buffer.get(i) == '\r') {
+					i++;
+					if (i < limit && buffer.get(i) == '\n') {
+						i++;
+					}
+				} else {
+					i++;
+				}
+			}
+		}
+		
+		private boolean isTokenEnd(byte b) {
+			return b == ' ' || b == '\t' || b == '|' || b == '\n' || b == '\r';
+		}
+		
+		private String string(int start, int end) {
+			byte[] bytes = new byte[end - start];
+			view.position(start);
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		/**
+		 * @return the local id of the word made of the bytes of the part
+		 * from start to end (excluded), added to the local vocabulary if
+		 * it is new
+		 */
+		private int wordId(int start, int end) {
+			int hash = 0x811C9DC5;
+			for (int i = start; i < end; i++) {
+				hash = (hash ^ buffer.get(i)) * 0x01000193;
+			}
+			
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while (table[slot] != 0) {
+				int l = table[slot] - 1;
+				if (wordEquals(l, start, end)) {
+					return l;
+				}
+				slot = (slot + 1) & mask;
+			}
+			
+			// new word
+			int l = nwords;
+			int length = end - start;
+			if (wordStart[l] + length > pool.length) {
+				pool = Arrays.copyOf(pool, Math.max(2*pool.length, wordStart[l] + length));
+			}
+			view.position(start);
+			view.get(pool, wordStart[l], length);
+			if (l + 2 > wordStart.length) {
+				wordStart = Arrays.copyOf(wordStart, 2*wordStart.length);
+				posSeen = Arrays.copyOf(posSeen, wordStart.length);
+			}
+			wordStart[l + 1] = wordStart[l] + length;
+			nwords++;
+			
+			table[slot] = l + 1;
+			if (2*nwords > table.length) {
+				rehash();
+			}
+			
+			return l;
+		}
+		
+		private boolean wordEquals(int l, int start, int end) {
+			if (wordStart[l + 1] - wordStart[l] != end - start) {
+				return false;
+			}
+			for (int i = start, j = wordStart[l]; i < end; i++, j++) {
+				if (buffer.get(i) != pool[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private void rehash() {
+			table = new int[2*table.length];
+			int mask = table.length - 1;
+			for (int l = 0; l < nwords; l++) {
+				int hash = 0x811C9DC5;
+				for (int j = wordStart[l]; j < wordStart[l + 1]; j++) {
+					hash = (hash ^ pool[j]) * 0x01000193;
+				}
+				int slot = hash & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = l + 1;
+			}
+		}
+		
+		private void addToken(int l, int category) {
+			if (ntokens == ids.length) {
+				ids = Arrays.copyOf(ids, 2*ntokens);
+				pos = Arrays.copyOf(pos, 2*ntokens);
+			}
+			ids[ntokens] = l;
+			pos[ntokens] = (byte) category;
+			ntokens++;
+			posSeen[l] |= 1 << category;
+		}
+		
+		private void addSentence(int length, int start, int end) {
+			if (nsentences == sentenceLength.length) {
+				sentenceLength = Arrays.copyOf(sentenceLength, 2*nsentences);
+			}
+			sentenceLength[nsentences] = length;
+			if (withRawData) {
+				if (2*nsentences + 2 > sentenceRange.length) {
+					sentenceRange = Arrays.copyOf(sentenceRange, 2*sentenceRange.length);
+				}
+				sentenceRange[2*nsentences] = start;
+				sentenceRange[2*nsentences + 1] = end;
+			}
+			nsentences++;
+		}
+		
+		private void addDocument(int length, int start, int end) {
+			if (ndocs == docLength.length) {
+				docLength = Arrays.copyOf(docLength, 2*ndocs);
+			}
+			docLength[ndocs] = length;
+			if (withRawData) {
+				if (2*ndocs + 2 > docRange.length) {
+					docRange = Arrays.copyOf(docRange, 2*docRange.length);
+				}
+				docRange[2*ndocs] = start;
+				docRange[2*ndocs + 1] = end;
+			}
+			ndocs++;
+		}
+		
+		/**
+		 * Keep only the first documents of the part, and the local words
+		 * that occur in them.
+		 */
+		void truncate(int ndocs) {
+			int nsentences = 0;
+			for (int d = 0; d < ndocs; d++) {
+				nsentences += docLength[d];
+			}
+			int ntokens = 0;
+			for (int s = 0; s < nsentences; s++) {
+				ntokens += sentenceLength[s];
+			}
+			
+			// local ids are assigned by first occurrence, so that the words
+			// of the first tokens are the first local words
+			int nwords = 0;
+			Arrays.fill(posSeen, (byte) 0);
+			for (int t = 0; t < ntokens; t++) {
+				nwords = Math.max(nwords, ids[t] + 1);
+				posSeen[ids[t]] |= 1 << pos[t];
+			}
+			
+			this.ndocs = ndocs;
+			this.nsentences = nsentences;
+			this.ntokens = ntokens;
+			this.nwords = nwords;
+		}
+		
+		/**
+		 * @return the corpus of the documents of the part, with the merged
+		 * word ids
+		 */
+		Corpus buildCorpus() {
+			Corpus.Builder builder = new Corpus.Builder(withRawData);
+			int maxLength = 0;
+			for (int s = 0; s < nsentences; s++) {
+				maxLength = Math.max(maxLength, sentenceLength[s]);
+			}
+			int[] words = new int[maxLength];
+			int[] categories = new int[maxLength];
+			
+			int t = 0;
+			int s = 0;
+			for (int d = 0; d < ndocs; d++) {
+				for (int m = 0; m < docLength[d]; m++, s++) {
+					// the words that are not kept are removed
+					int length = 0;
+					for (int x = 0; x < sentenceLength[s]; x++, t++) {
+						int id = localToGlobal[ids[t]];
+						if (id >= 0) {
+							words[length] = id;
+							categories[length] = pos[t];
+							length++;
+						}
+					}
+					builder.addSentence(words, categories, length, (withRawData ? string(sentenceRange[2*s], sentenceRange[2*s + 1]) : ""));
+				}
+				builder.endDocument(withRawData ? string(docRange[2*d], docRange[2*d + 1]) : "");
+			}
+			
+			return builder.build();
+		}
+	}
+}
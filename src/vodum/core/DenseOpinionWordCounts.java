@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+/**
+ * Dense opinion word count table, of size V x T x W. The counts are stored
+ * in a single array in word-major order, so that the counts of a word for
+ * all the topics of a viewpoint are contiguous.
+ */
+public class DenseOpinionWordCounts extends OpinionWordCounts {
+	
+	private final int[] counts; // counts[(k*V + i)*T + j]: number of instances of opinion word k assigned to viewpoint i and topic j
+	
+	public DenseOpinionWordCounts(int V, int T, int W) {
+		super(V, T, W);
+		counts = new int[V * T * W];
+	}
+	
+	public int get(int i, int j, int k) {
+		return counts[(k*V + i)*T + j];
+	}
+	
+	public void getTopics(int i, int k, int[] dest) {
+		System.arraycopy(counts, (k*V + i)*T, dest, 0, T);
+	}
+	
+	public void add(int i, int j, int k, int delta) {
+		counts[(k*V + i)*T + j] += delta;
+	}
+	
+	public OpinionWordCounts copy() {
+		DenseOpinionWordCounts copy = new DenseOpinionWordCounts(V, T, W);
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		
+		return copy;
+	}
+	
+	public void merge(OpinionWordCounts[] local, int part, int nparts) {
+		// the parts are ranges of words, which are contiguous in the array
+		int start = (int) (((long) W * part) / nparts) * V * T;
+		int end = (int) (((long) W * (part + 1)) / nparts) * V * T;
+		
+		for (int x = start; x < end; x++) {
+			int sum = counts[x];
+			for (int w = 0; w < local.length; w++) {
+				sum += ((DenseOpinionWordCounts) local[w]).counts[x] - counts[x];
+			}
+			counts[x] = sum;
+		}
+		
+		for (int w = 0; w < local.length; w++) {
+			System.arraycopy(counts, start, ((DenseOpinionWordCounts) local[w]).counts, start, end - start);
+		}
+	}
+}
@@ -33,22 +33,58 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * Dictionary of the words, which maps them to consecutive ids. The words are
+ * stored in an array indexed by id, and their UTF-8 bytes in a pool indexed
+ * by an open-addressing hash table, so that a word can also be looked up
+ * from its bytes without decoding them. A frozen copy of a dictionary (see
+ * freeze()) cannot be modified, and can be read by several threads at once.
+ */
 public class Dictionary {
-	public Map<String,Integer> word2id;
-	public Map<Integer, String> id2word;
-		
+	private String[] words; // words[id]: word with the given id, null if there is none
+	private int nwords; // number of words
+	
+	// UTF-8 bytes of the words, in their order of insertion (entries)
+	private byte[] pool;
+	private int[] entryStart; // entryStart[e]: offset in pool of the bytes of entry e, size nwords + 1
+	private int[] entryId; // entryId[e]: id of the word of entry e
+	private int[] table; // hash table of the entries, e + 1 for entry e and 0 for an empty slot
+	
+	private final boolean frozen;
+	
 	//--------------------------------------------------
 	// Constructors
 	//--------------------------------------------------
 	
 	public Dictionary() {
-		word2id = new HashMap<String, Integer>();
-		id2word = new HashMap<Integer, String>();
+		words = new String[64];
+		nwords = 0;
+		pool = new byte[1 << 10];
+		entryStart = new int[65];
+		entryId = new int[64];
+		table = new int[128];
+		frozen = false;
+	}
+	
+	/**
+	 * Create a frozen copy of a dictionary, with arrays trimmed to its
+	 * size.
+	 */
+	private Dictionary(Dictionary dict) {
+		int maxId = -1;
+		for (int e = 0; e < dict.nwords; e++) {
+			maxId = Math.max(maxId, dict.entryId[e]);
+		}
+		words = Arrays.copyOf(dict.words, maxId + 1);
+		nwords = dict.nwords;
+		pool = Arrays.copyOf(dict.pool, dict.entryStart[dict.nwords]);
+		entryStart = Arrays.copyOf(dict.entryStart, dict.nwords + 1);
+		entryId = Arrays.copyOf(dict.entryId, dict.nwords);
+		table = dict.table.clone();
+		frozen = true;
 	}
 	
 	//---------------------------------------------------
@@ -56,11 +92,36 @@ public class Dictionary {
 	//---------------------------------------------------
 	
 	public String getWord(int id) {
-		return id2word.get(id);
+		return (id >= 0 && id < words.length ? words[id] : null);
 	}
 	
 	public Integer getID(String word) {
-		return word2id.get(word);
+		byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+		int e = find(bytes, 0, bytes.length);
+		return (e >= 0 ? entryId[e] : null);
+	}
+	
+	/**
+	 * @return the id of the word whose UTF-8 bytes are bytes[start] to
+	 * bytes[end - 1], -1 if it is not in this dictionary
+	 */
+	public int getID(byte[] bytes, int start, int end) {
+		int e = find(bytes, start, end);
+		return (e >= 0 ? entryId[e] : -1);
+	}
+	
+	/**
+	 * @return the number of words
+	 */
+	public int size() {
+		return nwords;
+	}
+	
+	/**
+	 * @return whether this dictionary is frozen (read-only)
+	 */
+	public boolean isFrozen() {
+		return frozen;
 	}
 	
 	//----------------------------------------------------
@@ -71,14 +132,14 @@ public class Dictionary {
 	 * Check if this dictionary contains a specified word.
 	 */
 	public boolean contains(String word) {
-		return word2id.containsKey(word);
+		return getID(word) != null;
 	}
 	
 	/**
 	 * Check if this dictionary contains a specified id.
 	 */
 	public boolean contains(int id) {
-		return id2word.containsKey(id);
+		return getWord(id) != null;
 	}
 	
 	//---------------------------------------------------
@@ -90,15 +151,127 @@ public class Dictionary {
 	 * @return the id of the added word
 	 */
 	public int addWord(String word) {
-		if (!contains(word)) {
-			int id = word2id.size();
-			
-			word2id.put(word, id);
-			id2word.put(id,word);
-			
-			return id;
+		byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+		return addWord(bytes, 0, bytes.length, word);
+	}
+	
+	/**
+	 * Add the word whose UTF-8 bytes are bytes[start] to bytes[end - 1]
+	 * into this dictionary.
+	 * @return the id of the added word
+	 */
+	public int addWord(byte[] bytes, int start, int end) {
+		return addWord(bytes, start, end, null);
+	}
+	
+	/**
+	 * @return a frozen copy of this dictionary, which cannot be modified
+	 */
+	public Dictionary freeze() {
+		return (frozen ? this : new Dictionary(this));
+	}
+	
+	/**
+	 * Add a word, given by its bytes and optionally as a string, with the
+	 * next id if it is new.
+	 */
+	private int addWord(byte[] bytes, int start, int end, String word) {
+		int e = find(bytes, start, end);
+		if (e >= 0) {
+			return entryId[e];
+		}
+		
+		int id = nwords;
+		while (id < words.length && words[id] != null) {
+			// ids read from a word map may not be consecutive
+			id++;
+		}
+		put(bytes, start, end, (word != null ? word : new String(bytes, start, end - start, StandardCharsets.UTF_8)), id);
+		return id;
+	}
+	
+	/**
+	 * Add a new word with the given id.
+	 */
+	private void put(byte[] bytes, int start, int end, String word, int id) {
+		if (frozen) {
+			throw new IllegalStateException("The dictionary is frozen");
+		}
+		
+		int e = nwords;
+		int length = end - start;
+		if (entryStart[e] + length > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(2*pool.length, entryStart[e] + length));
+		}
+		System.arraycopy(bytes, start, pool, entryStart[e], length);
+		if (e + 2 > entryStart.length) {
+			entryStart = Arrays.copyOf(entryStart, 2*entryStart.length);
+			entryId = Arrays.copyOf(entryId, entryStart.length - 1);
+		}
+		entryStart[e + 1] = entryStart[e] + length;
+		entryId[e] = id;
+		
+		if (id >= words.length) {
+			words = Arrays.copyOf(words, Math.max(2*words.length, id + 1));
+		}
+		words[id] = word;
+		nwords++;
+		
+		if (2*nwords > table.length) {
+			rehash();
 		} else {
-			return getID(word);		
+			table[slot(bytes, start, end)] = e + 1;
+		}
+	}
+	
+	/**
+	 * @return the entry of the word with the given bytes, -1 if there is
+	 * none
+	 */
+	private int find(byte[] bytes, int start, int end) {
+		return table[slot(bytes, start, end)] - 1;
+	}
+	
+	/**
+	 * @return the slot of the table holding the word with the given bytes,
+	 * or the empty slot where it would be inserted
+	 */
+	private int slot(byte[] bytes, int start, int end) {
+		int mask = table.length - 1;
+		int slot = hash(bytes, start, end) & mask;
+		while (table[slot] != 0 && !entryEquals(table[slot] - 1, bytes, start, end)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private boolean entryEquals(int e, byte[] bytes, int start, int end) {
+		if (entryStart[e + 1] - entryStart[e] != end - start) {
+			return false;
+		}
+		for (int i = start, j = entryStart[e]; i < end; i++, j++) {
+			if (bytes[i] != pool[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * FNV-1a hash of the bytes.
+	 */
+	private static int hash(byte[] bytes, int start, int end) {
+		int hash = 0x811C9DC5;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ bytes[i]) * 0x01000193;
+		}
+		return hash;
+	}
+	
+	private void rehash() {
+		table = new int[2*table.length];
+		for (int e = 0; e < nwords; e++) {
+			table[slot(pool, entryStart[e], entryStart[e + 1])] = e + 1;
 		}
 	}
 	
@@ -112,26 +285,44 @@ public class Dictionary {
 	public boolean readWordMap(String wordMapFile) {		
 		try {
 			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(wordMapFile), "UTF-8"));
+					new FileInputStream(wordMapFile), StandardCharsets.UTF_8), 1 << 16);
 			String line;
 			
 			//read the number of words
 			line = reader.readLine();			
-			int nwords = Integer.parseInt(line);
+			int nwords = Integer.parseInt(line.trim());
 			
-			//read map
+			//read map: each line holds a word and its id
 			for (int i = 0; i < nwords; ++i) {
 				line = reader.readLine();
-				StringTokenizer tknr = new StringTokenizer(line, " \t\n\r");
+				if (line == null) {
+					break;
+				}
 				
-				if (tknr.countTokens() != 2) continue;
+				int wordStart = skipSpaces(line, 0);
+				int wordEnd = skipWord(line, wordStart);
+				int idStart = skipSpaces(line, wordEnd);
+				int idEnd = skipWord(line, idStart);
+				if (wordStart == wordEnd || idStart == idEnd || skipSpaces(line, idEnd) != line.length()) {
+					continue;
+				}
 				
-				String word = tknr.nextToken();
-				String id = tknr.nextToken();
-				int intID = Integer.parseInt(id);
+				String word = line.substring(wordStart, wordEnd);
+				int id = Integer.parseInt(line.substring(idStart, idEnd));
 				
-				id2word.put(intID, word);
-				word2id.put(word, intID);
+				byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+				int e = find(bytes, 0, bytes.length);
+				if (e >= 0) {
+					// the word is moved to its new id
+					words[entryId[e]] = null;
+					entryId[e] = id;
+					if (id >= words.length) {
+						words = Arrays.copyOf(words, Math.max(2*words.length, id + 1));
+					}
+					words[id] = word;
+				} else {
+					put(bytes, 0, bytes.length, word, id);
+				}
 			}
 			
 			reader.close();
@@ -143,21 +334,44 @@ public class Dictionary {
 		}		
 	}
 	
+	private static int skipSpaces(String line, int i) {
+		while (i < line.length() && isSpace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static int skipWord(String line, int i) {
+		while (i < line.length() && !isSpace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	/**
+	 * Write the dictionary to a file, with the words in the order of their
+	 * ids.
+	 */
 	public boolean writeWordMap(String wordMapFile) {
 		try {
 			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(wordMapFile), "UTF-8"));
+					new FileOutputStream(wordMapFile), StandardCharsets.UTF_8), 1 << 16);
 			
 			//write number of words
-			writer.write(word2id.size() + "\n");
+			writer.write(nwords + "\n");
 			
 			//write word to id
-			Iterator<String> it = word2id.keySet().iterator();
-			while (it.hasNext()) {
-				String key = it.next();
-				Integer value = word2id.get(key);
-				
-				writer.write(key + " " + value + "\n");
+			for (int id = 0; id < words.length; id++) {
+				if (words[id] != null) {
+					writer.write(words[id]);
+					writer.write(' ');
+					writer.write(Integer.toString(id));
+					writer.write('\n');
+				}
 			}
 			
 			writer.close();
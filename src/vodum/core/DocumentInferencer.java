@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+import vodum.utils.LogGammaCache;
+import vodum.utils.Xoshiro256;
+
+/**
+ * Sampler of the assignments of new documents taken one at a time (batch
+ * inference, ViewpointScorer): the assignments of a document are sampled
+ * against the counts of the training model, which are only read, and
+ * against the counts of the document itself, but not against those of the
+ * other new documents. The counts of the document are kept for its
+ * distinct words only, so that a sampler is cheap to run on a short
+ * document. The opinion word counts of the training model, which are read
+ * for every viewpoint at every iteration, are gathered once into a table
+ * for all the distinct opinion words of the documents sampled together (a
+ * batch), so that the documents of a batch share these reads. A sampler is
+ * not thread-safe: every thread owns its sampler, and the documents sampled
+ * concurrently must be distinct.
+ */
+public class DocumentInferencer {
+	
+	private final Model trnModel; // training model, whose hyperparameters are used
+	private final int[] lid2gid; // lid2gid[_k]: id in the training model of the word with local id _k
+	private final int T;
+	private final int V;
+	
+	// Log-gamma caches of the rising factorials in the sampling distributions
+	private final LogGammaCache alphaCache; // log(gamma(alpha + n))
+	private final LogGammaCache talphaCache; // log(gamma(T*alpha + n))
+	private final LogGammaCache beta0Cache; // log(gamma(beta0 + n))
+	private final LogGammaCache w0beta0Cache; // log(gamma(W0*beta0 + n))
+	private final LogGammaCache beta1Cache; // log(gamma(beta1 + n))
+	private final LogGammaCache w1beta1Cache; // log(gamma(W1*beta1 + n))
+	
+	// Counts of the current document, all assigned to its viewpoint
+	private final int[] nz; // nz[j]: number of sentences assigned to topic j, size T
+	private final int[] n0zsum; // n0zsum[j]: number of topical words assigned to topic j, size T
+	private final int[] n1zsum; // n1zsum[j]: number of opinion words assigned to topic j, size T
+	private int[] n0zw; // n0zw[x*T + j]: number of instances of the x-th distinct topical word assigned to topic j
+	private int[] n1zw; // n1zw[x*T + j]: number of instances of the x-th distinct opinion word assigned to topic j
+	
+	// Distinct words of the current document
+	private final int[] slots0; // slots0[_k]: index of topical word _k among the distinct topical words, -1 if it does not occur, size W
+	private final int[] slots1; // slots1[_k]: idem for the opinion words
+	private int[] words0; // words0[x]: local id of the x-th distinct topical word
+	private int[] words1; // words1[x]: local id of the x-th distinct opinion word
+	private int nwords0;
+	private int nwords1;
+	
+	// Opinion word counts of the training model for the distinct opinion words of the current batch
+	private final int[] batchSlots; // batchSlots[_k]: index of opinion word _k among the distinct opinion words of the batch, -1 if it does not occur, size W
+	private int[] batchWords; // batchWords[b]: local id of the b-th distinct opinion word of the batch
+	private int nbatchWords;
+	private int[] trnN1vz; // trnN1vz[(b*V + i)*T + j]: count in the training model of the b-th opinion word of the batch for viewpoint i and topic j
+	
+	private final int[] trnN1z; // trnN1z[j]: count of an opinion word for topic j in the training model, size T
+	private final double[] logP; // log probabilities of the topics or of the viewpoints, size max(T, V)
+	private final double[] p; // cumulated probabilities of the topics or of the viewpoints, size max(T, V)
+	
+	/**
+	 * @param trnModel training model
+	 * @param lid2gid ids in the training model of the words of the new
+	 * documents, whose local ids range from 0 to lid2gid.length - 1
+	 */
+	public DocumentInferencer(Model trnModel, int[] lid2gid) {
+		this.trnModel = trnModel;
+		this.lid2gid = lid2gid;
+		this.T = trnModel.T;
+		this.V = trnModel.V;
+		
+		alphaCache = new LogGammaCache(trnModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		talphaCache = new LogGammaCache(T * trnModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		beta0Cache = new LogGammaCache(trnModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		w0beta0Cache = new LogGammaCache(trnModel.W0 * trnModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		beta1Cache = new LogGammaCache(trnModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+		w1beta1Cache = new LogGammaCache(trnModel.W1 * trnModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+		
+		nz = new int[T];
+		n0zsum = new int[T];
+		n1zsum = new int[T];
+		n0zw = new int[16*T];
+		n1zw = new int[16*T];
+		
+		slots0 = new int[lid2gid.length];
+		slots1 = new int[lid2gid.length];
+		Arrays.fill(slots0, -1);
+		Arrays.fill(slots1, -1);
+		words0 = new int[16];
+		words1 = new int[16];
+		
+		batchSlots = new int[lid2gid.length];
+		Arrays.fill(batchSlots, -1);
+		batchWords = new int[64];
+		trnN1vz = new int[64*V*T];
+		
+		trnN1z = new int[T];
+		logP = new double[Math.max(T, V)];
+		p = new double[Math.max(T, V)];
+	}
+	
+	/**
+	 * Sample the assignments of a document, starting from its current
+	 * assignments (see sampleDocument()).
+	 */
+	public int sample(Corpus corpus, int d, int[] z, int niters, Xoshiro256 random, double[] viewpoints) {
+		gather(corpus, d, d + 1);
+		int viewpoint = sampleDocument(corpus, d, z, niters, random, viewpoints);
+		release();
+		
+		return viewpoint;
+	}
+	
+	/**
+	 * Sample the assignments of all the documents of a corpus as a batch:
+	 * the documents are sampled one after the other, as by sample(), but
+	 * the opinion word counts of the training model are gathered once for
+	 * all of them. The samples are the same as with sample().
+	 * @param z z[d]: topics of the sentences of document d, sampled in place
+	 * @param random random[d]: random number generator of document d
+	 * @param viewpoints viewpoints[d]: array of size V receiving the
+	 * probability of each viewpoint of document d (see sample()), or null
+	 * @return the viewpoint of each document
+	 */
+	public int[] sampleAll(Corpus corpus, int[][] z, int niters, Xoshiro256[] random, double[][] viewpoints) {
+		int[] v = new int[corpus.D];
+		
+		gather(corpus, 0, corpus.D);
+		for (int d = 0; d < corpus.D; d++) {
+			v[d] = sampleDocument(corpus, d, z[d], niters, random[d], (viewpoints != null ? viewpoints[d] : null));
+		}
+		release();
+		
+		return v;
+	}
+	
+	/**
+	 * Gather the opinion word counts of the training model for the
+	 * distinct opinion words of documents start to end (excluded).
+	 */
+	private void gather(Corpus corpus, int start, int end) {
+		for (int s = corpus.docStart[start]; s < corpus.docStart[end]; s++) {
+			for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+				int k = corpus.n1Words[x];
+				if (batchSlots[k] < 0) {
+					if (nbatchWords == batchWords.length) {
+						batchWords = Arrays.copyOf(batchWords, 2*nbatchWords);
+					}
+					batchWords[nbatchWords] = k;
+					batchSlots[k] = nbatchWords++;
+				}
+			}
+		}
+		
+		if (trnN1vz.length < nbatchWords*V*T) {
+			trnN1vz = new int[nbatchWords*V*T];
+		}
+		for (int b = 0; b < nbatchWords; b++) {
+			for (int i = 0; i < V; i++) {
+				trnModel.n1vzw.getTopics(i, lid2gid[batchWords[b]], trnN1z);
+				System.arraycopy(trnN1z, 0, trnN1vz, (b*V + i)*T, T);
+			}
+		}
+	}
+	
+	/**
+	 * Forget the distinct opinion words of the batch.
+	 */
+	private void release() {
+		for (int b = 0; b < nbatchWords; b++) {
+			batchSlots[batchWords[b]] = -1;
+		}
+		nbatchWords = 0;
+	}
+	
+	/**
+	 * Sample the assignments of a document of the current batch, starting
+	 * from its current assignments.
+	 * @param corpus corpus of the document, whose word ids are local ids
+	 * @param d index of the document in the corpus
+	 * @param z topics of the sentences of the document, sampled in place
+	 * @param niters number of iterations, at least 1
+	 * @param random random number generator of the document
+	 * @param viewpoints array of size V receiving the probability of each
+	 * viewpoint given the topics, averaged over the second half of the
+	 * iterations, or null
+	 * @return the viewpoint of the document
+	 */
+	private int sampleDocument(Corpus corpus, int d, int[] z, int niters, Xoshiro256 random, double[] viewpoints) {
+		int M = corpus.length(d);
+		int viewpoint = 0;
+		
+		initCounts(corpus, d, z);
+		if (viewpoints != null) {
+			Arrays.fill(viewpoints, 0, V, 0);
+		}
+		
+		for (int iter = 0; iter < niters; iter++) {
+			// sample from p(v[d] | z[d], w[d], p[d])
+			viewpoint = sampleViewpoint(M, random);
+			if (viewpoints != null && iter >= niters/2) {
+				// p holds the cumulated probabilities of the viewpoints
+				for (int i = 0; i < V; i++) {
+					viewpoints[i] += (p[i] - (i > 0 ? p[i - 1] : 0))/p[V - 1];
+				}
+			}
+			
+			for (int m = 0; m < M; m++) {
+				// sample from p(z[d][m] | v[d], z[d]_-m, w[d], p[d])
+				z[m] = sampleTopic(corpus, corpus.sentence(d, m), z[m], viewpoint, M, random);
+			}
+		}
+		
+		if (viewpoints != null) {
+			int nsamples = niters - niters/2;
+			for (int i = 0; i < V; i++) {
+				viewpoints[i] /= nsamples;
+			}
+		}
+		
+		for (int x = 0; x < nwords0; x++) {
+			slots0[words0[x]] = -1;
+		}
+		for (int x = 0; x < nwords1; x++) {
+			slots1[words1[x]] = -1;
+		}
+		
+		return viewpoint;
+	}
+	
+	/**
+	 * Index the distinct words of document d, and count its words and
+	 * sentences for each topic.
+	 */
+	private void initCounts(Corpus corpus, int d, int[] z) {
+		Arrays.fill(nz, 0);
+		Arrays.fill(n0zsum, 0);
+		Arrays.fill(n1zsum, 0);
+		nwords0 = 0;
+		nwords1 = 0;
+		
+		for (int m = 0; m < z.length; m++) {
+			int s = corpus.sentence(d, m);
+			for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+				int k = corpus.n0Words[x];
+				if (slots0[k] < 0) {
+					if (nwords0 == words0.length) {
+						words0 = Arrays.copyOf(words0, 2*nwords0);
+					}
+					words0[nwords0] = k;
+					slots0[k] = nwords0++;
+				}
+			}
+			for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+				int k = corpus.n1Words[x];
+				if (slots1[k] < 0) {
+					if (nwords1 == words1.length) {
+						words1 = Arrays.copyOf(words1, 2*nwords1);
+					}
+					words1[nwords1] = k;
+					slots1[k] = nwords1++;
+				}
+			}
+		}
+		
+		if (n0zw.length < nwords0*T) {
+			n0zw = new int[nwords0*T];
+		}
+		if (n1zw.length < nwords1*T) {
+			n1zw = new int[nwords1*T];
+		}
+		Arrays.fill(n0zw, 0, nwords0*T, 0);
+		Arrays.fill(n1zw, 0, nwords1*T, 0);
+		
+		for (int m = 0; m < z.length; m++) {
+			addSentence(corpus, corpus.sentence(d, m), z[m], 1);
+		}
+	}
+	
+	/**
+	 * Add the counts of sentence s to topic j (sign = 1), or remove them
+	 * (sign = -1).
+	 */
+	private void addSentence(Corpus corpus, int s, int j, int sign) {
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			int kcount = sign*corpus.n0Counts[x];
+			n0zw[slots0[corpus.n0Words[x]]*T + j] += kcount;
+			n0zsum[j] += kcount;
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			int kcount = sign*corpus.n1Counts[x];
+			n1zw[slots1[corpus.n1Words[x]]*T + j] += kcount;
+			n1zsum[j] += kcount;
+		}
+		nz[j] += sign;
+	}
+	
+	/**
+	 * Sample the viewpoint of the current document, with M sentences.
+	 */
+	private int sampleViewpoint(int M, Xoshiro256 random) {
+		// the products over the occurrences of a topic (resp. word) are
+		// rising factorials, computed as differences of log-gamma functions
+		for (int i = 0; i < V; i++) {
+			logP[i] = Math.log(trnModel.eta + trnModel.nv[i]) - talphaCache.logRising(trnModel.nvzsum[i], M);
+			
+			for (int j = 0; j < T; j++) {
+				if (nz[j] > 0) {
+					logP[i] += alphaCache.logRising(trnModel.nvz[i][j], nz[j]);
+					logP[i] -= w1beta1Cache.logRising(trnModel.n1vzwsum[i][j], n1zsum[j]);
+				}
+			}
+			
+			for (int x = 0; x < nwords1; x++) {
+				int trnOffset = (batchSlots[words1[x]]*V + i)*T;
+				int offset = x*T;
+				for (int j = 0; j < T; j++) {
+					if (n1zw[offset + j] > 0) {
+						logP[i] += beta1Cache.logRising(trnN1vz[trnOffset + j], n1zw[offset + j]);
+					}
+				}
+			}
+		}
+		
+		return sample(V, random);
+	}
+	
+	/**
+	 * Sample the topic of sentence s of the current document, with M
+	 * sentences.
+	 */
+	private int sampleTopic(Corpus corpus, int s, int topic, int viewpoint, int M, Xoshiro256 random) {
+		addSentence(corpus, s, topic, -1);
+		
+		// the denominator of the viewpoint-topic factor, which does not
+		// depend on the topic, is left out
+		for (int j = 0; j < T; j++) {
+			logP[j] = Math.log(trnModel.alpha + trnModel.nvz[viewpoint][j] + nz[j])
+					- w0beta0Cache.logRising(trnModel.n0zwsum[j] + n0zsum[j], corpus.N0(s))
+					- w1beta1Cache.logRising(trnModel.n1vzwsum[viewpoint][j] + n1zsum[j], corpus.N1(s));
+		}
+		
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			int _k = corpus.n0Words[x];
+			int trnOffset = lid2gid[_k]*T;
+			int offset = slots0[_k]*T;
+			int kcount = corpus.n0Counts[x];
+			for (int j = 0; j < T; j++) {
+				logP[j] += beta0Cache.logRising(trnModel.n0zw[trnOffset + j] + n0zw[offset + j], kcount);
+			}
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			int _k = corpus.n1Words[x];
+			int trnOffset = (batchSlots[_k]*V + viewpoint)*T;
+			int offset = slots1[_k]*T;
+			int kcount = corpus.n1Counts[x];
+			for (int j = 0; j < T; j++) {
+				logP[j] += beta1Cache.logRising(trnN1vz[trnOffset + j] + n1zw[offset + j], kcount);
+			}
+		}
+		
+		topic = sample(T, random);
+		addSentence(corpus, s, topic, 1);
+		
+		return topic;
+	}
+	
+	/**
+	 * Draw an index from 0 to n - 1 with probability proportional to
+	 * exp(logP[index]).
+	 */
+	private int sample(int n, Xoshiro256 random) {
+		double maxLogP = Double.NEGATIVE_INFINITY;
+		for (int x = 0; x < n; x++) {
+			if (logP[x] > maxLogP) {
+				maxLogP = logP[x];
+			}
+		}
+		
+		// cumulate the normalized probabilities
+		p[0] = Math.exp(logP[0] - maxLogP);
+		for (int x = 1; x < n; x++) {
+			p[x] = p[x - 1] + Math.exp(logP[x] - maxLogP);
+		}
+		
+		double u = random.nextDouble() * p[n - 1];
+		for (int x = 0; x < n; x++) {
+			if (p[x] > u) {
+				return x;
+			}
+		}
+		
+		// rounding errors
+		return n - 1;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+/**
+ * Counts of the sentences and of the opinion words of a document per
+ * topic, i.e., the contribution of the document to nvz, n1vzwsum and
+ * n1vzw for its viewpoint. They are updated whenever the topic of a
+ * sentence changes, so that the viewpoint sampling of the document does
+ * not go through its sentences.
+ * The (topic, opinion word) counts are stored in an open-addressing hash
+ * table with linear probing, and the topics in small arrays.
+ */
+public class DocumentOpinionCounts {
+	
+	private static final int INITIAL_CAPACITY = 8; // capacity of a new pair table (a power of 2)
+	
+	private long[] keys; // keys[s]: pair (j, k) of topic j and opinion word k stored in slot s, as (j << 32) | k
+	private int[] values; // values[s]: count of the pair stored in slot s, 0 for an empty slot
+	private int size; // number of pairs stored in the table
+	
+	private int[] topics; // topics[t]: t-th topic assigned to sentences of the document, size ntopics (or more)
+	private int[] sentenceCounts; // sentenceCounts[t]: number of sentences assigned to topics[t]
+	private int[] opinionCounts; // opinionCounts[t]: number of opinion word occurrences in the sentences assigned to topics[t]
+	private int ntopics; // number of topics assigned to sentences of the document
+	
+	/**
+	 * Count the sentences and opinion words of the document per topic.
+	 * @param corpus the corpus of the document
+	 * @param d index of the document
+	 * @param zAssign topics of the sentences of the document
+	 */
+	public DocumentOpinionCounts(Corpus corpus, int d, int[] zAssign) {
+		keys = new long[INITIAL_CAPACITY];
+		values = new int[INITIAL_CAPACITY];
+		topics = new int[4];
+		sentenceCounts = new int[4];
+		opinionCounts = new int[4];
+		
+		for (int m = 0; m < corpus.length(d); m++) {
+			addSentence(corpus, corpus.sentence(d, m), zAssign[m], 1);
+		}
+	}
+	
+	/**
+	 * Move the counts of a sentence of the document from topic from to topic to.
+	 * @param corpus the corpus of the document
+	 * @param s index in the corpus of the sentence
+	 */
+	public void moveSentence(Corpus corpus, int s, int from, int to) {
+		if (from != to) {
+			addSentence(corpus, s, from, -1);
+			addSentence(corpus, s, to, 1);
+		}
+	}
+	
+	private void addSentence(Corpus corpus, int s, int topic, int sign) {
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			add(((long) topic << 32) | corpus.n1Words[x], sign*corpus.n1Counts[x]);
+		}
+		
+		int t = 0;
+		while (t < ntopics && topics[t] != topic) {
+			t++;
+		}
+		if (t == ntopics) {
+			// new topic for this document
+			if (ntopics == topics.length) {
+				topics = Arrays.copyOf(topics, 2*ntopics);
+				sentenceCounts = Arrays.copyOf(sentenceCounts, 2*ntopics);
+				opinionCounts = Arrays.copyOf(opinionCounts, 2*ntopics);
+			}
+			topics[t] = topic;
+			sentenceCounts[t] = 0;
+			opinionCounts[t] = 0;
+			ntopics++;
+		}
+		
+		sentenceCounts[t] += sign;
+		opinionCounts[t] += sign*corpus.N1(s);
+		if (sentenceCounts[t] == 0) {
+			// the last topic takes the place of the removed one
+			ntopics--;
+			topics[t] = topics[ntopics];
+			sentenceCounts[t] = sentenceCounts[ntopics];
+			opinionCounts[t] = opinionCounts[ntopics];
+		}
+	}
+	
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	private void add(long key, int delta) {
+		int mask = keys.length - 1;
+		int s = hash(key) & mask;
+		while (values[s] != 0 && keys[s] != key) {
+			s = (s + 1) & mask;
+		}
+		
+		if (values[s] != 0) {
+			values[s] += delta;
+			if (values[s] == 0) {
+				remove(s);
+			}
+		} else {
+			// new pair for this document
+			keys[s] = key;
+			values[s] = delta;
+			size++;
+			if (2*size > keys.length) {
+				rehash(2*keys.length);
+			}
+		}
+	}
+	
+	/**
+	 * Remove the pair in slot s, shifting back the following pairs of its
+	 * probe sequence.
+	 */
+	private void remove(int s) {
+		int mask = keys.length - 1;
+		
+		int hole = s;
+		for (int next = (hole + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+			// the pair can fill the hole if the hole lies between its home slot and its slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		values[hole] = 0;
+		size--;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		int mask = capacity - 1;
+		
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldValues[s] != 0) {
+				int t = hash(oldKeys[s]) & mask;
+				while (values[t] != 0) {
+					t = (t + 1) & mask;
+				}
+				keys[t] = oldKeys[s];
+				values[t] = oldValues[s];
+			}
+		}
+	}
+	
+	//---------------------------------------------------------------
+	// Accessors, for iterating over the topics and the pairs
+	//---------------------------------------------------------------
+	
+	/**
+	 * @return the number of topics assigned to sentences of the document
+	 */
+	public int topicCount() {
+		return ntopics;
+	}
+	
+	public int topic(int t) {
+		return topics[t];
+	}
+	
+	public int sentenceCount(int t) {
+		return sentenceCounts[t];
+	}
+	
+	public int opinionCount(int t) {
+		return opinionCounts[t];
+	}
+	
+	/**
+	 * @return the number of slots of the pair table, some of which are empty
+	 */
+	public int slotCount() {
+		return keys.length;
+	}
+	
+	/**
+	 * @return the count of the pair in slot s, 0 if the slot is empty
+	 */
+	public int pairCount(int s) {
+		return values[s];
+	}
+	
+	public int pairTopic(int s) {
+		return (int) (keys[s] >>> 32);
+	}
+	
+	public int pairWord(int s) {
+		return (int) keys[s];
+	}
+}
@@ -55,9 +55,17 @@ package vodum.core;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
+import vodum.utils.AliasTable;
+import vodum.utils.LogGammaCache;
 import vodum.utils.Utils;
 
 public class Estimator {
@@ -65,35 +73,235 @@ public class Estimator {
 	protected Model trnModel; // output model
 	CmdOption option;
 	
+	// Variables for parallel sampling
+	private ExecutorService executor; // thread pool running the workers, null if sampling is sequential
+	private Estimator[] workers; // worker estimators, each sampling its own partition of the documents
+	private int[] workerDocStart; // workerDocStart[w]: index of the first document sampled by worker w, size nthreads + 1
+	
+	// Variables for background saving
+	private ExecutorService saver; // thread saving the samples of the chain while the sampling goes on, null if samples are saved synchronously
+	private Semaphore saveSlots; // one permit per sample that can be saved or wait to be saved at once
+	private List<Future<Void>> saves; // samples saved or being saved in the background
+	
+	// Variables for early stopping (-convstep)
+	private ConvergenceMonitor convergence; // R-hat diagnostic shared by the chains sampled concurrently, null if each chain stops on its own
+	
+	// Log-gamma caches of the rising factorials in the sampling distributions
+	private LogGammaCache alphaCache; // log(gamma(alpha + n))
+	private LogGammaCache talphaCache; // log(gamma(T*alpha + n))
+	private LogGammaCache beta0Cache; // log(gamma(beta0 + n))
+	private LogGammaCache w0beta0Cache; // log(gamma(W0*beta0 + n))
+	private LogGammaCache beta1Cache; // log(gamma(beta1 + n))
+	private LogGammaCache w1beta1Cache; // log(gamma(W1*beta1 + n))
+	
+	private int[] n1z; // n1z[j]: count of the current opinion word for topic j and the current viewpoint, size T
+	private double[] logPz; // logPz[j]: log probability of topic j for the current sentence, size T
+	private double[] logPv; // logPv[i]: log probability of viewpoint i for the current document, size V
+	private TopicKernel kernel; // kernel computing and sampling the topic probabilities
+	
+	// Variables for Metropolis-Hastings topic sampling (-sampler mh)
+	private WordOccurrenceIndex occurrences; // occurrences of the topical words, shared by all estimators, null for exact sampling
+	private AliasTable[] viewpointProposals; // viewpointProposals[i]: alias table of the topic proposal of viewpoint i, size V
+	private int[] viewpointProposalDraws; // viewpointProposalDraws[i]: number of draws from viewpointProposals[i] since it was built, size V
+	private double[] proposalWeights; // weights of the proposal being built, size T
+	
+	public Estimator() {
+	}
+	
+	/**
+	 * Create an estimator computing the parameters of a snapshot model to
+	 * save it (see saveSample()).
+	 */
+	private Estimator(CmdOption option, Model snapshot) {
+		this.option = option;
+		this.trnModel = snapshot;
+	}
+	
+	/**
+	 * Create an estimator sampling with the given (chain or worker) model.
+	 */
+	private Estimator(CmdOption option, Model trnModel, WordOccurrenceIndex occurrences) {
+		this.option = option;
+		this.trnModel = trnModel;
+		this.occurrences = occurrences;
+		initCaches();
+	}
+	
 	public boolean init(CmdOption option) throws FileNotFoundException, UnsupportedEncodingException{
 		this.option = option;
 		trnModel = new Model();
+		
+		if (option.chunksize > 0 && option.sampler.equalsIgnoreCase("mh")) {
+			System.out.println("The mh sampler is not available with -chunksize");
+			return false;
+		}
 
 		if (!trnModel.initNewModel(option)) {
 			return false;
 		}
+		
+		if (option.sampler.equalsIgnoreCase("mh")) {
+			occurrences = new WordOccurrenceIndex(trnModel.data);
+		} else if (!option.sampler.equalsIgnoreCase("exact")) {
+			System.out.println("Unknown sampler: " + option.sampler);
+			return false;
+		}
+		
+		if (!TopicKernel.isKind(option.kernel)) {
+			System.out.println("Unknown kernel: " + option.kernel);
+			return false;
+		}
+		
+		initCaches();
 
 		return true;
 	}
 	
+	/**
+	 * Init the log-gamma caches with the hyperparameters of the model, and
+	 * the buffers of the sampling.
+	 */
+	private void initCaches() {
+		n1z = new int[trnModel.T];
+		logPz = new double[trnModel.T];
+		logPv = new double[trnModel.V];
+		kernel = TopicKernel.create(trnModel.T, option.kernel);
+		viewpointProposals = new AliasTable[trnModel.V];
+		viewpointProposalDraws = new int[trnModel.V];
+		proposalWeights = new double[trnModel.T];
+		
+		alphaCache = new LogGammaCache(trnModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		talphaCache = new LogGammaCache(trnModel.T*trnModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		beta0Cache = new LogGammaCache(trnModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		w0beta0Cache = new LogGammaCache(trnModel.W0*trnModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		beta1Cache = new LogGammaCache(trnModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+		w1beta1Cache = new LogGammaCache(trnModel.W1*trnModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+	}
+	
 	public void estimate() throws FileNotFoundException, UnsupportedEncodingException {
 		System.out.println("Sampling " + trnModel.nchains + " chains of " + trnModel.niters + " iterations!");
+		System.out.println("Random seed: " + trnModel.seed);
+		System.out.println("Topic kernel: " + kernel.getName());
+		
+		int chainThreads = option.chainthreads;
+		if (chainThreads <= 0) {
+			chainThreads = Runtime.getRuntime().availableProcessors();
+		}
+		chainThreads = Math.min(chainThreads, trnModel.nchains);
+		
+		// chains sampled together also stop together, on their R-hat
+		if (option.convstep > 0 && option.rhat > 0 && trnModel.nchains > 1 && chainThreads == trnModel.nchains) {
+			convergence = new ConvergenceMonitor(trnModel.nchains, option.rhat, 2*option.convwindow);
+		}
+		
+		if (chainThreads <= 1) {
+			for (int currentChain = 1; currentChain <= trnModel.nchains; currentChain++) {
+				// the first chain is sampled with the model initialized by init()
+				Estimator chainEstimator = (currentChain == 1 ? this : newChainEstimator(currentChain));
+				chainEstimator.estimateChain(currentChain);
+			} // end chains
+		} else {
+			System.out.println("Sampling " + chainThreads + " chains concurrently!");
+			
+			ExecutorService chainExecutor = Executors.newFixedThreadPool(chainThreads);
+			try {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (int currentChain = 1; currentChain <= trnModel.nchains; currentChain++) {
+					final int chain = currentChain;
+					tasks.add(new Callable<Void>() {
+						public Void call() throws Exception {
+							// chain models are created when their chain starts so that
+							// only the running chains hold count variables
+							Estimator chainEstimator = (chain == 1 ? Estimator.this : newChainEstimator(chain));
+							chainEstimator.estimateChain(chain);
+							return null;
+						}
+					});
+				}
+				runTasks(chainExecutor, tasks);
+			} finally {
+				chainExecutor.shutdown();
+			}
+		}
+		
+		System.out.println("Gibbs sampling completed!\n");
+	}
+	
+	/**
+	 * Create the estimator of a new chain. Its model has its own count
+	 * variables and random number generator stream, but shares the dataset
+	 * (and thus the dictionary) read by init(), which is never modified by
+	 * the sampling.
+	 * @param chain index of the chain, starting from 1
+	 */
+	private Estimator newChainEstimator(int chain) {
+		Model chainModel = new Model();
+		if (!chainModel.initNewModel(option, trnModel.data, trnModel.seed, chain)) {
+			throw new IllegalStateException("Fail to initialize the model of a new chain");
+		}
+		
+		Estimator chainEstimator = new Estimator(option, chainModel, occurrences);
+		chainEstimator.convergence = convergence;
+		return chainEstimator;
+	}
+	
+	/**
+	 * Run all the iterations of a chain and save its samples.
+	 * @param currentChain index of the chain, starting from 1
+	 */
+	private void estimateChain(int currentChain) {
+		// a resumed chain reports its past checks again, so that the
+		// R-hat of the chains is the same as in an uninterrupted run
+		if (convergence != null) {
+			convergence.restore(currentChain, trnModel.reportedLogLikelihoods);
+		}
 		
-		for (int currentChain = 1; currentChain <= trnModel.nchains; currentChain++) {
-			for (int currentIter = 1; currentIter <= trnModel.niters; currentIter++) {
+		// a chain whose final sample was saved is not sampled again
+		if (trnModel.finished) {
+			System.out.println("Chain " + currentChain + " was already finished at iteration " + trnModel.iteration + "!");
+			if (convergence != null) {
+				convergence.leave(currentChain);
+			}
+			return;
+		}
+		
+		if (option.nthreads > 1) {
+			executor = Executors.newFixedThreadPool(option.nthreads);
+			initWorkers();
+		}
+		
+		// the assignments of a chunked corpus are overwritten by the
+		// sampling, so they cannot be saved in the background
+		if (option.savequeue > 0 && trnModel.data.chunks == null) {
+			saver = Executors.newSingleThreadExecutor();
+			saveSlots = new Semaphore(option.savequeue + 1);
+			saves = new ArrayList<Future<Void>>();
+		}
+		
+		try {
+			// a chain resumed from a checkpoint starts after its last saved iteration
+			for (int currentIter = trnModel.iteration + 1; currentIter <= trnModel.niters; currentIter++) {
 				System.out.println("Chain " + currentChain + ", Iteration " + currentIter + "...");
 
-				for (int d = 0; d < trnModel.D; d++) {
-					for (int m = 0; m < trnModel.data.docs[d].length; m++) {
-						// sample from p(z[d][m] | v, z_-[d][m], w, x)
-						int topic = zSampling(d, m);
-						trnModel.zAssign[d][m] = topic;
-					} // end for each sentence
-					
-					// sample from p(v[d] | v_-[d], z, w, x)
-					int viewpoint = vSampling(d);
-					trnModel.vAssign[d] = viewpoint;
-				} // end for each document
+				if (trnModel.data.chunks != null) {
+					sampleChunks();
+				} else if (workers == null) {
+					sampleDocuments(0, trnModel.D);
+				} else {
+					sampleDocumentsParallel();
+				}
+				trnModel.iteration = currentIter;
+				
+				if (option.convstep > 0 && currentIter % option.convstep == 0 && currentIter != trnModel.niters) {
+					if (checkConvergence(currentChain)) {
+						System.out.println("Chain " + currentChain + " converged at iteration " + currentIter + "!");
+						// the other chains no longer wait for this one while it saves its final sample
+						if (convergence != null) {
+							convergence.leave(currentChain);
+						}
+						break;
+					}
+				}
 
 				if (option.savestep > 0) {
 					// save the model if the iterations are a multiple of savestep
@@ -101,30 +309,235 @@ public class Estimator {
 					// be saved later)
 					if ((currentIter % option.savestep == 0) && (currentIter != trnModel.niters)) {
 						System.out.println("Saving the model for chain " + currentChain + " at iteration " + currentIter + "...");
-						computeTheta();
-						computePi();
-						computePhi0();
-						computePhi1();
-						trnModel.computePerplexity();
-						trnModel.saveModel("model-" + Utils.zeroPad(currentChain, 2) + "-" + Utils.zeroPad(currentIter, 5));
+						saveSampleInBackground("model-" + Utils.zeroPad(currentChain, 2) + "-" + Utils.zeroPad(currentIter, 5));
 					}
 				}
 			} // end iterations per chain
 			
+			if (option.convstep > 0) {
+				trnModel.stopIteration = trnModel.iteration;
+			}
+			trnModel.finished = true;
+			
+			// wait for the samples saved in the background, so that their
+			// checkpoints do not replace the final one
+			if (saves != null) {
+				for (Future<Void> save : saves) {
+					save.get();
+				}
+			}
+			
 			System.out.println("Saving the final model for chain " + currentChain + "!");
-			computeTheta();
-			computePi();
-			computePhi0();
-			computePhi1();
-			trnModel.computePerplexity();
-			trnModel.saveModel("model-" + Utils.zeroPad(currentChain, 2) + "-final");
-			trnModel.data.localDict.writeWordMap(option.dir + File.separator + "model-" + Utils.zeroPad(currentChain, 2) + "-final" + Model.wordMapSuffix);
+			saveSample("model-" + Utils.zeroPad(currentChain, 2) + "-final");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Chain interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in saving: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			if (convergence != null) {
+				convergence.leave(currentChain);
+			}
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+				workers = null;
+			}
+			if (saver != null) {
+				saver.shutdown();
+				saver = null;
+				saveSlots = null;
+				saves = null;
+			}
+		}
+		
+		trnModel.data.localDict.writeWordMap(option.dir + File.separator + "model-" + Utils.zeroPad(currentChain, 2) + "-final" + Model.wordMapSuffix);
+	}
+	
+	/**
+	 * Compute the parameters of the model and save them, with the
+	 * checkpoint of the chain.
+	 * @param modelName name of the sample
+	 */
+	private void saveSample(String modelName) {
+		computeTheta();
+		computePi();
+		computePhi();
+		trnModel.computePerplexity();
+		trnModel.saveModel(modelName);
+		trnModel.saveCheckpoint();
+	}
+	
+	/**
+	 * Save a sample of the model while the sampling goes on, if there is a
+	 * background saver: a snapshot of the model is taken, and its
+	 * parameters are computed and saved by the saver thread. The sampling
+	 * is blocked while too many samples are waiting to be saved.
+	 * @param modelName name of the sample
+	 */
+	private void saveSampleInBackground(final String modelName) throws InterruptedException {
+		if (saver == null) {
+			saveSample(modelName);
+			return;
+		}
+		
+		final Semaphore slots = saveSlots;
+		slots.acquire();
+		final Estimator snapshot = new Estimator(option, trnModel.snapshot());
+		saves.add(saver.submit(new Callable<Void>() {
+			public Void call() {
+				try {
+					snapshot.saveSample(modelName);
+				} finally {
+					slots.release();
+				}
+				return null;
+			}
+		}));
+	}
+	
+	/**
+	 * Do one Gibbs sampling sweep over the documents in [dStart, dEnd).
+	 * @param dStart index of the first document
+	 * @param dEnd index of the last document (excluded)
+	 */
+	protected void sampleDocuments(int dStart, int dEnd) {
+		for (int d = dStart; d < dEnd; d++) {
+			for (int m = 0; m < trnModel.data.corpus.length(d); m++) {
+				// sample from p(z[d][m] | v, z_-[d][m], w, x)
+				int topic = zSampling(d, m);
+				trnModel.zAssign[d][m] = topic;
+			} // end for each sentence
 			
-			if (currentChain < trnModel.nchains) {
-				trnModel.initNewModel(option); // reinitialize trnModel for the next chain
+			// sample from p(v[d] | v_-[d], z, w, x)
+			int viewpoint = vSampling(d);
+			trnModel.vAssign[d] = viewpoint;
+		} // end for each document
+	}
+	
+	/**
+	 * Do one Gibbs sampling sweep over the documents of all the chunks of
+	 * the corpus (out-of-core mode), which are streamed from disk by the
+	 * model. With several threads, the documents of every chunk are
+	 * partitioned among the workers, and their counts are merged after
+	 * each chunk.
+	 */
+	private void sampleChunks() {
+		trnModel.forEachChunk(true, true, new Model.ChunkTask() {
+			public void run(int c) {
+				if (workers == null) {
+					sampleDocuments(0, trnModel.data.corpus.D);
+				} else {
+					for (Estimator worker : workers) {
+						trnModel.shareAssignments(worker.trnModel);
+					}
+					partitionDocuments();
+					sampleDocumentsParallel();
+				}
 			}
-		} // end chains
-		System.out.println("Gibbs sampling completed!\n");
+		});
+	}
+	
+	/**
+	 * Create one worker estimator per thread for the current chain and
+	 * partition the documents among them.
+	 */
+	private void initWorkers() {
+		int nthreads = Math.min(option.nthreads, trnModel.D);
+		
+		workers = new Estimator[nthreads];
+		for (int w = 0; w < nthreads; w++) {
+			workers[w] = new Estimator(option, trnModel.newWorkerModel(), occurrences);
+		}
+		
+		partitionDocuments();
+	}
+	
+	/**
+	 * Partition the documents of the current corpus among the workers so
+	 * that each worker samples about the same number of sentences.
+	 */
+	private void partitionDocuments() {
+		Corpus corpus = trnModel.data.corpus;
+		int nthreads = workers.length;
+		
+		long sentenceCount = 0;
+		for (int d = 0; d < corpus.D; d++) {
+			sentenceCount += corpus.length(d);
+		}
+		
+		workerDocStart = new int[nthreads + 1];
+		
+		int d = 0;
+		long cumulatedCount = 0;
+		for (int w = 0; w < nthreads; w++) {
+			workerDocStart[w] = d;
+			
+			// the last worker takes all the remaining documents
+			long targetCount = (w == nthreads - 1 ? sentenceCount : (sentenceCount * (w + 1)) / nthreads);
+			while (d < corpus.D && (cumulatedCount < targetCount || d == workerDocStart[w])) {
+				cumulatedCount += corpus.length(d);
+				d++;
+			}
+		}
+		workerDocStart[nthreads] = corpus.D;
+	}
+	
+	/**
+	 * Do one Gibbs sampling sweep over all documents with the workers
+	 * (approximate distributed sampling, AD-LDA): every worker samples its
+	 * own documents against a local copy of the count variables, and the
+	 * local changes are merged into the model at the end of the sweep.
+	 */
+	private void sampleDocumentsParallel() {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int w = 0; w < workers.length; w++) {
+			final Estimator worker = workers[w];
+			final int dStart = workerDocStart[w];
+			final int dEnd = workerDocStart[w + 1];
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					worker.sampleDocuments(dStart, dEnd);
+					return null;
+				}
+			});
+		}
+		runTasks(executor, tasks);
+		
+		// the merge is split among the threads
+		final Model[] workerModels = new Model[workers.length];
+		for (int w = 0; w < workers.length; w++) {
+			workerModels[w] = workers[w].trnModel;
+		}
+		
+		tasks.clear();
+		final int nparts = Math.min(workers.length, trnModel.T);
+		for (int t = 0; t < nparts; t++) {
+			final int part = t;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					trnModel.mergeWorkerCounts(workerModels, part, nparts);
+					return null;
+				}
+			});
+		}
+		runTasks(executor, tasks);
+	}
+	
+	/**
+	 * Run the tasks on a thread pool and wait for all of them to complete.
+	 */
+	private static void runTasks(ExecutorService executor, List<Callable<Void>> tasks) {
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Sampling interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in sampling: " + e.getCause().getMessage(), e.getCause());
+		}
 	}
 	
 	/**
@@ -138,66 +551,11 @@ public class Estimator {
 
 		// changing the viewpoint assignment of the current document
 		// modifies n1vzw, n1vzwsum, nvz, nvzsum and nv depending on
-		// the word occurrences in the document
-		for (int m = 0; m < trnModel.data.docs[d].length; m++) {
-			int topic = trnModel.zAssign[d][m];
-			
-			Sentence sentence = trnModel.data.docs[d].sentences[m];	
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-				trnModel.n1vzw[viewpoint][topic][k] -= kcount;
-				trnModel.n1vzwsum[viewpoint][topic] -= kcount;
-			}
-			
-			trnModel.nvz[viewpoint][topic] -= 1;
-			trnModel.nvzsum[viewpoint] -= 1;
-		}
-		trnModel.nv[viewpoint] -= 1;
-		trnModel.nvsum -= 1;
-		
-		// currentN1vzw counts the number of occurrences for each
-		// opinion word and their assigned topic in the current
-		// document, and currentNvz counts the number of sentences
-		// assigned to each topic in the current document.
-		Map<Integer, Map<Integer, Integer>> currentN1vzw = new HashMap<Integer, Map<Integer, Integer>>(); // key1=topicId, key2=wordId, val=wordCount
-		Map<Integer, Integer> currentNvz = new HashMap<Integer, Integer>(); // key=topicId, val=sentenceCount
-		for (int m = 0; m < trnModel.data.docs[d].length; m++) {
-			int topic = trnModel.zAssign[d][m];
-			
-			if (!currentN1vzw.containsKey(topic)) {
-				// this topic hasn't been seen in the document yet
-				currentN1vzw.put(topic, new HashMap<Integer, Integer>());
-			}
-			Map<Integer, Integer> currentN1vzwTopic = currentN1vzw.get(topic);
-			
-			Sentence sentence = trnModel.data.docs[d].sentences[m];
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k as an opinion word in the current sentence
-				if (!currentN1vzwTopic.containsKey(k)) {
-					// this word for this topic hasn't been seen in
-					// the document yet
-					currentN1vzwTopic.put(k, kcount);
-				} else {
-					// this word for this topic has already been
-					// seen in the document
-					currentN1vzwTopic.put(k, kcount + currentN1vzwTopic.get(k));
-				}
-			}
-			
-			if (!currentNvz.containsKey(topic)) {
-				// this topic hasn't been seen in the document yet
-				currentNvz.put(topic, 1);
-			} else {
-				// this topic has already been seen in the document
-				currentNvz.put(topic, 1 + currentNvz.get(topic));
-			}
-		}
+		// the topic and opinion word counts of the document
+		addDocumentCounts(d, viewpoint, -1);
+		DocumentOpinionCounts counts = trnModel.docCounts[d];
 		
 		double Veta = trnModel.V*trnModel.eta;
-		double Talpha = trnModel.T*trnModel.alpha;
-		double W1beta1 = trnModel.W1*trnModel.beta1;
 		
 		// do multinominal sampling via cumulative method
 		
@@ -205,32 +563,29 @@ public class Estimator {
 		// probabilities in order to avoid that probabilities
 		// undergo underflow (resulting in them being approximated
 		// to 0)
-		double[] logP = new double[trnModel.V];
+		double[] logP = logPv;
 		
 		// maxLogP will be used to normalize the probabilities
 		double maxLogP = Double.NEGATIVE_INFINITY;
-				
+		
+		int M = trnModel.data.corpus.length(d); // number of sentences in the document
+		
 		// calculate probabilities for each viewpoint
+		// the products over the occurrences of a topic (resp. word) are
+		// rising factorials, computed as differences of log-gamma functions
 		for (int i = 0; i < trnModel.V; i++) {
 			logP[i] = Math.log(trnModel.eta + trnModel.nv[i]) - Math.log(Veta + trnModel.nvsum);
 			
-			double totalCount1 = 0;
-			for (int j : currentNvz.keySet()) {
-				for (double count = 0; count < currentNvz.get(j); count++) {
-					logP[i] += Math.log(trnModel.alpha + trnModel.nvz[i][j] + count) - Math.log(Talpha + trnModel.nvzsum[i] + totalCount1);		
-					totalCount1++;
-				}
+			for (int t = 0; t < counts.topicCount(); t++) {
+				int j = counts.topic(t);
+				logP[i] += alphaCache.logRising(trnModel.nvz[i][j], counts.sentenceCount(t));
+				logP[i] -= w1beta1Cache.logRising(trnModel.n1vzwsum[i][j], counts.opinionCount(t));
 			}
+			logP[i] -= talphaCache.logRising(trnModel.nvzsum[i], M);
 			
-			for (int j : currentN1vzw.keySet()) {
-				Map<Integer, Integer> currentN1vzwTopic = currentN1vzw.get(j);
-
-				double totalCount2 = 0;
-				for (int k : currentN1vzwTopic.keySet()) {
-					for (double count = 0; count < currentN1vzwTopic.get(k); count++) {
-						logP[i] += Math.log(trnModel.beta1 + trnModel.n1vzw[i][j][k] + count) - Math.log(W1beta1 + trnModel.n1vzwsum[i][j] + totalCount2);		
-						totalCount2++;
-					}
+			for (int s = 0; s < counts.slotCount(); s++) {
+				if (counts.pairCount(s) != 0) {
+					logP[i] += beta1Cache.logRising(trnModel.n1vzw.get(i, counts.pairTopic(s), counts.pairWord(s)), counts.pairCount(s));
 				}
 			}
 			
@@ -250,7 +605,7 @@ public class Estimator {
 		}
 		
 		// scaled sample
-		double scaledRand = Math.random()*trnModel.pv[trnModel.V - 1];
+		double scaledRand = trnModel.random.nextDouble()*trnModel.pv[trnModel.V - 1];
 		
 		// sample viewpoint w.r.t distribution pv
 		for (viewpoint = 0; viewpoint < trnModel.V; viewpoint++) {
@@ -260,24 +615,32 @@ public class Estimator {
 		}
 		
 		// add newly estimated v[d] to count variables
-		for (int m = 0; m < trnModel.data.docs[d].length; m++) {
-			int topic = trnModel.zAssign[d][m];
-			
-			Sentence sentence = trnModel.data.docs[d].sentences[m];
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-				trnModel.n1vzw[viewpoint][topic][k] += kcount;
-				trnModel.n1vzwsum[viewpoint][topic] += kcount;
+		addDocumentCounts(d, viewpoint, 1);
+		
+		return viewpoint;
+	}
+	
+	/**
+	 * Add the counts of document d to the count variables of viewpoint i
+	 * (sign = 1), or remove them (sign = -1).
+	 */
+	private void addDocumentCounts(int d, int i, int sign) {
+		DocumentOpinionCounts counts = trnModel.docCounts[d];
+		
+		for (int t = 0; t < counts.topicCount(); t++) {
+			int j = counts.topic(t);
+			trnModel.nvz[i][j] += sign*counts.sentenceCount(t);
+			trnModel.n1vzwsum[i][j] += sign*counts.opinionCount(t);
+		}
+		for (int s = 0; s < counts.slotCount(); s++) {
+			if (counts.pairCount(s) != 0) {
+				trnModel.n1vzw.add(i, counts.pairTopic(s), counts.pairWord(s), sign*counts.pairCount(s));
 			}
-			
-			trnModel.nvz[viewpoint][topic] += 1;
-			trnModel.nvzsum[viewpoint] += 1;
 		}
-		trnModel.nv[viewpoint] += 1;
-		trnModel.nvsum += 1;
 		
-		return viewpoint;
+		trnModel.nvzsum[i] += sign*trnModel.data.corpus.length(d);
+		trnModel.nv[i] += sign;
+		trnModel.nvsum += sign;
 	}
 	
 	/**
@@ -290,103 +653,330 @@ public class Estimator {
 		// remove z[d][m] from the count variables
 		int topic = trnModel.zAssign[d][m];
 		int viewpoint = trnModel.vAssign[d];
-		Sentence sentence = trnModel.data.docs[d].sentences[m];
+		Corpus corpus = trnModel.data.corpus;
+		int s = corpus.sentence(d, m);
 		
 		// changing the topic assignment of the current sentence
 		// modifies n0zw, n0zwsum, n1vzw, n1vzwsum and nvz depending on
 		// the word occurrences in the sentence
-		for (int k : sentence.n0Map.keySet()) {
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
 			// topical word
-			int kcount = sentence.n0Map.get(k); // number of occurrences of k in the current sentence
-			trnModel.n0zw[topic][k] -= kcount;
+			int k = corpus.n0Words[x];
+			int kcount = corpus.n0Counts[x]; // number of occurrences of k in the current sentence
+			trnModel.n0zw[k*trnModel.T + topic] -= kcount;
 			trnModel.n0zwsum[topic] -= kcount;
 		}
-		for (int k : sentence.n1Map.keySet()) {
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
 			// opinion word
-			int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-			trnModel.n1vzw[viewpoint][topic][k] -= kcount;
+			int k = corpus.n1Words[x];
+			int kcount = corpus.n1Counts[x]; // number of occurrences of k in the current sentence
+			trnModel.n1vzw.add(viewpoint, topic, k, -kcount);
 			trnModel.n1vzwsum[viewpoint][topic] -= kcount;
 		}
 		trnModel.nvz[viewpoint][topic] -= 1;
 		trnModel.nvzsum[viewpoint] -= 1;
 		
-		double Talpha = trnModel.T*trnModel.alpha;
-		double W0beta0 = trnModel.W0*trnModel.beta0;
-		double W1beta1 = trnModel.W1*trnModel.beta1;
+		if (occurrences == null) {
+			topic = exactTopicSampling(s, viewpoint);
+		} else {
+			topic = mhTopicSampling(d, m, s, viewpoint, topic);
+		}
 		
-		// do multinominal sampling via cumulative method
+		trnModel.docCounts[d].moveSentence(corpus, s, trnModel.zAssign[d][m], topic);
+		
+		// add newly estimated z[d][m] to count variables
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			// topical word
+			int k = corpus.n0Words[x];
+			int kcount = corpus.n0Counts[x];
+			trnModel.n0zw[k*trnModel.T + topic] += kcount;
+			trnModel.n0zwsum[topic] += kcount;
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			// opinion word
+			int k = corpus.n1Words[x];
+			int kcount = corpus.n1Counts[x];
+			trnModel.n1vzw.add(viewpoint, topic, k, kcount);
+			trnModel.n1vzwsum[viewpoint][topic] += kcount;
+		}
+		trnModel.nvz[viewpoint][topic] += 1;
+		trnModel.nvzsum[viewpoint] += 1;
+		
+ 		return topic;
+	}
+	
+	/**
+	 * Sample the topic of a sentence from its full conditional distribution,
+	 * computed for every topic. The counts of the sentence must have been
+	 * removed from the count variables.
+	 * @param s index in the corpus of the current sentence
+	 * @param viewpoint viewpoint of the document of the sentence
+	 * @return topic id
+	 */
+	private int exactTopicSampling(int s, int viewpoint) {
+		Corpus corpus = trnModel.data.corpus;
+		
+		// the probability of each topic is a product of rising factorials,
+		// which the kernel accumulates for all topics at once; the
+		// denominator of the viewpoint-topic factor does not depend on the
+		// topic and is left out
+		kernel.reset();
+		kernel.multiplyRising(trnModel.nvz[viewpoint], 0, trnModel.alpha, 1);
+		kernel.divideRising(trnModel.n0zwsum, 0, trnModel.W0*trnModel.beta0, corpus.N0(s));
+		kernel.divideRising(trnModel.n1vzwsum[viewpoint], 0, trnModel.W1*trnModel.beta1, corpus.N1(s));
+		
+		// the counts of a word for all topics are contiguous
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			kernel.multiplyRising(trnModel.n0zw, corpus.n0Words[x]*trnModel.T, trnModel.beta0, corpus.n0Counts[x]);
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			trnModel.n1vzw.getTopics(viewpoint, corpus.n1Words[x], n1z);
+			kernel.multiplyRising(n1z, 0, trnModel.beta1, corpus.n1Counts[x]);
+		}
 		
 		// log probabilities are used instead of normal
 		// probabilities in order to avoid that probabilities
 		// undergo underflow (resulting in them being approximated
 		// to 0)
-		double[] logP = new double[trnModel.T];
+		kernel.log(logPz);
 		
-		// maxLogP will be used to normalize the probabilities
-		double maxLogP = Double.NEGATIVE_INFINITY;
+		return kernel.sample(logPz, trnModel.random.nextDouble());
+	}
+	
+	/**
+	 * Sample the topic of a sentence with Metropolis-Hastings steps
+	 * (as in LightLDA), starting from its current topic. Each step
+	 * alternates two proposals, accepted or rejected according to the full
+	 * conditional probabilities of the current and proposed topics only:
+	 * - a word proposal, proportional to the word-topic counts of a topical
+	 * word occurrence of the sentence, drawn from the topic of a random
+	 * occurrence of the word in the corpus;
+	 * - a viewpoint proposal, proportional to the viewpoint-topic counts,
+	 * drawn from an alias table that is rebuilt after T draws.
+	 * The cost of a step does not depend on the number of topics.
+	 * The counts of the sentence must have been removed from the count
+	 * variables.
+	 * @param d document index
+	 * @param m sentence index
+	 * @param s index in the corpus of the current sentence
+	 * @param viewpoint viewpoint of the document of the sentence
+	 * @param topic current topic of the sentence
+	 * @return topic id
+	 */
+	private int mhTopicSampling(int d, int m, int s, int viewpoint, int topic) {
+		Corpus corpus = trnModel.data.corpus;
+		double logScore = logTopicScore(s, viewpoint, topic);
 		
-		// calculate probabilities for each topic
-		for (int j = 0; j < trnModel.T; j++) {
-			logP[j] = Math.log(trnModel.alpha + trnModel.nvz[viewpoint][j]) - Math.log(Talpha + trnModel.nvzsum[viewpoint]);
-			
-			double totalCount1 = 0;
-			for (int k : sentence.n0Map.keySet()) {
-				for (double count = 0; count < sentence.n0Map.get(k); count++) {
-					logP[j] += Math.log(trnModel.beta0 + trnModel.n0zw[j][k] + count) - Math.log(W0beta0 + trnModel.n0zwsum[j] + totalCount1);		
-					totalCount1++;
+		for (int step = 0; step < option.mhsteps; step++) {
+			if (corpus.N0(s) > 0) {
+				// choose a topical word occurrence of the sentence
+				int r = trnModel.random.nextInt(corpus.N0(s));
+				int x = corpus.n0Start[s];
+				while (r >= corpus.n0Counts[x]) {
+					r -= corpus.n0Counts[x];
+					x++;
+				}
+				int offset = corpus.n0Words[x]*trnModel.T;
+				
+				int proposal = wordProposal(d, m, corpus.n0Words[x], corpus.n0Counts[x]);
+				if (proposal != topic) {
+					double proposalLogScore = logTopicScore(s, viewpoint, proposal);
+					double logRatio = proposalLogScore - logScore
+							+ Math.log((trnModel.n0zw[offset + topic] + trnModel.beta0)/(trnModel.n0zw[offset + proposal] + trnModel.beta0));
+					
+					if (logRatio >= 0 || trnModel.random.nextDouble() < Math.exp(logRatio)) {
+						topic = proposal;
+						logScore = proposalLogScore;
+					}
 				}
 			}
 			
-			double totalCount2 = 0;
-			for (int k : sentence.n1Map.keySet()) {
-				for (double count = 0; count < sentence.n1Map.get(k); count++) {
-					logP[j] += Math.log(trnModel.beta1 + trnModel.n1vzw[viewpoint][j][k] + count) - Math.log(W1beta1 + trnModel.n1vzwsum[viewpoint][j] + totalCount2);		
-					totalCount2++;
+			AliasTable table = viewpointProposal(viewpoint);
+			int proposal = table.sample(trnModel.random);
+			if (proposal != topic) {
+				double proposalLogScore = logTopicScore(s, viewpoint, proposal);
+				double logRatio = proposalLogScore - logScore + Math.log(table.weight(topic)/table.weight(proposal));
+				
+				if (logRatio >= 0 || trnModel.random.nextDouble() < Math.exp(logRatio)) {
+					topic = proposal;
+					logScore = proposalLogScore;
 				}
 			}
-			
-			if (logP[j] > maxLogP) {
-				maxLogP = logP[j];
+		}
+		
+		return topic;
+	}
+	
+	/**
+	 * @return the log of the full conditional probability of topic j for
+	 * the sentence, up to a constant that does not depend on j
+	 */
+	private double logTopicScore(int s, int viewpoint, int j) {
+		Corpus corpus = trnModel.data.corpus;
+		double logScore = Math.log(trnModel.alpha + trnModel.nvz[viewpoint][j])
+				- w0beta0Cache.logRising(trnModel.n0zwsum[j], corpus.N0(s))
+				- w1beta1Cache.logRising(trnModel.n1vzwsum[viewpoint][j], corpus.N1(s));
+		
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			logScore += beta0Cache.logRising(trnModel.n0zw[corpus.n0Words[x]*trnModel.T + j], corpus.n0Counts[x]);
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			logScore += beta1Cache.logRising(trnModel.n1vzw.get(viewpoint, j, corpus.n1Words[x]), corpus.n1Counts[x]);
+		}
+		
+		return logScore;
+	}
+	
+	/**
+	 * Draw a topic with probability proportional to n0zw[k][j] + beta0,
+	 * where the counts exclude the current sentence. The counts are drawn
+	 * as the topic of a random occurrence of k in another sentence, and the
+	 * smoothing beta0 as a uniform topic.
+	 * @param d document index of the current sentence
+	 * @param m index of the current sentence
+	 * @param k topical word of the current sentence
+	 * @param kcount number of occurrences of k in the current sentence
+	 */
+	private int wordProposal(int d, int m, int k, int kcount) {
+		int count = occurrences.count(k);
+		double smoothing = trnModel.T*trnModel.beta0;
+		
+		if (trnModel.random.nextDouble()*(count - kcount + smoothing) < smoothing) {
+			return trnModel.random.nextInt(trnModel.T);
+		}
+		
+		// the occurrences of the current sentence are rejected
+		while (true) {
+			int o = trnModel.random.nextInt(count);
+			int od = occurrences.doc(k, o);
+			int om = occurrences.sentence(k, o);
+			if (od != d || om != m) {
+				return trnModel.zAssign[od][om];
 			}
 		}
+	}
+	
+	/**
+	 * @return the alias table of the topic proposal of viewpoint i,
+	 * proportional to nvz[i][j] + alpha, which is rebuilt after T draws
+	 */
+	private AliasTable viewpointProposal(int i) {
+		if (viewpointProposalDraws[i] >= trnModel.T || viewpointProposals[i] == null) {
+			if (viewpointProposals[i] == null) {
+				viewpointProposals[i] = new AliasTable(trnModel.T);
+			}
+			for (int j = 0; j < trnModel.T; j++) {
+				proposalWeights[j] = trnModel.nvz[i][j] + trnModel.alpha;
+			}
+			viewpointProposals[i].build(proposalWeights);
+			viewpointProposalDraws[i] = 0;
+		}
+		viewpointProposalDraws[i]++;
 		
-		// normalize probabilities
-		for (int j = 0; j < trnModel.T; j++) {
-			trnModel.pz[j] = Math.exp(logP[j] - maxLogP);
+		return viewpointProposals[i];
+	}
+	
+	/**
+	 * Check the convergence of the chain: the chain is stable once the
+	 * relative change of its joint log-likelihood is below convtol and the
+	 * fraction of documents whose viewpoint changed is at most churntol
+	 * since the previous check, for convwindow consecutive checks.
+	 * @return whether the chain stops (once it is stable, or with the
+	 * other chains still running if they are sampled concurrently and
+	 * their R-hat is below the threshold)
+	 */
+	private boolean checkConvergence(int currentChain) throws InterruptedException {
+		double logLikelihood = jointLogLikelihood();
+		double change = Math.abs(logLikelihood - trnModel.lastLogLikelihood)/Math.abs(trnModel.lastLogLikelihood);
+		
+		// the viewpoints of a chunked corpus are not all in memory
+		double churn = 0;
+		if (trnModel.data.chunks == null) {
+			if (trnModel.lastViewpoints == null) {
+				churn = 1;
+				trnModel.lastViewpoints = new int[trnModel.D];
+			} else {
+				int changed = 0;
+				for (int d = 0; d < trnModel.D; d++) {
+					if (trnModel.vAssign[d] != trnModel.lastViewpoints[d]) {
+						changed++;
+					}
+				}
+				churn = (double) changed/trnModel.D;
+			}
+			System.arraycopy(trnModel.vAssign, 0, trnModel.lastViewpoints, 0, trnModel.D);
 		}
 		
-		// cumulate multinomial parameters
-		for (int j = 1; j < trnModel.T; j++) {
-			trnModel.pz[j] += trnModel.pz[j - 1];
+		// the change is NaN at the first check
+		if (change < option.convtol && churn <= option.churntol) {
+			trnModel.stableChecks++;
+		} else {
+			trnModel.stableChecks = 0;
 		}
+		trnModel.lastLogLikelihood = logLikelihood;
 		
-		// scaled sample
-		double scaledRand = Math.random()*trnModel.pz[trnModel.T - 1];
+		System.out.println("Chain " + currentChain + ": log-likelihood " + logLikelihood + ", relative change " + change + ", viewpoint churn " + churn);
 		
-		// sample topic w.r.t distribution pz
-		for (topic = 0; topic < trnModel.T; topic++) {
-			if (trnModel.pz[topic] > scaledRand) {
-				break;
+		// a stable chain leaves the monitor without waiting for the others
+		if (trnModel.stableChecks >= option.convwindow) {
+			return true;
+		}
+		if (convergence != null) {
+			trnModel.reportedLogLikelihoods.add(logLikelihood);
+			return convergence.report(currentChain, logLikelihood);
+		}
+		return false;
+	}
+	
+	/**
+	 * Compute the collapsed joint log-likelihood log(p(w, z, v)) of the
+	 * corpus and of the current assignments, from the count variables.
+	 */
+	public double jointLogLikelihood() {
+		int T = trnModel.T;
+		int V = trnModel.V;
+		double logP = 0;
+		
+		// viewpoints
+		logP += Utils.logGamma(V*trnModel.eta) - Utils.logGamma(trnModel.nvsum + V*trnModel.eta);
+		for (int i = 0; i < V; i++) {
+			logP += Utils.logGamma(trnModel.nv[i] + trnModel.eta) - Utils.logGamma(trnModel.eta);
+		}
+		
+		// topics of the sentences
+		for (int i = 0; i < V; i++) {
+			logP -= talphaCache.logRising(0, trnModel.nvzsum[i]);
+			for (int j = 0; j < T; j++) {
+				logP += alphaCache.logRising(0, trnModel.nvz[i][j]);
 			}
 		}
 		
-		// add newly estimated z[d][m] to count variables
-		for (int k : sentence.n0Map.keySet()) {
-			// topical word
-			int kcount = sentence.n0Map.get(k);
-			trnModel.n0zw[topic][k] += kcount;
-			trnModel.n0zwsum[topic] += kcount;
+		// topical words
+		for (int j = 0; j < T; j++) {
+			logP -= w0beta0Cache.logRising(0, trnModel.n0zwsum[j]);
 		}
-		for (int k : sentence.n1Map.keySet()) {
-			// opinion word
-			int kcount = sentence.n1Map.get(k);
-			trnModel.n1vzw[viewpoint][topic][k] += kcount;
-			trnModel.n1vzwsum[viewpoint][topic] += kcount;
+		for (int x = 0; x < trnModel.W*T; x++) {
+			if (trnModel.n0zw[x] > 0) {
+				logP += beta0Cache.logRising(0, trnModel.n0zw[x]);
+			}
 		}
-		trnModel.nvz[viewpoint][topic] += 1;
-		trnModel.nvzsum[viewpoint] += 1;
 		
- 		return topic;
+		// opinion words
+		for (int i = 0; i < V; i++) {
+			for (int j = 0; j < T; j++) {
+				logP -= w1beta1Cache.logRising(0, trnModel.n1vzwsum[i][j]);
+			}
+			for (int k = 0; k < trnModel.W; k++) {
+				trnModel.n1vzw.getTopics(i, k, n1z);
+				for (int j = 0; j < T; j++) {
+					if (n1z[j] > 0) {
+						logP += beta1Cache.logRising(0, n1z[j]);
+					}
+				}
+			}
+		}
+		
+		return logP;
 	}
 	
 	public void computeTheta() {
@@ -403,29 +993,11 @@ public class Estimator {
 		}
 	}
 	
-	public void computePhi0() {	
-		for (int j = 0; j < trnModel.T; j++) {
-			for (int k = 0; k < trnModel.W; k++) {
-				if (trnModel.data.wordIdPosMap.get(k).get(0)) {
-					trnModel.phi0[j][k] = (trnModel.n0zw[j][k] + trnModel.beta0)/(trnModel.n0zwsum[j] + trnModel.W0*trnModel.beta0);
-				} else {
-					trnModel.phi0[j][k] = 0;
-				}
-			}
-		}
-	}
-	
-	public void computePhi1() {
-		for (int i = 0; i < trnModel.V; i++) {
-			for (int j = 0; j < trnModel.T; j++) {
-				for (int k = 0; k < trnModel.W; k++) {
-					if (trnModel.data.wordIdPosMap.get(k).get(1)) {
-						trnModel.phi1[i][j][k] = (trnModel.n1vzw[i][j][k] + trnModel.beta1)/(trnModel.n1vzwsum[i][j] + trnModel.W1*trnModel.beta1);
-					} else {
-						trnModel.phi1[i][j][k] = 0;
-					}
-				}
-			}
-		}
+	/**
+	 * The word distributions are computed from the counts while they are
+	 * saved, rather than stored in V x T x W arrays.
+	 */
+	public void computePhi() {
+		trnModel.phi = new WordDistributions(trnModel);
 	}
 }
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server scoring documents with a model loaded once (see
+ * ViewpointScorer). Every request is handled on its own virtual thread
+ * (Java 21 and later; a cached pool of platform threads otherwise), which
+ * queues its documents and waits for their results. The documents are
+ * scored by a fixed number of batch threads, each taking the queued
+ * documents by micro-batches of at most maxBatch documents, waiting at
+ * most maxWait milliseconds for a batch to fill up (0 to take only the
+ * documents already queued). A batch is scored at once (see
+ * ViewpointScorer.score(String[])), its documents sharing the reads of the
+ * counts of the trained model; the per-thread samplers of the scorer are
+ * also kept by the batch threads, instead of being created for every
+ * request thread.
+ * Endpoints:
+ * - POST /score: the body holds documents in the format of the lines of
+ * the data files, one per line; the response is a JSON array with, for
+ * each document, its most likely viewpoint, the probability of each
+ * viewpoint, and the topic of each sentence.
+ * - GET /stats: number of requests, documents and batches, and the median
+ * and 99th percentile of the latency of the last requests.
+ */
+public class InferenceServer {
+	
+	private static final int LATENCY_SAMPLES = 4096; // number of latencies from which the percentiles are computed
+	
+	private final ViewpointScorer scorer;
+	private final int maxBatch; // maximal number of documents per batch
+	private final long maxWait; // maximal wait in nanoseconds for a batch to fill up
+	private final int nthreads; // number of batch threads
+	private final int port;
+	
+	private final BlockingQueue<Pending> queue; // documents waiting to be scored
+	
+	// Statistics
+	private final long[] latencies; // latencies of the last requests, in nanoseconds, used as a ring
+	private long nrequests;
+	private long ndocuments;
+	private long nbatches;
+	
+	private HttpServer server;
+	private ExecutorService requestExecutor;
+	private Thread[] batchThreads;
+	private volatile boolean stopped; // whether the server is stopped, no more document is scored
+	
+	/**
+	 * Document waiting to be scored.
+	 */
+	private static class Pending {
+		
+		final String document;
+		final CompletableFuture<ViewpointScorer.Result> result;
+		
+		Pending(String document) {
+			this.document = document;
+			this.result = new CompletableFuture<ViewpointScorer.Result>();
+		}
+	}
+	
+	/**
+	 * @param scorer scorer of the documents
+	 * @param port port of the server, on the loopback interface
+	 * @param maxBatch maximal number of documents per batch
+	 * @param maxWait maximal wait in milliseconds for a batch to fill up
+	 * @param nthreads number of threads scoring the batches
+	 */
+	public InferenceServer(ViewpointScorer scorer, int port, int maxBatch, int maxWait, int nthreads) {
+		this.scorer = scorer;
+		this.port = port;
+		this.maxBatch = Math.max(maxBatch, 1);
+		this.maxWait = TimeUnit.MILLISECONDS.toNanos(Math.max(maxWait, 0));
+		this.nthreads = Math.max(nthreads, 1);
+		
+		queue = new LinkedBlockingQueue<Pending>();
+		latencies = new long[LATENCY_SAMPLES];
+	}
+	
+	/**
+	 * Start the batch threads and the server.
+	 */
+	public void start() throws IOException {
+		batchThreads = new Thread[nthreads];
+		for (int t = 0; t < nthreads; t++) {
+			batchThreads[t] = new Thread(new Runnable() {
+				public void run() {
+					runBatches();
+				}
+			}, "vodum-batch-" + t);
+			batchThreads[t].setDaemon(true);
+			batchThreads[t].start();
+		}
+		
+		requestExecutor = newRequestExecutor();
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(requestExecutor);
+		server.createContext("/score", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleScore(exchange);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleStats(exchange);
+			}
+		});
+		server.start();
+		
+		System.out.println("Serving on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+				+ " (" + nthreads + " batch threads, batches of at most " + maxBatch + " documents)");
+	}
+	
+	/**
+	 * Stop the server, after the exchanges in progress (waiting at most
+	 * delay seconds). The documents still queued are not scored, and their
+	 * requests are answered with 503.
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		
+		stopped = true;
+		for (Thread thread : batchThreads) {
+			thread.interrupt();
+		}
+		List<Pending> pendings = new ArrayList<Pending>();
+		queue.drainTo(pendings);
+		for (Pending pending : pendings) {
+			pending.result.cancel(false);
+		}
+		
+		requestExecutor.shutdown();
+	}
+	
+	/**
+	 * @return an executor running every task on a new virtual thread if
+	 * they are available (Java 21), looked up by reflection so that the
+	 * program still runs on older versions, on a cached pool of platform
+	 * threads otherwise
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			System.out.println("Requests are handled on virtual threads");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			// Java 20 or earlier (or preview features disabled)
+		} catch (UnsupportedOperationException e) {
+			// idem
+		}
+		
+		System.out.println("Virtual threads are not available, requests are handled on platform threads");
+		return Executors.newCachedThreadPool();
+	}
+	
+	//---------------------------------------------------------------
+	// Batching
+	//---------------------------------------------------------------
+	
+	/**
+	 * Score the queued documents by batches, until the thread is
+	 * interrupted.
+	 */
+	private void runBatches() {
+		List<Pending> batch = new ArrayList<Pending>(maxBatch);
+		
+		try {
+			while (true) {
+				// wait for a first document, then for the batch to fill up
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxWait;
+				while (batch.size() < maxBatch) {
+					if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+						continue;
+					}
+					
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) {
+						break;
+					}
+					Pending pending = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (pending == null) {
+						break;
+					}
+					batch.add(pending);
+				}
+				
+				scoreBatch(batch);
+				
+				synchronized (this) {
+					nbatches++;
+					ndocuments += batch.size();
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			for (Pending pending : batch) {
+				pending.result.cancel(false);
+			}
+		}
+	}
+	
+	/**
+	 * Score a batch of documents at once, and complete their results. If a
+	 * document of the batch is malformed, the documents are scored one at
+	 * a time, so that only the malformed ones fail.
+	 */
+	private void scoreBatch(List<Pending> batch) {
+		String[] documents = new String[batch.size()];
+		for (int d = 0; d < documents.length; d++) {
+			documents[d] = batch.get(d).document;
+		}
+		
+		ViewpointScorer.Result[] results;
+		try {
+			results = scorer.score(documents);
+		} catch (IllegalArgumentException e) {
+			for (Pending pending : batch) {
+				try {
+					pending.result.complete(scorer.score(pending.document));
+				} catch (RuntimeException de) {
+					pending.result.completeExceptionally(de);
+				}
+			}
+			return;
+		} catch (RuntimeException e) {
+			for (Pending pending : batch) {
+				pending.result.completeExceptionally(e);
+			}
+			return;
+		}
+		
+		for (int d = 0; d < results.length; d++) {
+			batch.get(d).result.complete(results[d]);
+		}
+	}
+	
+	//---------------------------------------------------------------
+	// Handlers
+	//---------------------------------------------------------------
+	
+	private void handleScore(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		
+		try {
+			if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+				send(exchange, 405, "Use POST with one document per line\n");
+				return;
+			}
+			
+			String body = new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+			List<Pending> pendings = new ArrayList<Pending>();
+			for (String line : body.split("\r?\n")) {
+				if (!line.trim().isEmpty()) {
+					pendings.add(new Pending(line));
+				}
+			}
+			queue.addAll(pendings);
+			
+			// the queue may have been emptied by stop() before the documents were added
+			if (stopped) {
+				for (Pending pending : pendings) {
+					pending.result.cancel(false);
+				}
+			}
+			
+			StringBuilder json = new StringBuilder("[");
+			for (int d = 0; d < pendings.size(); d++) {
+				ViewpointScorer.Result result;
+				try {
+					result = pendings.get(d).result.get();
+				} catch (ExecutionException e) {
+					send(exchange, 400, "Document " + (d + 1) + ": " + e.getCause().getMessage() + "\n");
+					return;
+				} catch (CancellationException e) {
+					send(exchange, 503, "Server stopped\n");
+					return;
+				}
+				
+				if (d > 0) {
+					json.append(",");
+				}
+				json.append("\n{\"viewpoint\":").append(result.viewpoint);
+				json.append(",\"viewpoints\":").append(Arrays.toString(result.viewpoints).replace(" ", ""));
+				json.append(",\"topics\":").append(Arrays.toString(result.topics).replace(" ", ""));
+				json.append("}");
+			}
+			json.append("\n]\n");
+			
+			send(exchange, 200, json.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, "Interrupted\n");
+		} finally {
+			recordLatency(System.nanoTime() - start);
+		}
+	}
+	
+	private void handleStats(HttpExchange exchange) throws IOException {
+		long[] sorted;
+		long requests;
+		long documents;
+		long batches;
+		synchronized (this) {
+			int n = (int) Math.min(nrequests, LATENCY_SAMPLES);
+			sorted = Arrays.copyOf(latencies, n);
+			requests = nrequests;
+			documents = ndocuments;
+			batches = nbatches;
+		}
+		Arrays.sort(sorted);
+		
+		String json = "{\"requests\":" + requests
+				+ ",\"documents\":" + documents
+				+ ",\"batches\":" + batches
+				+ ",\"p50_ms\":" + percentile(sorted, 0.50)
+				+ ",\"p99_ms\":" + percentile(sorted, 0.99) + "}\n";
+		send(exchange, 200, json);
+	}
+	
+	private synchronized void recordLatency(long nanos) {
+		latencies[(int) (nrequests % LATENCY_SAMPLES)] = nanos;
+		nrequests++;
+	}
+	
+	/**
+	 * @return the given percentile of sorted latencies, in milliseconds (0
+	 * if there are none)
+	 */
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+	
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", (status == 200 ? "application/json" : "text/plain") + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
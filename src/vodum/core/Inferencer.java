@@ -53,15 +53,35 @@
 package vodum.core;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import vodum.utils.LogGammaCache;
+import vodum.utils.Xoshiro256;
 
 public class Inferencer {	
+	private static final int DOCUMENTS_PER_BATCH = 8;
+	
 	public Model trnModel; // training model
 	public Dictionary globalDict;
 	private CmdOption option;
 	private Model newModel; // test model
 	
+	// Log-gamma caches of the rising factorials in the sampling distributions
+	private LogGammaCache alphaCache; // log(gamma(alpha + n))
+	private LogGammaCache talphaCache; // log(gamma(T*alpha + n))
+	private LogGammaCache beta0Cache; // log(gamma(beta0 + n))
+	private LogGammaCache w0beta0Cache; // log(gamma(W0*beta0 + n))
+	private LogGammaCache beta1Cache; // log(gamma(beta1 + n))
+	private LogGammaCache w1beta1Cache; // log(gamma(W1*beta1 + n))
+	
+	private int[] lid2gid; // lid2gid[_k]: id in the training model of the word with local id _k, -1 if it has none
+	
+	private int[] trnN1z; // trnN1z[j]: count of the current opinion word for topic j and the current viewpoint in the training model, size T
+	private int[] newN1z; // newN1z[j]: count of the current opinion word for topic j and the current viewpoint in the new model, size T
+	private double[] logPv; // logPv[i]: log probability of viewpoint i for the current document, size V
+	private double[] logPz; // logPz[j]: log probability of topic j for the current sentence, size T
+	
 	//-----------------------------------------------------
 	// Init method
 	//-----------------------------------------------------
@@ -78,6 +98,36 @@ public class Inferencer {
 		return true;
 	}
 	
+	/**
+	 * Init the log-gamma caches with the hyperparameters of the new model,
+	 * and the buffers of the sampling.
+	 */
+	private void initCaches() {
+		trnN1z = new int[newModel.T];
+		newN1z = new int[newModel.T];
+		logPv = new double[newModel.V];
+		logPz = new double[newModel.T];
+		
+		alphaCache = new LogGammaCache(newModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		talphaCache = new LogGammaCache(newModel.T * newModel.alpha, Model.LOG_GAMMA_CACHE_SIZE);
+		beta0Cache = new LogGammaCache(newModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		w0beta0Cache = new LogGammaCache(trnModel.W0 * newModel.beta0, Model.LOG_GAMMA_CACHE_SIZE);
+		beta1Cache = new LogGammaCache(newModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+		w1beta1Cache = new LogGammaCache(trnModel.W1 * newModel.beta1, Model.LOG_GAMMA_CACHE_SIZE);
+	}
+	
+	/**
+	 * Copy the map from local to global word ids of the new dataset into
+	 * an array, so that the samplers do not look it up through a map.
+	 */
+	private void initLid2gid() {
+		lid2gid = new int[newModel.W];
+		for (int _k = 0; _k < newModel.W; _k++) {
+			Integer k = newModel.data.lid2gid.get(_k);
+			lid2gid[_k] = (k != null ? k : -1);
+		}
+	}
+	
 	/**
 	 * Infer new model using data from a specified dataset.
 	 * @param newData data on which we want to do inference
@@ -88,32 +138,37 @@ public class Inferencer {
 		newModel = new Model();		
 
 		newModel.initNewModel(option, newData, trnModel);	
+		initCaches();
+		initLid2gid();
 
 		System.out.println("Sampling " + newModel.niters + " iterations!");
 
-		for (int currentIter = 1; currentIter <= newModel.niters; currentIter++) {
-			System.out.println("Iteration " + currentIter + "...");
+		if (option.batch) {
+			sampleBatch();
+		} else {
+			for (int currentIter = 1; currentIter <= newModel.niters; currentIter++) {
+				System.out.println("Iteration " + currentIter + "...");
 
-			for (int d = 0; d < newModel.D; d++) {
-				for (int m = 0; m < newModel.data.docs[d].length; m++) {
-					// sample from p(z[d][m] | v, z_-[d][m], w, x)
-					int topic = infZSampling(d, m);
-					newModel.zAssign[d][m] = topic;
-				} // end for each sentence
+				for (int d = 0; d < newModel.D; d++) {
+					for (int m = 0; m < newModel.data.corpus.length(d); m++) {
+						// sample from p(z[d][m] | v, z_-[d][m], w, x)
+						int topic = infZSampling(d, m);
+						newModel.zAssign[d][m] = topic;
+					} // end for each sentence
 				
-				// sample from p(v[d] | v_-[d], z, w, x)
-				int viewpoint = infVSampling(d);
-				newModel.vAssign[d] = viewpoint;
-			} // end for each new document
+					// sample from p(v[d] | v_-[d], z, w, x)
+					int viewpoint = infVSampling(d);
+					newModel.vAssign[d] = viewpoint;
+				} // end for each new document
 
-		} // end iterations
+			} // end iterations
+		}
 
 		System.out.println("Gibbs sampling for inference completed!");
 
 		computeNewTheta();
 		computeNewPi();
-		computeNewPhi0();
-		computeNewPhi1();
+		computeNewPhi();
 		newModel.computePerplexity();
 
 		return this.newModel;
@@ -137,32 +192,37 @@ public class Inferencer {
 	public Model inference() {	
 		newModel = new Model();
 		if (!newModel.initNewModel(option, trnModel)) return null;
+		initCaches();
+		initLid2gid();
 		
 		System.out.println("Sampling " + newModel.niters + " iterations!");		
 
-		for (int currentIter = 1; currentIter <= newModel.niters; currentIter++) {
-			System.out.println("Iteration " + currentIter + "...");
+		if (option.batch) {
+			sampleBatch();
+		} else {
+			for (int currentIter = 1; currentIter <= newModel.niters; currentIter++) {
+				System.out.println("Iteration " + currentIter + "...");
 
-			for (int d = 0; d < newModel.D; d++) {
-				// sample from p(v[d] | v_-d, z, s, w, p)
-				int viewpoint = infVSampling(d);
-				newModel.vAssign[d] = viewpoint;
+				for (int d = 0; d < newModel.D; d++) {
+					// sample from p(v[d] | v_-d, z, s, w, p)
+					int viewpoint = infVSampling(d);
+					newModel.vAssign[d] = viewpoint;
 
-				for (int m = 0; m < newModel.data.docs[d].length; m++) {
-					// sample from p(z[d][m] | v, z_-(d,m), w, p)
-					int topic = infZSampling(d, m);
-					newModel.zAssign[d][m] = topic;
-				} // end for each sentence
-			} //end for each new document
-		} // end iterations
+					for (int m = 0; m < newModel.data.corpus.length(d); m++) {
+						// sample from p(z[d][m] | v, z_-(d,m), w, p)
+						int topic = infZSampling(d, m);
+						newModel.zAssign[d][m] = topic;
+					} // end for each sentence
+				} //end for each new document
+			} // end iterations
+		}
 		
 		System.out.println("Gibbs sampling for inference completed!");		
 		System.out.println("Saving the inference outputs!");
 		
 		computeNewTheta();
 		computeNewPi();
-		computeNewPhi0();
-		computeNewPhi1();
+		computeNewPhi();
 		newModel.computePerplexity();
 		newModel.saveModel(trnModel.modelName + "-inference");
 		newModel.data.localDict.writeWordMap(option.dir + File.separator + trnModel.modelName + "-inference" + Model.wordMapSuffix);
@@ -170,6 +230,75 @@ public class Inferencer {
 		return newModel;
 	}
 	
+	/**
+	 * Sample every new document independently of the other new documents
+	 * (see DocumentInferencer), in parallel: the documents are split into
+	 * small batches run by a fork-join pool, whose idle threads steal the
+	 * batches of the busy ones. Every document draws from its own stream,
+	 * seeded in document order, so that the samples do not depend on the
+	 * number of threads. The count variables of the new model are then
+	 * computed from the assignments.
+	 */
+	private void sampleBatch() {
+		int nthreads = Math.max(option.nthreads, 1);
+		System.out.println("Sampling " + newModel.D + " documents independently with " + nthreads + " threads!");
+		
+		long[] seeds = new long[newModel.D];
+		for (int d = 0; d < newModel.D; d++) {
+			seeds[d] = newModel.random.nextLong();
+		}
+		
+		ThreadLocal<DocumentInferencer> samplers = new ThreadLocal<DocumentInferencer>() {
+			protected DocumentInferencer initialValue() {
+				return new DocumentInferencer(trnModel, lid2gid);
+			}
+		};
+		
+		ForkJoinPool pool = new ForkJoinPool(nthreads);
+		try {
+			pool.invoke(new DocumentBatch(samplers, seeds, 0, newModel.D));
+		} finally {
+			pool.shutdown();
+		}
+		
+		newModel.initCounts();
+		newModel.initDocumentCounts();
+	}
+	
+	/**
+	 * New documents from start (included) to end (excluded), split in
+	 * halves until there are at most DOCUMENTS_PER_BATCH of them.
+	 */
+	private class DocumentBatch extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ThreadLocal<DocumentInferencer> samplers;
+		private final long[] seeds;
+		private final int start;
+		private final int end;
+		
+		DocumentBatch(ThreadLocal<DocumentInferencer> samplers, long[] seeds, int start, int end) {
+			this.samplers = samplers;
+			this.seeds = seeds;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute() {
+			if (end - start <= DOCUMENTS_PER_BATCH) {
+				DocumentInferencer sampler = samplers.get();
+				for (int d = start; d < end; d++) {
+					newModel.vAssign[d] = sampler.sample(newModel.data.corpus, d, newModel.zAssign[d], newModel.niters, new Xoshiro256(seeds[d]), null);
+				}
+				return;
+			}
+			
+			int middle = (start + end) >>> 1;
+			invokeAll(new DocumentBatch(samplers, seeds, start, middle), new DocumentBatch(samplers, seeds, middle, end));
+		}
+	}
+	
 	/**
 	 * Do viewpoint sampling for inference.
 	 * @param d document index
@@ -181,66 +310,11 @@ public class Inferencer {
 
 		// changing the viewpoint assignment of the current document
 		// modifies n1vzw, n1vzwsum, nvz, nvzsum and nv depending on
-		// the word occurrences in the document
-		for (int m = 0; m < newModel.data.docs[d].length; m++) {
-			int topic = newModel.zAssign[d][m];
-			
-			Sentence sentence = newModel.data.docs[d].sentences[m];	
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-				newModel.n1vzw[viewpoint][topic][k] -= kcount;
-				newModel.n1vzwsum[viewpoint][topic] -= kcount;
-			}
-			
-			newModel.nvz[viewpoint][topic] -= 1;
-			newModel.nvzsum[viewpoint] -= 1;
-		}
-		newModel.nv[viewpoint] -= 1;
-		newModel.nvsum -= 1;
-		
-		// currentN1vzw counts the number of occurrences for each
-		// opinion word and their assigned topic in the current
-		// document, and currentNvz counts the number of sentences
-		// assigned to each topic in the current document.
-		Map<Integer, Map<Integer, Integer>> currentN1vzw = new HashMap<Integer, Map<Integer, Integer>>(); // key1=topicId, key2=wordId, val=wordCount
-		Map<Integer, Integer> currentNvz = new HashMap<Integer, Integer>(); // key=topicId, val=sentenceCount
-		for (int m = 0; m < newModel.data.docs[d].length; m++) {
-			int topic = newModel.zAssign[d][m];
-			
-			if (!currentN1vzw.containsKey(topic)) {
-				// this topic hasn't been seen in the document yet
-				currentN1vzw.put(topic, new HashMap<Integer, Integer>());
-			}
-			Map<Integer, Integer> currentNz1vwTopic = currentN1vzw.get(topic);
-			
-			Sentence sentence = newModel.data.docs[d].sentences[m];
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-				if (!currentNz1vwTopic.containsKey(k)) {
-					// this word for this topic hasn't been seen in
-					// the document yet
-					currentNz1vwTopic.put(k, kcount);
-				} else {
-					// this word for this topic has already been
-					// seen in the document
-					currentNz1vwTopic.put(k, kcount + currentNz1vwTopic.get(k));
-				}
-			}
-			
-			if (!currentNvz.containsKey(topic)) {
-				// this topic hasn't been seen in the document yet
-				currentNvz.put(topic, 1);
-			} else {
-				// this topic has already been seen in the document
-				currentNvz.put(topic, 1 + currentNvz.get(topic));
-			}
-		}
+		// the topic and opinion word counts of the document
+		addDocumentCounts(d, viewpoint, -1);
+		DocumentOpinionCounts counts = newModel.docCounts[d];
 		
 		double Veta = newModel.V * newModel.eta;
-		double Talpha = newModel.T * newModel.alpha;
-		double W1beta1 = trnModel.W1 * newModel.beta1;
 		
 		// do multinominal sampling via cumulative method
 		
@@ -248,34 +322,31 @@ public class Inferencer {
 		// probabilities in order to avoid that probabilities
 		// undergo underflow (resulting in them being approximated
 		// to 0)
-		double[] logP = new double[newModel.V];
+		double[] logP = logPv;
 
 		// maxLogP will be used to normalize the probabilities
 		double maxLogP = Double.NEGATIVE_INFINITY;
+		
+		int M = newModel.data.corpus.length(d); // number of sentences in the document
 
 		// calculate probabilities for each viewpoint
+		// the products over the occurrences of a topic (resp. word) are
+		// rising factorials, computed as differences of log-gamma functions
 		for (int i = 0; i < newModel.V; i++) {
 			logP[i] = Math.log(newModel.eta + trnModel.nv[i] + newModel.nv[i]) - Math.log(Veta + trnModel.nvsum + newModel.nvsum);
 
-			int totalCount1 = 0;
-			for (int j : currentNvz.keySet()) {
-				for (int count = 0; count < currentNvz.get(j); count++) {
-					logP[i] += Math.log(newModel.alpha + trnModel.nvz[i][j] + newModel.nvz[i][j] + count) - Math.log(Talpha + trnModel.nvzsum[i] + newModel.nvzsum[i] + totalCount1);		
-					totalCount1++;
-				}
+			for (int t = 0; t < counts.topicCount(); t++) {
+				int j = counts.topic(t);
+				logP[i] += alphaCache.logRising(trnModel.nvz[i][j] + newModel.nvz[i][j], counts.sentenceCount(t));
+				logP[i] -= w1beta1Cache.logRising(trnModel.n1vzwsum[i][j] + newModel.n1vzwsum[i][j], counts.opinionCount(t));
 			}
+			logP[i] -= talphaCache.logRising(trnModel.nvzsum[i] + newModel.nvzsum[i], M);
 
-			for (int j : currentN1vzw.keySet()) {
-				Map<Integer, Integer> currentNz1vwTopic = currentN1vzw.get(j);
-
-				int totalCount2 = 0;
-				for (int _k : currentNz1vwTopic.keySet()) {
-					int k = newModel.data.lid2gid.get(_k);
-
-					for (int count = 0; count < currentNz1vwTopic.get(_k); count++) {
-						logP[i] += Math.log(newModel.beta1 + trnModel.n1vzw[i][j][k] + newModel.n1vzw[i][j][_k] + count) - Math.log(W1beta1 + trnModel.n1vzwsum[i][j] + newModel.n1vzwsum[i][j] + totalCount2);		
-						totalCount2++;
-					}
+			for (int s = 0; s < counts.slotCount(); s++) {
+				if (counts.pairCount(s) != 0) {
+					int j = counts.pairTopic(s);
+					int _k = counts.pairWord(s);
+					logP[i] += beta1Cache.logRising(trnModel.n1vzw.get(i, j, lid2gid[_k]) + newModel.n1vzw.get(i, j, _k), counts.pairCount(s));
 				}
 			}
 
@@ -291,11 +362,11 @@ public class Inferencer {
 
 		// cumulate multinomial parameters
 		for (int i = 1; i < newModel.V; i++) {
-			newModel.pv[i] += newModel.pz[i - 1];
+			newModel.pv[i] += newModel.pv[i - 1];
 		}
 		
 		// scaled sample
-		double u = Math.random() * newModel.pv[newModel.V - 1];
+		double u = newModel.random.nextDouble() * newModel.pv[newModel.V - 1];
 		
 		for (viewpoint = 0; viewpoint < newModel.V; viewpoint++) {
 			if (newModel.pv[viewpoint] > u) //sample topic w.r.t distribution pz
@@ -303,24 +374,32 @@ public class Inferencer {
 		}
 		
 		// add newly estimated v[d] to count variables
-		for (int m = 0; m < newModel.data.docs[d].length; m++) {
-			int topic = newModel.zAssign[d][m];
-			
-			Sentence sentence = newModel.data.docs[d].sentences[m];
-			for (int k : sentence.n1Map.keySet()) {
-				// opinion word
-				int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-				newModel.n1vzw[viewpoint][topic][k] += kcount;
-				newModel.n1vzwsum[viewpoint][topic] += kcount;
+		addDocumentCounts(d, viewpoint, 1);
+		
+		return viewpoint;
+	}
+	
+	/**
+	 * Add the counts of document d to the count variables of viewpoint i
+	 * (sign = 1), or remove them (sign = -1).
+	 */
+	private void addDocumentCounts(int d, int i, int sign) {
+		DocumentOpinionCounts counts = newModel.docCounts[d];
+		
+		for (int t = 0; t < counts.topicCount(); t++) {
+			int j = counts.topic(t);
+			newModel.nvz[i][j] += sign*counts.sentenceCount(t);
+			newModel.n1vzwsum[i][j] += sign*counts.opinionCount(t);
+		}
+		for (int s = 0; s < counts.slotCount(); s++) {
+			if (counts.pairCount(s) != 0) {
+				newModel.n1vzw.add(i, counts.pairTopic(s), counts.pairWord(s), sign*counts.pairCount(s));
 			}
-			
-			newModel.nvz[viewpoint][topic] += 1;
-			newModel.nvzsum[viewpoint] += 1;
 		}
-		newModel.nv[viewpoint] += 1;
-		newModel.nvsum += 1;
 		
-		return viewpoint;
+		newModel.nvzsum[i] += sign*newModel.data.corpus.length(d);
+		newModel.nv[i] += sign;
+		newModel.nvsum += sign;
 	}
 	
 	/**
@@ -333,29 +412,30 @@ public class Inferencer {
 		// remove z[d][m] from the count variable
 		int topic = newModel.zAssign[d][m];
 		int viewpoint = newModel.vAssign[d];
-		Sentence sentence = newModel.data.docs[d].sentences[m];
+		Corpus corpus = newModel.data.corpus;
+		int s = corpus.sentence(d, m);
 		
 		// changing the topic assignment of the current sentence
 		// modifies n0zw, n0zwsum, n1vzw and n1vzwsum depending on
 		// the word occurrences in the sentence
-		for (int k : sentence.n0Map.keySet()) {
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
 			// topical word
-			int kcount = sentence.n0Map.get(k); // number of occurrences of k in the current sentence
-			newModel.n0zw[topic][k] -= kcount;
+			int k = corpus.n0Words[x];
+			int kcount = corpus.n0Counts[x]; // number of occurrences of k in the current sentence
+			newModel.n0zw[k*newModel.T + topic] -= kcount;
 			newModel.n0zwsum[topic] -= kcount;
 		}
-		for (int k : sentence.n1Map.keySet()) {
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
 			// opinion word
-			int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-			newModel.n1vzw[viewpoint][topic][k] -= kcount;
+			int k = corpus.n1Words[x];
+			int kcount = corpus.n1Counts[x]; // number of occurrences of k in the current sentence
+			newModel.n1vzw.add(viewpoint, topic, k, -kcount);
 			newModel.n1vzwsum[viewpoint][topic] -= kcount;
 		}
 		newModel.nvz[viewpoint][topic] -= 1;
 		newModel.nvzsum[viewpoint] -= 1;
 		
 		double Talpha = newModel.T * newModel.alpha;
-		double W0beta0 = trnModel.W0 * newModel.beta0;
-		double W1beta1 = trnModel.W1 * newModel.beta1; 
 
 		// do multinominal sampling via cumulative method
 
@@ -363,35 +443,45 @@ public class Inferencer {
 		// probabilities in order to avoid that probabilities
 		// undergo underflow (resulting in them being approximated
 		// to 0)
-		double[] logP = new double[newModel.T];
+		double[] logP = logPz;
 
 		// maxLogP will be used to normalize the probabilities
 		double maxLogP = Double.NEGATIVE_INFINITY;
 		
+		// the denominator of the viewpoint-topic factor does not depend on the topic
+		double logNvzsum = Math.log(Talpha + trnModel.nvzsum[viewpoint] + newModel.nvzsum[viewpoint]);
+		
 		// calculate probabilities for each topic
+		// the products over the occurrences of a word are rising
+		// factorials, computed as differences of log-gamma functions
 		for (int j = 0; j < newModel.T; j++) {
-			logP[j] = Math.log(newModel.alpha + trnModel.nvz[viewpoint][j] + newModel.nvz[viewpoint][j]) - Math.log(Talpha + trnModel.nvzsum[viewpoint] + newModel.nvzsum[viewpoint]);
-			
-			int totalCount1 = 0;
-			for (int _k : sentence.n0Map.keySet()) {
-				int k = newModel.data.lid2gid.get(_k);
-				
-				for (int count = 0; count < sentence.n0Map.get(_k); count++) {
-					logP[j] += Math.log(newModel.beta0 + trnModel.n0zw[j][k] + newModel.n0zw[j][_k] + count) - Math.log(W0beta0 + trnModel.n0zwsum[j] + newModel.n0zwsum[j] + totalCount1);		
-					totalCount1++;
-				}
+			logP[j] = Math.log(newModel.alpha + trnModel.nvz[viewpoint][j] + newModel.nvz[viewpoint][j]) - logNvzsum
+					- w0beta0Cache.logRising(trnModel.n0zwsum[j] + newModel.n0zwsum[j], corpus.N0(s))
+					- w1beta1Cache.logRising(trnModel.n1vzwsum[viewpoint][j] + newModel.n1vzwsum[viewpoint][j], corpus.N1(s));
+		}
+		
+		// the words are the outer loop, so that the counts of a word for
+		// all topics are read sequentially
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+			int _k = corpus.n0Words[x];
+			int trnOffset = lid2gid[_k] * trnModel.T;
+			int newOffset = _k * newModel.T;
+			int kcount = corpus.n0Counts[x];
+			for (int j = 0; j < newModel.T; j++) {
+				logP[j] += beta0Cache.logRising(trnModel.n0zw[trnOffset + j] + newModel.n0zw[newOffset + j], kcount);
 			}
-			
-			int totalCount2 = 0;
-			for (int _k : sentence.n1Map.keySet()) {
-				int k = newModel.data.lid2gid.get(_k);
-				
-				for (int count = 0; count < sentence.n1Map.get(_k); count++) {
-					logP[j] += Math.log(newModel.beta1 + trnModel.n1vzw[viewpoint][j][k] + newModel.n1vzw[viewpoint][j][_k] + count) - Math.log(W1beta1 + trnModel.n1vzwsum[viewpoint][j] + newModel.n1vzwsum[viewpoint][j] + totalCount2);		
-					totalCount2++;
-				}
+		}
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
+			int _k = corpus.n1Words[x];
+			trnModel.n1vzw.getTopics(viewpoint, lid2gid[_k], trnN1z);
+			newModel.n1vzw.getTopics(viewpoint, _k, newN1z);
+			int kcount = corpus.n1Counts[x];
+			for (int j = 0; j < newModel.T; j++) {
+				logP[j] += beta1Cache.logRising(trnN1z[j] + newN1z[j], kcount);
 			}
-			
+		}
+		
+		for (int j = 0; j < newModel.T; j++) {
 			if (logP[j] > maxLogP) {
 				maxLogP = logP[j];
 			}
@@ -408,24 +498,28 @@ public class Inferencer {
 		}
 		
 		// scaled sample because of unnormalized pz[]
-		double u = Math.random() * newModel.pz[newModel.T - 1];
+		double u = newModel.random.nextDouble() * newModel.pz[newModel.T - 1];
 		
 		for (topic = 0; topic < newModel.T; topic++) {
 			if (newModel.pz[topic] > u) //sample topic w.r.t distribution pz
 				break;
 		}
 		
+		newModel.docCounts[d].moveSentence(corpus, s, newModel.zAssign[d][m], topic);
+		
 		// add newly estimated z[d][m] to count variables
-		for (int k : sentence.n0Map.keySet()) {
+		for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
 			// topical word
-			int kcount = sentence.n0Map.get(k);
-			newModel.n0zw[topic][k] += kcount;
+			int k = corpus.n0Words[x];
+			int kcount = corpus.n0Counts[x];
+			newModel.n0zw[k*newModel.T + topic] += kcount;
 			newModel.n0zwsum[topic] += kcount;
 		}
-		for (int k : sentence.n1Map.keySet()) {
+		for (int x = corpus.n1Start[s]; x < corpus.n1Start[s + 1]; x++) {
 			// opinion word
-			int kcount = sentence.n1Map.get(k); // number of occurrences of k in the current sentence
-			newModel.n1vzw[viewpoint][topic][k] += kcount;
+			int k = corpus.n1Words[x];
+			int kcount = corpus.n1Counts[x]; // number of occurrences of k in the current sentence
+			newModel.n1vzw.add(viewpoint, topic, k, kcount);
 			newModel.n1vzwsum[viewpoint][topic] += kcount;
 		}
 		newModel.nvz[viewpoint][topic] += 1;
@@ -448,37 +542,7 @@ public class Inferencer {
 		} // end for each viewpoint
 	}
 	
-	protected void computeNewPhi0() {
-		for (int j = 0; j < newModel.T; j++) {
-			for (int _k = 0; _k < newModel.W; _k++) {
-				Integer k = newModel.data.lid2gid.get(_k);
-
-				if (k != null) {
-					if (newModel.data.wordIdPosMap.get(_k).get(0) || trnModel.data.wordIdPosMap.get(k).get(0)) {
-						newModel.phi0[j][_k] = (trnModel.n0zw[j][k] + newModel.n0zw[j][_k] + newModel.beta0) / (trnModel.n0zwsum[j] + newModel.n0zwsum[j] + trnModel.W0 * newModel.beta0);
-					} else {
-						newModel.phi0[j][_k] = 0;
-					}
-				}
-			} // end for each word
-		} // end for each topic
-	}
-	
-	protected void computeNewPhi1() {
-		for (int i = 0; i < newModel.V; i++) {
-			for (int j = 0; j < newModel.T; j++) {
-				for (int _k = 0; _k < newModel.W; _k++) {
-					Integer k = newModel.data.lid2gid.get(_k);
-					
-					if (k != null) {
-						if (newModel.data.wordIdPosMap.get(_k).get(1) || trnModel.data.wordIdPosMap.get(k).get(1)) {
-							newModel.phi1[i][j][_k] = (trnModel.n1vzw[i][j][k] + newModel.n1vzw[i][j][_k] + newModel.beta1) / (trnModel.n1vzwsum[i][j] + newModel.n1vzwsum[i][j] + trnModel.W1 * newModel.beta1);
-						} else {
-							newModel.phi1[i][j][_k] = 0;
-						}
-					}
-				} // end for each word
-			} // end for each topic
-		} // end for each viewpoint
+	protected void computeNewPhi() {
+		newModel.phi = new WordDistributions(newModel, trnModel);
 	}
 }
\ No newline at end of file
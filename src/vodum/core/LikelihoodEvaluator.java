@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import vodum.utils.LogCache;
+import vodum.utils.Utils;
+
+/**
+ * Log-likelihood of the documents of a corpus under the parameters of a
+ * model, used to compute its perplexity. The logs of theta, pi and of the
+ * denominators of phi are computed once, and the logs of the numerators
+ * of phi are read from caches indexed by the counts. Every distinct word
+ * of a sentence is read once, its log probability being multiplied by its
+ * number of occurrences, and the topical words are read once for all
+ * viewpoints. The documents are evaluated in parallel on a fork-join pool;
+ * they are summed in a fixed order, so that the result does not depend on
+ * the number of threads.
+ */
+public class LikelihoodEvaluator {
+	
+	private static final int LOG_CACHE_SIZE = 1 << 14;
+	private static final int DOCUMENTS_PER_TASK = 64;
+	
+	private final Model model;
+	private final WordDistributions phi;
+	private final int T;
+	private final int V;
+	
+	private final double[][] logTheta; // logTheta[i][j] = log(theta[i][j]), size V x T
+	private final double[] logPi; // logPi[i] = log(pi[i]), size V
+	private final double[] topicalLogDenominators; // log of the denominators of phi0, size T
+	private final double[][] opinionLogDenominators; // log of the denominators of phi1, size V x T
+	private final LogCache topicalLogs; // log(count + beta0)
+	private final LogCache opinionLogs; // log(count + beta1)
+	
+	private final ThreadLocal<Scratch> scratch; // buffers of each thread
+	
+	/**
+	 * @param model model whose parameters theta, pi and phi are computed
+	 */
+	public LikelihoodEvaluator(Model model) {
+		this.model = model;
+		this.phi = model.phi;
+		this.T = model.T;
+		this.V = model.V;
+		
+		logTheta = new double[V][T];
+		logPi = new double[V];
+		topicalLogDenominators = new double[T];
+		opinionLogDenominators = new double[V][T];
+		for (int i = 0; i < V; i++) {
+			logPi[i] = Math.log(model.pi[i]);
+			for (int j = 0; j < T; j++) {
+				logTheta[i][j] = Math.log(model.theta[i][j]);
+				opinionLogDenominators[i][j] = Math.log(phi.getOpinionDenominator(i, j));
+			}
+		}
+		for (int j = 0; j < T; j++) {
+			topicalLogDenominators[j] = Math.log(phi.getTopicalDenominator(j));
+		}
+		
+		topicalLogs = new LogCache(model.beta0, LOG_CACHE_SIZE);
+		opinionLogs = new LogCache(model.beta1, LOG_CACHE_SIZE);
+		
+		scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+	}
+	
+	/**
+	 * @return the log-likelihood of the documents of a corpus, whose words
+	 * are those of the model
+	 */
+	public double logLikelihood(Corpus corpus, ForkJoinPool pool) {
+		return pool.invoke(new DocumentRange(corpus, 0, corpus.D));
+	}
+	
+	/**
+	 * Documents from start (included) to end (excluded) of a corpus,
+	 * split in halves until there are at most DOCUMENTS_PER_TASK of them.
+	 */
+	private class DocumentRange extends RecursiveTask<Double> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Corpus corpus;
+		private final int start;
+		private final int end;
+		
+		DocumentRange(Corpus corpus, int start, int end) {
+			this.corpus = corpus;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected Double compute() {
+			if (end - start <= DOCUMENTS_PER_TASK) {
+				Scratch buffers = scratch.get();
+				double logP = 0;
+				for (int d = start; d < end; d++) {
+					logP += logLikelihood(corpus, d, buffers);
+				}
+				return logP;
+			}
+			
+			int middle = (start + end) >>> 1;
+			DocumentRange left = new DocumentRange(corpus, start, middle);
+			DocumentRange right = new DocumentRange(corpus, middle, end);
+			left.fork();
+			double rightLogP = right.compute();
+			return left.join() + rightLogP;
+		}
+	}
+	
+	/**
+	 * Buffers used by one thread.
+	 */
+	private class Scratch {
+		final int[] multiplicities0 = new int[model.W]; // multiplicities0[k]: number of occurrences of topical word k in the current sentence
+		final int[] multiplicities1 = new int[model.W]; // idem for the opinion words
+		int[] words0 = new int[16]; // distinct topical words of the current sentence
+		int[] words1 = new int[16]; // distinct opinion words of the current sentence
+		final int[] counts = new int[T];
+		final int[] priorCounts = new int[T];
+		final double[] logPt = new double[T]; // log probability of the topical words for each topic
+		final double[] logPz = new double[T];
+		final double[] logPv = new double[V];
+		final TopicKernel topicKernel = TopicKernel.create(T, model.kernel);
+	}
+	
+	/**
+	 * @return the log-likelihood of document d of a corpus
+	 */
+	private double logLikelihood(Corpus corpus, int d, Scratch buffers) {
+		int[] multiplicities0 = buffers.multiplicities0;
+		int[] multiplicities1 = buffers.multiplicities1;
+		int[] counts = buffers.counts;
+		double[] logPt = buffers.logPt;
+		double[] logPz = buffers.logPz;
+		double[] logPv = buffers.logPv;
+		
+		for (int i = 0; i < V; i++) {
+			logPv[i] = logPi[i];
+		}
+		
+		for (int s = corpus.docStart[d]; s < corpus.docStart[d + 1]; s++) {
+			// distinct words of the sentence, and their multiplicities
+			int distinct0 = 0;
+			int distinct1 = 0;
+			int length0 = 0;
+			int length1 = 0;
+			for (int n = corpus.sentenceStart[s]; n < corpus.sentenceStart[s + 1]; n++) {
+				int word = corpus.words[n];
+				int pos = corpus.pos(n);
+				
+				if (pos == 0) {
+					if (multiplicities0[word]++ == 0) {
+						if (distinct0 == buffers.words0.length) {
+							buffers.words0 = Arrays.copyOf(buffers.words0, 2*distinct0);
+						}
+						buffers.words0[distinct0++] = word;
+					}
+					length0++;
+				} else if (pos == 1) {
+					if (multiplicities1[word]++ == 0) {
+						if (distinct1 == buffers.words1.length) {
+							buffers.words1 = Arrays.copyOf(buffers.words1, 2*distinct1);
+						}
+						buffers.words1[distinct1++] = word;
+					}
+					length1++;
+				}
+			} // end for each word
+			int[] words0 = buffers.words0;
+			int[] words1 = buffers.words1;
+			
+			// the topical words do not depend on the viewpoint
+			boolean possible = true;
+			for (int j = 0; j < T; j++) {
+				logPt[j] = -length0*topicalLogDenominators[j];
+			}
+			for (int w = 0; w < distinct0; w++) {
+				int word = words0[w];
+				int multiplicity = multiplicities0[word];
+				multiplicities0[word] = 0;
+				
+				if (!phi.getTopicalCounts(word, counts)) {
+					possible = false;
+					continue;
+				}
+				for (int j = 0; j < T; j++) {
+					logPt[j] += multiplicity*topicalLogs.log(counts[j]);
+				}
+			}
+			
+			for (int i = 0; i < V && possible; i++) {
+				double[] opinionLogDenominatorsI = opinionLogDenominators[i];
+				for (int j = 0; j < T; j++) {
+					logPz[j] = logTheta[i][j] + logPt[j] - length1*opinionLogDenominatorsI[j];
+				}
+				
+				for (int w = 0; w < distinct1; w++) {
+					int word = words1[w];
+					int multiplicity = multiplicities1[word];
+					
+					if (!phi.getOpinionCounts(i, word, counts, buffers.priorCounts)) {
+						possible = false;
+						break;
+					}
+					for (int j = 0; j < T; j++) {
+						logPz[j] += multiplicity*opinionLogs.log(counts[j]);
+					}
+				}
+				
+				logPv[i] += buffers.topicKernel.logSumExp(logPz);
+			} // end for each viewpoint
+			
+			for (int w = 0; w < distinct1; w++) {
+				multiplicities1[words1[w]] = 0;
+			}
+			
+			if (!possible) {
+				// a word has a null probability
+				return Double.NEGATIVE_INFINITY;
+			}
+		} // end for each sentence
+		
+		return Utils.logSum(logPv);
+	}
+}
@@ -52,8 +52,12 @@
 
 package vodum.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -61,21 +65,29 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import vodum.utils.NumberWriter;
 import vodum.utils.Pair;
 import vodum.utils.Utils;
+import vodum.utils.Xoshiro256;
 
 public class Model {	
 	
@@ -92,8 +104,14 @@ public class Model {
 	public static String twordsSuffix; // suffix for file containing words-per-topic
 	public static String vtwordsSuffix; // suffix for file containing words-per-viewpoint/topic
 	public static String wordMapSuffix; // suffix for file containing word to id map
+	public static String checkpointSuffix; // suffix for the binary checkpoint of a chain
 	public static String defaultModelName; // default name for the model
 	
+	public static final int LOG_GAMMA_CACHE_SIZE = 1 << 20; // maximal number of values in a log-gamma cache of the samplers
+	
+	private static final int CHECKPOINT_MAGIC = 0x56444D4B; // "VDMK"
+	private static final int CHECKPOINT_VERSION = 2;
+	
 	//---------------------------------------------------------------
 	// Model Parameters and Variables
 	//---------------------------------------------------------------	
@@ -113,37 +131,76 @@ public class Model {
 	public double alpha, eta, beta0, beta1; // hyperparameters
 	public int nchains; // number of Gibbs sampling chains
 	public int niters; // number of Gibbs sampling iterations per chain
+	public int chain; // index of the chain sampled with this model, starting from 1
+	public int iteration; // number of iterations sampled so far in the chain
+	public int stopIteration; // last iteration of the chain when its convergence is checked (see -convstep), 0 otherwise
+	public boolean finished; // whether the final sample of the chain was saved, so that it is not resumed
+	
+	// Convergence state of the chain (see -convstep), saved in its checkpoints
+	public double lastLogLikelihood; // joint log-likelihood at the last check, NaN before the first one
+	public int[] lastViewpoints; // viewpoint assignments at the last check, null before the first one (or with -chunksize)
+	public int stableChecks; // number of consecutive checks at which the chain was stable
+	public List<Double> reportedLogLikelihoods; // joint log-likelihoods reported at each check to the R-hat diagnostic of the chains sampled concurrently
 	public int savestep; // saving period
 	public int topwords; // print out top words
+	public long maxDenseCounts; // maximal size of the opinion word count table for it to be stored densely
 	
 	// Estimated/inferred parameters
 	public double[][] theta; // theta: viewpoint-specific distributions over topics, size V x T
 	public double[] pi; // pi: distribution over viewpoints, size V
-	public double[][] phi0; // phi0: topic-specific distributions over words (= topical word distributions), size T x W
-	public double[][][] phi1; // phi1: viewpoint-topic-specific distributions over words (= opinion word distributions), size V x T x W
+	public WordDistributions phi; // phi0 (topical word distributions, size T x W) and phi1 (opinion word distributions, size V x T x W), computed from the counts
 	
 	// Variables for sampling
 	public int[][] zAssign; // topic assignments for all sentences
 	public int[] vAssign; // viewpoint assignments for all documents
 	
-	protected double[][] nvz; // nvz[i][j]: number of sentences in the collection assigned to viewpoint i and topic j, size V x T
-	protected double[] nvzsum; // nvzsum[i]: total number of sentences in the collection assigned to viewpoint i, size V
+	protected int[][] nvz; // nvz[i][j]: number of sentences in the collection assigned to viewpoint i and topic j, size V x T
+	protected int[] nvzsum; // nvzsum[i]: total number of sentences in the collection assigned to viewpoint i, size V
 	
-	protected double[][] n0zw; // n0zw[j][k]: number of instances of topical (0) word k assigned to topic j, size T x W
-	protected double[] n0zwsum; // n0zwsum[j]: total number of topical (0) words assigned to topic j, size T
+	protected int[] n0zw; // n0zw[k*T + j]: number of instances of topical (0) word k assigned to topic j, size W x T (word-major, so that the counts of a word for all topics are contiguous)
+	protected int[] n0zwsum; // n0zwsum[j]: total number of topical (0) words assigned to topic j, size T
 	
-	protected double[][][] n1vzw; // n1vzw[i][j][k]: number of instances of opinion (1) word k assigned to viewpoint i and topic j, size V x T x W
-	protected double[][] n1vzwsum; // n1vzwsum[i][j]: total number of opinion (1) words assigned to viewpoint i and topic j, size V x T
+	protected OpinionWordCounts n1vzw; // n1vzw.get(i, j, k): number of instances of opinion (1) word k assigned to viewpoint i and topic j, size V x T x W
+	protected int[][] n1vzwsum; // n1vzwsum[i][j]: total number of opinion (1) words assigned to viewpoint i and topic j, size V x T
 	
-	protected double[] nv; // nv[i]: number of documents assigned to viewpoint i, size V
-	protected double nvsum; // nvsum: total number of documents, size 1
+	protected int[] nv; // nv[i]: number of documents assigned to viewpoint i, size V
+	protected DocumentOpinionCounts[] docCounts; // docCounts[d]: number of sentences and of opinion words of document d per topic, size D
+	protected int nvsum; // nvsum: total number of documents, size 1
 	
 	protected double[] pz;
 	protected double[] pv;
 	
-	// Random number generators
-	private Random topicRandomGenerator;
-	private Random viewpointRandomGenerator;
+	protected String kernel; // kind of the kernel computing the topic probabilities (see TopicKernel.create())
+	protected int nthreads; // number of threads computing the perplexity
+	
+	// Random number generator
+	protected long seed; // seed of the random number generators of the run
+	protected Xoshiro256 random; // random number generator of the initialization and of the sampling with this model
+	
+	// Out-of-core mode: name of the assignment files of this model in the chunks of the corpus, null if the corpus is in memory
+	protected String assignName;
+	
+	/**
+	 * Task run on the chunks of the corpus in out-of-core mode (see
+	 * forEachChunk()).
+	 */
+	public interface ChunkTask {
+		/**
+		 * @param c index of the chunk, whose corpus (and assignments) are
+		 * the current ones of the model
+		 */
+		void run(int c) throws IOException;
+	}
+	
+	/**
+	 * Corpus and assignments of a chunk read from disk.
+	 */
+	private static class Chunk {
+		Corpus corpus;
+		int[] vAssign;
+		int[][] zAssign;
+		DocumentOpinionCounts[] docCounts;
+	}
 	
 	//---------------------------------------------------------------
 	// Constructors
@@ -166,6 +223,7 @@ public class Model {
 		twordsSuffix = ".twords";
 		vtwordsSuffix = ".vtwords";
 		wordMapSuffix = ".wordmap";
+		checkpointSuffix = ".checkpoint";
 		defaultModelName = "model-final";
 		
 		dir = "./";
@@ -185,6 +243,17 @@ public class Model {
 		beta1 = 0.05;
 		nchains = 1;
 		niters = 2000;
+		chain = 1;
+		iteration = 0;
+		stopIteration = 0;
+		finished = false;
+		lastLogLikelihood = Double.NaN;
+		lastViewpoints = null;
+		stableChecks = 0;
+		reportedLogLikelihoods = new ArrayList<Double>();
+		maxDenseCounts = 1L << 26;
+		kernel = "auto";
+		nthreads = 1;
 		
 		zAssign = null;
 		vAssign = null;
@@ -195,14 +264,15 @@ public class Model {
 		nvzsum = null;
 		n0zwsum = null;
 		n1vzwsum = null;
+		docCounts = null;
 		
 		theta = null;
 		pi = null;
-		phi0 = null;
-		phi1 = null;
+		phi = null;
 		
-		topicRandomGenerator = null;
-		viewpointRandomGenerator = null;
+		seed = 0;
+		random = null;
+		assignName = null;
 	}
 	
 	//---------------------------------------------------------------
@@ -277,10 +347,12 @@ public class Model {
 				zAssign = new int[D][];
 				vAssign = new int[D];
 				data = new Dataset(D);
+				Corpus.Builder builder = new Corpus.Builder(false);
+				int[] words = new int[64];
+				int[] pos = new int[64];
 				data.W = W;
 				data.W0 = W0;
 				data.W1 = W1;
-				data.wordIdPosMap = new HashMap<Integer, Map<Integer, Boolean>>();
 			
 				for (d = 0; d < D; d++) {
 					// one document per line
@@ -294,16 +366,10 @@ public class Model {
 					
 					// assign values for v
 					vAssign[d] = viewpoint;
-					
-					Vector<Sentence> sentences = new Vector<Sentence>();
+					zAssign[d] = new int[length];
 					
 					// the next tokens are the topic assignment for each sentence m
 					for (m = 0; m < length; m++) {
-						zAssign[d] = new int[length];
-						
-						Vector<Integer> words = new Vector<Integer>();
-						Vector<Integer> pos = new Vector<Integer>();
-						
 						String token = tknr.nextToken();
 						
 						// the topic of the sentence and the words are separated by ;
@@ -317,6 +383,11 @@ public class Model {
 						String topicId = tknr2.nextToken(); // the second token contains topicId
 						zAssign[d][m] = Integer.parseInt(topicId);
 						
+						if (posWords.length > words.length) {
+							words = new int[posWords.length];
+							pos = new int[posWords.length];
+						}
+						int n = 0;
 						for (String posWord : posWords) {
 							// each posWord is made of a word and its part-of-speech,
 							// separated by :
@@ -324,38 +395,26 @@ public class Model {
 							int wordId = Integer.parseInt(posWordSplit[0]);
 							int _pos = Integer.parseInt(posWordSplit[1]);
 							
-							// check if wordId is in the wordIdPosMap
-							if (!data.wordIdPosMap.containsKey(wordId)) {
-								// first time this word occurs at all
-								Map<Integer, Boolean> currentWordPosMap = new HashMap<Integer, Boolean>();
-								currentWordPosMap.put(0, false); // word with pos category 0 hasn't been seen yet
-								currentWordPosMap.put(1, false); // word with pos category 1 hasn't been seen yet
-								data.wordIdPosMap.put(wordId, currentWordPosMap);
-							}
-							
-							// check the pos category of wordId
-							if (_pos == 0 && !data.wordIdPosMap.get(wordId).get(0)) {
-								// first time this word occurs as a topical word
-								// word with pos category 0 has now been seen
-								data.wordIdPosMap.get(wordId).put(0, true);
-							} else if (_pos == 1 && !data.wordIdPosMap.get(wordId).get(1)) {
-								// first time this word occurs as an opinion word
-								// word with pos category 1 has now been seen
-								data.wordIdPosMap.get(wordId).put(1, true);
+							// the word has now been seen with its pos category
+							if (_pos == 0) {
+								data.topicalWords.set(wordId);
+							} else if (_pos == 1) {
+								data.opinionWords.set(wordId);
 							}
 							
-							words.add(wordId);
-							pos.add(_pos);
+							words[n] = wordId;
+							pos[n] = _pos;
+							n++;
 						}
-						Sentence sentence = new Sentence(words, pos);
-						sentences.add(sentence);
+						builder.addSentence(words, pos, n, "");
 					}
 					
-					// allocate and add new document to the corpus
-					Document doc = new Document(sentences);
-					data.setDoc(doc, d);
+					// add the new document to the corpus
+					builder.endDocument("");
 					
 				}// end for each doc
+				
+				data.corpus = builder.build();
 			
 			} finally {
 				reader.close();
@@ -388,7 +447,8 @@ public class Model {
 			return false;
 		}
 			
-		data.localDict = dict;
+		// the dictionary of a trained model is only read
+		data.localDict = dict.freeze();
 		
 		return true;
 	}
@@ -397,27 +457,19 @@ public class Model {
 	 * Save viewpoint and topic assignments for this model.
 	 */
 	public boolean saveModelAssign(String filename) {
-		int d, m, n;
-		
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			final BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
 			
-			// write docs with viewpoint assignments and topic assignments for sentences
-			for (d = 0; d < data.D; d++) {
-				writer.write(vAssign[d] + "|");
-				for (m = 0; m < data.docs[d].length; ++m) {
-					for (n = 0; n < data.docs[d].sentences[m].length; n++) {
-						String space = (n == data.docs[d].sentences[m].length - 1 ? "" : " ");
-						int word = data.docs[d].sentences[m].words[n];
-						int pos = data.docs[d].sentences[m].pos[n];
-						writer.write(word + ":" + pos + space);
+			if (data.chunks == null) {
+				writeAssignments(writer);
+			} else {
+				forEachChunk(true, false, new ChunkTask() {
+					public void run(int c) throws IOException {
+						writeAssignments(writer);
 					}
-					String pipe = (m == data.docs[d].length - 1 ? "" : "|");
-					writer.write(";" + zAssign[d][m] + pipe);
-				}
-				writer.write("\n");
+				});
 			}
-				
+			
 			writer.close();
 			
 		} catch (Exception e) {
@@ -429,18 +481,45 @@ public class Model {
 		return true;
 	}
 	
+	/**
+	 * Write the documents of the current corpus with their viewpoint
+	 * assignments and the topic assignments of their sentences.
+	 */
+	private void writeAssignments(BufferedWriter writer) throws IOException {
+		int d, m, n;
+		Corpus corpus = data.corpus;
+		
+		// write docs with viewpoint assignments and topic assignments for sentences
+		for (d = 0; d < corpus.D; d++) {
+			writer.write(vAssign[d] + "|");
+			for (m = 0; m < corpus.length(d); ++m) {
+				int s = corpus.sentence(d, m);
+				for (n = corpus.sentenceStart[s]; n < corpus.sentenceStart[s + 1]; n++) {
+					String space = (n == corpus.sentenceStart[s + 1] - 1 ? "" : " ");
+					int word = corpus.words[n];
+					int pos = corpus.pos(n);
+					writer.write(word + ":" + pos + space);
+				}
+				String pipe = (m == corpus.length(d) - 1 ? "" : "|");
+				writer.write(";" + zAssign[d][m] + pipe);
+			}
+			writer.write("\n");
+		}
+	}
+	
 	/**
 	 * Save theta (topic distribution) for this model.
 	 */
 	public boolean saveModelTheta(String filename) {
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			NumberWriter writer = new NumberWriter(filename);
 			
 			for (int i = 0; i < V; i++) {
 				for (int j = 0; j < T; j++) {
-					writer.write(theta[i][j] + " ");
+					writer.write(theta[i][j]);
+					writer.write(' ');
 				}
-				writer.write("\n");
+				writer.write('\n');
 			}
 			
 			writer.close();
@@ -459,10 +538,11 @@ public class Model {
 	 */
 	public boolean saveModelPi(String filename) {
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			NumberWriter writer = new NumberWriter(filename);
 			
 			for (int i = 0; i < V; i++) {
-				writer.write(pi[i] + " ");
+				writer.write(pi[i]);
+				writer.write(' ');
 			}
 			
 			writer.close();
@@ -477,17 +557,21 @@ public class Model {
 	}
 	
 	/**
-	 * Save phi0 (topical word distribution) for this model.
+	 * Save phi0 (topical word distribution) for this model, one row at a
+	 * time.
 	 */
 	public boolean saveModelPhi0(String filename) {
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			NumberWriter writer = new NumberWriter(filename);
+			double[] row = new double[W];
 			
 			for (int j = 0; j < T; j++) {
+				phi.getTopicalRow(j, row);
 				for (int k = 0; k < W; k++) {
-					writer.write(phi0[j][k] + " ");
+					writer.write(row[k]);
+					writer.write(' ');
 				}
-				writer.write("\n");
+				writer.write('\n');
 			}
 				
 			writer.close();
@@ -502,20 +586,24 @@ public class Model {
 	}
 	
 	/**
-	 * Save phi1 (opinion word distribution) for this model.
+	 * Save phi1 (opinion word distribution) for this model, one row at a
+	 * time.
 	 */
 	public boolean saveModelPhi1(String filename) {
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+			NumberWriter writer = new NumberWriter(filename);
+			double[] row = new double[W];
 			
 			for (int i = 0; i < V; i++) {
 				for (int j = 0; j < T; j++) {
+					phi.getOpinionRow(i, j, row);
 					for (int k = 0; k < W; k++) {
-						writer.write(phi1[i][j][k] + " ");
+						writer.write(row[k]);
+						writer.write(' ');
 					}
-					writer.write("\n");
+					writer.write('\n');
 				}
-				writer.write("\n");
+				writer.write('\n');
 			}
 				
 			writer.close();
@@ -547,6 +635,9 @@ public class Model {
 			writer.write("ntopwords=" + W0 + "\n");
 			writer.write("nopwords=" + W1 + "\n");
 			writer.write("perplexity=" + perplexity + "\n");
+			if (stopIteration > 0) {
+				writer.write("stopiter=" + stopIteration + "\n");
+			}
 			
 			writer.close();
 			
@@ -571,11 +662,13 @@ public class Model {
 				topwords = W;
 			}
 			
+			double[] row = new double[W];
 			for (int j = 0; j < T; j++) {
 				List<Pair> wordsProbsList = new ArrayList<Pair>();
 				
+				phi.getTopicalRow(j, row);
 				for (int k = 0; k < W; k++) {
-					Pair p = new Pair(k, phi0[j][k], false);
+					Pair p = new Pair(k, row[k], false);
 
 					wordsProbsList.add(p);
 				} // end for each word
@@ -586,9 +679,8 @@ public class Model {
 				
 				Set<String> wordList = new HashSet<String>();			
 				for (int t = 0; t < wordsProbsList.size() && wordList.size() < topwords; t++) {
-					if (data.localDict.contains((Integer)wordsProbsList.get(t).first)) {
-						String word = data.localDict.getWord((Integer)wordsProbsList.get(t).first);
-						
+					String word = data.localDict.getWord((Integer)wordsProbsList.get(t).first);
+					if (word != null) {
 						if (!wordList.contains(word)) {
 							writer.write("\t" + word + " " + wordsProbsList.get(t).second + "\n");
 							wordList.add(word);
@@ -620,12 +712,14 @@ public class Model {
 				topwords = W;
 			}
 			
+			double[] row = new double[W];
 			for (int i = 0; i < V; i++) {
 				for (int j = 0; j < T; j++) {
 					List<Pair> wordsProbsList = new ArrayList<Pair>();
 					
+					phi.getOpinionRow(i, j, row);
 					for (int k = 0; k < W; k++) {
-						Pair p = new Pair(k, phi1[i][j][k], false);
+						Pair p = new Pair(k, row[k], false);
 						
 						wordsProbsList.add(p);
 					} // end for each word
@@ -635,9 +729,8 @@ public class Model {
 					Collections.sort(wordsProbsList);
 					
 					for (int t = 0; t < topwords; t++) {
-						if (data.localDict.contains((Integer)wordsProbsList.get(t).first)) {
-							String word = data.localDict.getWord((Integer)wordsProbsList.get(t).first);
-							
+						String word = data.localDict.getWord((Integer)wordsProbsList.get(t).first);
+						if (word != null) {
 							writer.write("\t" + word + " " + wordsProbsList.get(t).second + "\n");							
 						}
 					}
@@ -696,6 +789,252 @@ public class Model {
 		return true;
 	}
 	
+	//---------------------------------------------------------------
+	// Checkpoint Methods
+	//---------------------------------------------------------------
+	
+	/**
+	 * @return the name of the checkpoint file of the chain of this model
+	 */
+	public String getCheckpointFilename() {
+		return dir + File.separator + "model-" + Utils.zeroPad(chain, 2) + checkpointSuffix;
+	}
+	
+	/**
+	 * Save a binary checkpoint of the chain, from which the sampling can be
+	 * resumed (-resume): the iteration, whether the chain is finished, the
+	 * hyperparameters, the convergence state of the chain, the state of the
+	 * random number generator, the count variables and the assignments. The
+	 * checkpoint is written to a temporary file, which then replaces the
+	 * previous checkpoint of the chain.
+	 */
+	public boolean saveCheckpoint() {
+		String filename = getCheckpointFilename();
+		String tmpFilename = filename + ".tmp";
+		
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFilename), 1 << 16));
+			
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(chain);
+			out.writeInt(iteration);
+			out.writeInt(stopIteration);
+			out.writeBoolean(finished);
+			out.writeLong(seed);
+			for (long state : random.getState()) {
+				out.writeLong(state);
+			}
+			
+			out.writeInt(D);
+			out.writeInt(W);
+			out.writeInt(W0);
+			out.writeInt(W1);
+			out.writeInt(T);
+			out.writeInt(V);
+			out.writeDouble(alpha);
+			out.writeDouble(eta);
+			out.writeDouble(beta0);
+			out.writeDouble(beta1);
+			
+			// convergence state
+			out.writeDouble(lastLogLikelihood);
+			out.writeInt(stableChecks);
+			out.writeBoolean(lastViewpoints != null);
+			if (lastViewpoints != null) {
+				writeInts(out, lastViewpoints);
+			}
+			out.writeInt(reportedLogLikelihoods.size());
+			for (double logLikelihood : reportedLogLikelihoods) {
+				out.writeDouble(logLikelihood);
+			}
+			
+			// count variables
+			writeInts(out, nv);
+			out.writeInt(nvsum);
+			for (int i = 0; i < V; i++) {
+				writeInts(out, nvz[i]);
+			}
+			writeInts(out, nvzsum);
+			writeInts(out, n0zw);
+			writeInts(out, n0zwsum);
+			for (int i = 0; i < V; i++) {
+				writeInts(out, n1vzwsum[i]);
+			}
+			
+			// opinion word counts, as the list of the non-zero counts of
+			// every viewpoint and word
+			int[] counts = new int[T];
+			for (int i = 0; i < V; i++) {
+				for (int k = 0; k < W; k++) {
+					n1vzw.getTopics(i, k, counts);
+					int nonZero = 0;
+					for (int j = 0; j < T; j++) {
+						if (counts[j] != 0) {
+							nonZero++;
+						}
+					}
+					out.writeInt(nonZero);
+					for (int j = 0; j < T; j++) {
+						if (counts[j] != 0) {
+							out.writeInt(j);
+							out.writeInt(counts[j]);
+						}
+					}
+				}
+			}
+			
+			// assignments, in the order of the documents
+			if (data.chunks == null) {
+				writeAssignments(out);
+			} else {
+				forEachChunk(true, false, new ChunkTask() {
+					public void run(int c) throws IOException {
+						writeAssignments(out);
+					}
+				});
+			}
+			
+			out.close();
+			Files.move(Paths.get(tmpFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+		} catch (Exception e) {
+			System.out.println("Error while saving checkpoint: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Restore the chain of this model from its checkpoint. The count
+	 * variables must have been allocated.
+	 */
+	protected boolean readCheckpoint(String filename) {
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+			
+			if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION || in.readInt() != chain) {
+				System.out.println("Invalid checkpoint: " + filename);
+				in.close();
+				return false;
+			}
+			iteration = in.readInt();
+			stopIteration = in.readInt();
+			finished = in.readBoolean();
+			seed = in.readLong();
+			long[] state = new long[4];
+			for (int x = 0; x < 4; x++) {
+				state[x] = in.readLong();
+			}
+			random.setState(state);
+			
+			if (in.readInt() != D || in.readInt() != W || in.readInt() != W0 || in.readInt() != W1 || in.readInt() != T || in.readInt() != V) {
+				System.out.println("The checkpoint " + filename + " was written for another dataset or number of topics or viewpoints");
+				in.close();
+				return false;
+			}
+			alpha = in.readDouble();
+			eta = in.readDouble();
+			beta0 = in.readDouble();
+			beta1 = in.readDouble();
+			
+			// convergence state
+			lastLogLikelihood = in.readDouble();
+			stableChecks = in.readInt();
+			lastViewpoints = null;
+			if (in.readBoolean()) {
+				lastViewpoints = new int[D];
+				readInts(in, lastViewpoints);
+			}
+			reportedLogLikelihoods = new ArrayList<Double>();
+			int nreported = in.readInt();
+			for (int x = 0; x < nreported; x++) {
+				reportedLogLikelihoods.add(in.readDouble());
+			}
+			
+			// count variables
+			readInts(in, nv);
+			nvsum = in.readInt();
+			for (int i = 0; i < V; i++) {
+				readInts(in, nvz[i]);
+			}
+			readInts(in, nvzsum);
+			readInts(in, n0zw);
+			readInts(in, n0zwsum);
+			for (int i = 0; i < V; i++) {
+				readInts(in, n1vzwsum[i]);
+			}
+			for (int i = 0; i < V; i++) {
+				for (int k = 0; k < W; k++) {
+					int nonZero = in.readInt();
+					for (int x = 0; x < nonZero; x++) {
+						int j = in.readInt();
+						n1vzw.add(i, j, k, in.readInt());
+					}
+				}
+			}
+			
+			// assignments
+			if (data.chunks == null) {
+				readAssignments(in);
+				initDocumentCounts();
+			} else {
+				forEachChunk(false, true, new ChunkTask() {
+					public void run(int c) throws IOException {
+						readAssignments(in);
+					}
+				});
+			}
+			
+			in.close();
+		} catch (Exception e) {
+			System.out.println("Error while reading checkpoint: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Write the assignments of the documents of the current corpus to a
+	 * checkpoint.
+	 */
+	private void writeAssignments(DataOutputStream out) throws IOException {
+		for (int d = 0; d < data.corpus.D; d++) {
+			out.writeInt(vAssign[d]);
+			writeInts(out, zAssign[d]);
+		}
+	}
+	
+	/**
+	 * Read the assignments of the documents of the current corpus from a
+	 * checkpoint.
+	 */
+	private void readAssignments(DataInputStream in) throws IOException {
+		Corpus corpus = data.corpus;
+		zAssign = new int[corpus.D][];
+		vAssign = new int[corpus.D];
+		for (int d = 0; d < corpus.D; d++) {
+			vAssign[d] = in.readInt();
+			zAssign[d] = new int[corpus.length(d)];
+			readInts(in, zAssign[d]);
+		}
+	}
+	
+	private static void writeInts(DataOutputStream out, int[] src) throws IOException {
+		for (int x : src) {
+			out.writeInt(x);
+		}
+	}
+	
+	private static void readInts(DataInputStream in, int[] dest) throws IOException {
+		for (int x = 0; x < dest.length; x++) {
+			dest[x] = in.readInt();
+		}
+	}
+	
 	//---------------------------------------------------------------
 	// Init Methods
 	//---------------------------------------------------------------
@@ -739,10 +1078,176 @@ public class Model {
 		
 		dfile = option.dfile;
 		topwords = option.topwords;
+		maxDenseCounts = option.maxdensecounts;
+		kernel = option.kernel;
+		nthreads = option.nthreads;
+		seed = (option.seed != 0 ? option.seed : Xoshiro256.randomSeed());
 		
 		return true;
 	}
 	
+	/**
+	 * Init the per-document counts of the sentences and opinion words
+	 * from the topic assignments.
+	 */
+	protected void initDocumentCounts() {
+		docCounts = new DocumentOpinionCounts[D];
+		for (int d = 0; d < D; d++) {
+			docCounts[d] = new DocumentOpinionCounts(data.corpus, d, zAssign[d]);
+		}
+	}
+	
+	/**
+	 * Init the count variables from the assignments.
+	 */
+	protected void initCounts() {
+		int d, m, n, i, j;
+		
+		nvz = new int[V][T];
+		for (i = 0; i < V; i++) {
+			for (j = 0; j < T; j++) {
+				nvz[i][j] = 0;
+			}
+		}
+		
+		n0zw = new int[W * T];
+		
+		n1vzw = OpinionWordCounts.create(V, T, W, maxDenseCounts);
+		
+		nv = new int[V];
+		for (i = 0; i < V; i++) {
+			nv[i] = 0;
+		}
+		
+		nvzsum = new int[V];
+		for (i = 0; i < V; i++) {
+			nvzsum[i] = 0;
+		}
+		
+		n0zwsum = new int[T];
+		for (j = 0; j < T; j++) {
+			n0zwsum[j] = 0;
+		}
+		
+		n1vzwsum = new int[V][T];
+		for (i = 0; i < V; i++) {
+			for (j = 0; j < T; j++) {
+				n1vzwsum[i][j] = 0;
+			}
+		}
+		
+		nvsum = 0;
+		
+		// initialize count variables
+		for (d = 0; d < data.D; d++) {
+			int M = data.corpus.length(d); // number of sentences
+			
+			int viewpoint = vAssign[d];
+			
+			// increment the number of documents assigned to viewpoint
+			nv[viewpoint] += 1;
+
+			// increment the total number of documents
+			nvsum += 1;
+			
+			for (m = 0; m < M; m++) {
+				int s = data.corpus.sentence(d, m);
+				
+				int topic = zAssign[d][m];
+				
+				for (n = data.corpus.sentenceStart[s]; n < data.corpus.sentenceStart[s + 1]; n++) {
+					int word = data.corpus.words[n];
+					int pos = data.corpus.pos(n);
+					
+					if (pos == 0) {
+						// topical word
+						
+						// increment the number of topical instances of word assigned to topic
+						n0zw[word*T + topic] += 1;
+						
+						// increment the total number of topical words assigned to topic
+						n0zwsum[topic] += 1;
+					} else if (pos == 1) {
+						// opinion word
+						
+						// increment the number of opinion instances of word assigned to viewpoint and topic
+						n1vzw.add(viewpoint, topic, word, 1);
+						
+						// increment the total number of opinion words assigned to viewpoint and topic
+						n1vzwsum[viewpoint][topic] += 1;
+					}
+				}
+				
+				// increment the number of sentences in the collection assigned to viewpoint and topic
+				nvz[viewpoint][topic] += 1;
+				
+				// increment the total number of sentences in the collection assigned to viewpoint
+				nvzsum[viewpoint] += 1;
+			}
+		}
+	}
+	
+	/**
+	 * Read the data file, or its binary cache (see CorpusCache) if it is up
+	 * to date. The cache is written after the data file is read, unless it
+	 * is disabled or the raw data is kept.
+	 * @param dict dictionary against which the data file is read, null for
+	 * training data
+	 * @return dataset if success and null otherwise
+	 */
+	protected Dataset readDataSet(CmdOption option, Dictionary dict) {
+		String filename = dir + File.separator + dfile;
+		CorpusCache cache = null;
+		
+		if (!option.nocache && !option.withrawdata) {
+			cache = new CorpusCache(filename);
+			try {
+				Dataset dataset = cache.read(dict);
+				if (dataset != null) {
+					System.out.println("Dataset read from " + cache.getFilename());
+					return dataset;
+				}
+			} catch (IOException e) {
+				System.out.println("Error while reading the corpus cache: " + e.getMessage());
+			}
+		}
+		
+		Dataset dataset = Dataset.readDataSet(filename, dict, option.withrawdata, option.readthreads);
+		if (dataset != null && cache != null) {
+			try {
+				cache.write(dataset, dict);
+			} catch (IOException e) {
+				System.out.println("Error while writing the corpus cache: " + e.getMessage());
+			}
+		}
+		
+		return dataset;
+	}
+	
+	/**
+	 * Read the training data file into chunks on disk (see ChunkedCorpus),
+	 * for out-of-core estimation.
+	 * @return dataset if success and null otherwise
+	 */
+	protected Dataset readChunkedDataSet(CmdOption option) {
+		String filename = dir + File.separator + dfile;
+		
+		ChunkedCorpus chunks;
+		try {
+			chunks = new ChunkedCorpus(filename, 1024L * option.chunksize);
+		} catch (IOException e) {
+			System.out.println("Error while creating the chunks of the corpus: " + e.getMessage());
+			return null;
+		}
+		
+		Dataset dataset = Dataset.readDataSet(filename, chunks, option.readthreads);
+		if (dataset != null) {
+			System.out.println("Dataset read into " + chunks.getChunkCount() + " chunks");
+		}
+		
+		return dataset;
+	}
+	
 	/**
 	 * Init parameters for estimation.
 	 * @throws UnsupportedEncodingException 
@@ -753,14 +1258,46 @@ public class Model {
 			return false;
 		}
 		
+		Dataset dataset = (option.chunksize > 0 ? readChunkedDataSet(option) : readDataSet(option, null));
+		if (dataset == null) {
+			System.out.println("Fail to read training data!\n");
+			return false;
+		}
+		
+		return initNewModel(option, dataset, seed, 1);
+	}
+	
+	/**
+	 * Init parameters for estimation on an already read dataset.
+	 * The dataset is only read, so that it can be shared by several models.
+	 * In out-of-core mode, every model streams the chunks of the corpus with
+	 * its own copy of the dataset, and stores its assignments in the chunks.
+	 * @param trnData the dataset on which we do estimation
+	 * @param seed seed of the random number generators of the run
+	 * @param chain index of the chain sampled with this model, starting from 1:
+	 * every chain draws from its own stream of the generator seeded with seed
+	 */
+	public boolean initNewModel(CmdOption option, Dataset trnData, long seed, int chain) {
+		if (!init(option)) {
+			return false;
+		}
+		
+		this.seed = seed;
+		this.chain = chain;
+		random = new Xoshiro256(seed);
+		for (int c = 1; c < chain; c++) {
+			random.longJump();
+		}
+		
 		int d, m, n, i, j, k;
 		pz = new double[T];
 		pv = new double[V];
 		
-		data = Dataset.readDataSet(dir + File.separator + dfile);
-		if (data == null) {
-			System.out.println("Fail to read training data!\n");
-			return false;
+		if (trnData.chunks == null) {
+			data = trnData;
+		} else {
+			data = trnData.shallowCopy();
+			assignName = Utils.zeroPad(chain, 2);
 		}
 		
 		// assign values for variables		
@@ -775,45 +1312,33 @@ public class Model {
 		// alpha, beta0, beta1, eta: from command line or default values
 		// nchains, niters, savestep: from command line or default values
 
-		nvz = new double[V][T];
+		nvz = new int[V][T];
 		for (i = 0; i < V; i++) {
 			for (j = 0; j < T; j++) {
 				nvz[i][j] = 0;
 			}
 		}
 		
-		n0zw = new double[T][W];
-		for (j = 0; j < T; j++) {
-			for (k = 0; k < W; k++) {
-				n0zw[j][k] = 0;
-			}
-		}
+		n0zw = new int[W * T];
 		
-		n1vzw = new double[V][T][W];
-		for (i = 0; i < V; i++) {
-			for (j = 0; j < T; j++) {
-				for (k = 0; k < W; k++) {
-					n1vzw[i][j][k] = 0;
-				}
-			}
-		}
+		n1vzw = OpinionWordCounts.create(V, T, W, maxDenseCounts);
 		
-		nv = new double[V];
+		nv = new int[V];
 		for (i = 0; i < V; i++) {
 			nv[i] = 0;
 		}
 		
-		nvzsum = new double[V];
+		nvzsum = new int[V];
 		for (i = 0; i < V; i++) {
 			nvzsum[i] = 0;
 		}
 		
-		n0zwsum = new double[T];
+		n0zwsum = new int[T];
 		for (j = 0; j < T; j++) {
 			n0zwsum[j] = 0;
 		}
 		
-		n1vzwsum = new double[V][T];
+		n1vzwsum = new int[V][T];
 		for (i = 0; i < V; i++) {
 			for (j = 0; j < T; j++) {
 				n1vzwsum[i][j] = 0;
@@ -822,18 +1347,47 @@ public class Model {
 		
 		nvsum = 0;
 		
-		topicRandomGenerator = new Random();
-		viewpointRandomGenerator = new Random();
+		String checkpointFile = getCheckpointFilename();
+		if (option.resume && new File(checkpointFile).exists()) {
+			if (!readCheckpoint(checkpointFile)) {
+				return false;
+			}
+			System.out.println("Chain " + chain + " resumed from " + checkpointFile + " at iteration " + iteration);
+		} else if (data.chunks == null) {
+			initRandomAssignments();
+			initDocumentCounts();
+		} else {
+			// the assignments are initialized and written chunk by chunk
+			forEachChunk(false, true, new ChunkTask() {
+				public void run(int c) {
+					initRandomAssignments();
+				}
+			});
+		}
 		
-		zAssign = new int[D][];
-		vAssign = new int[D];
+		theta = new double[V][T];
+		pi = new double[V];
+		
+		return true;
+	}
+
+	/**
+	 * Assign a random viewpoint to every document of the current corpus and
+	 * a random topic to every sentence, and add them to the count variables.
+	 */
+	protected void initRandomAssignments() {
+		int d, m, n;
+		Corpus corpus = data.corpus;
+		
+		zAssign = new int[corpus.D][];
+		vAssign = new int[corpus.D];
 		
 		// initialize vAssign for each document d
-		for (d = 0; d < data.D; d++) {
-			int M = data.docs[d].length; // number of sentences in document d
+		for (d = 0; d < corpus.D; d++) {
+			int M = corpus.length(d); // number of sentences in document d
 			
 			// choose a random viewpoint for document d
-			int viewpoint = viewpointRandomGenerator.nextInt(V);
+			int viewpoint = random.nextInt(V);
 			vAssign[d] = viewpoint;
 			
 			// increment the number of documents assigned to viewpoint
@@ -846,21 +1400,21 @@ public class Model {
 			
 			// initialize zAssign for each sentence m in document d
 			for (m = 0; m < M; m++) {
-				int N = data.docs[d].sentences[m].length; // number of words in sentence m
+				int s = corpus.sentence(d, m);
 				
 				// choose a random topic for sentence m
-				int topic = topicRandomGenerator.nextInt(T);
+				int topic = random.nextInt(T);
 				zAssign[d][m] = topic;
 				
-				for (n = 0; n < N; n++) {
-					int word = data.docs[d].sentences[m].words[n];
-					int pos = data.docs[d].sentences[m].pos[n];
+				for (n = corpus.sentenceStart[s]; n < corpus.sentenceStart[s + 1]; n++) {
+					int word = corpus.words[n];
+					int pos = corpus.pos(n);
 					
 					if (pos == 0) {
 						// topical word
 						
 						// increment the number of topical instances of word assigned to topic
-						n0zw[topic][word] += 1;
+						n0zw[word*T + topic] += 1;
 						
 						// increment the total number of topical words assigned to topic
 						n0zwsum[topic] += 1;
@@ -868,7 +1422,7 @@ public class Model {
 						// opinion word
 						
 						// increment the number of opinion instances of word assigned to viewpoint and topic
-						n1vzw[viewpoint][topic][word] += 1;
+						n1vzw.add(viewpoint, topic, word, 1);
 						
 						// increment the total number of opinion words assigned to viewpoint and topic
 						n1vzwsum[viewpoint][topic] += 1;
@@ -882,15 +1436,8 @@ public class Model {
 				nvzsum[viewpoint] += 1;
 			}
 		}
-		
-		theta = new double[V][T];
-		pi = new double[V];
-		phi0 = new double[T][W];
-		phi1 = new double[V][T][W];
-		
-		return true;
 	}
-
+	
 	/**
 	 * Init parameters for inference.
 	 * @param newData the dataSet for which we do inference
@@ -932,45 +1479,33 @@ public class Model {
 		// alpha, beta0, beta1, eta: from command line or default values
 		// nchains, niters, savestep: from command line or default values
 
-		nvz = new double[V][T];
+		nvz = new int[V][T];
 		for (i = 0; i < V; i++) {
 			for (j = 0; j < T; j++) {
 				nvz[i][j] = 0;
 			}
 		}
 		
-		n0zw = new double[T][W];
-		for (j = 0; j < T; j++) {
-			for (k = 0; k < W; k++) {
-				n0zw[j][k] = 0;
-			}
-		}
+		n0zw = new int[W * T];
 		
-		n1vzw = new double[V][T][W];
-		for (i = 0; i < V; i++) {
-			for (j = 0; j < T; j++) {
-				for (k = 0; k < W; k++) {
-					n1vzw[i][j][k] = 0;
-				}
-			}
-		}
+		n1vzw = OpinionWordCounts.create(V, T, W, maxDenseCounts);
 		
-		nv = new double[V];
+		nv = new int[V];
 		for (i = 0; i < V; i++) {
 			nv[i] = 0;
 		}
 		
-		nvzsum = new double[V];
+		nvzsum = new int[V];
 		for (i = 0; i < V; i++) {
 			nvzsum[i] = 0;
 		}
 		
-		n0zwsum = new double[T];
+		n0zwsum = new int[T];
 		for (j = 0; j < T; j++) {
 			n0zwsum[j] = 0;
 		}
 		
-		n1vzwsum = new double[V][T];
+		n1vzwsum = new int[V][T];
 		for (i = 0; i < V; i++) {
 			for (j = 0; j < T; j++) {
 				n1vzwsum[i][j] = 0;
@@ -979,19 +1514,18 @@ public class Model {
 		
 		nvsum = 0;
 		
-		topicRandomGenerator = new Random();
-		viewpointRandomGenerator = new Random();
+		random = new Xoshiro256(seed);
 		
 		zAssign = new int[D][];
 		vAssign = new int[D];
 		
 		// initialize vAssign for each document d
 		for (d = 0; d < data.D; d++) {
-			int M = data.docs[d].length; // number of sentences
+			int M = data.corpus.length(d); // number of sentences
 			zAssign[d] = new int[M];
 			
 			// choose a random viewpoint for document d
-			int viewpoint = viewpointRandomGenerator.nextInt(V);
+			int viewpoint = random.nextInt(V);
 			vAssign[d] = viewpoint;
 			
 			// increment the number of documents assigned to viewpoint
@@ -1002,21 +1536,21 @@ public class Model {
 			
 			// initialize zAssign for each sentence m in document d
 			for (m = 0; m < M; m++) {
-				int N = data.docs[d].sentences[m].length; // number of words in the sentence m
+				int s = data.corpus.sentence(d, m);
 				
 				// choose a random topic for sentence m
-				int topic = topicRandomGenerator.nextInt(T);
+				int topic = random.nextInt(T);
 				zAssign[d][m] = topic;
 				
-				for (n = 0; n < N; n++) {
-					int word = data.docs[d].sentences[m].words[n];
-					int pos = data.docs[d].sentences[m].pos[n];
+				for (n = data.corpus.sentenceStart[s]; n < data.corpus.sentenceStart[s + 1]; n++) {
+					int word = data.corpus.words[n];
+					int pos = data.corpus.pos(n);
 					
 					if (pos == 0) {
 						// topical word
 						
 						// increment the number of topical instances of word assigned to topic
-						n0zw[topic][word] += 1;
+						n0zw[word*T + topic] += 1;
 						
 						// increment the total number of topical words assigned to topic
 						n0zwsum[topic] += 1;
@@ -1024,7 +1558,7 @@ public class Model {
 						// opinion word
 						
 						// increment the number of opinion instances of word assigned to viewpoint and topic
-						n1vzw[viewpoint][topic][word] += 1;
+						n1vzw.add(viewpoint, topic, word, 1);
 						
 						// increment the total number of opinion words assigned to viewpoint and topic
 						n1vzwsum[viewpoint][topic] += 1;
@@ -1039,10 +1573,10 @@ public class Model {
 			}
 		}
 		
+		initDocumentCounts();
+		
 		theta = new double[V][T];
 		pi = new double[V];
-		phi0 = new double[T][W];
-		phi1 = new double[V][T][W];
 		
 		return true;
 	}
@@ -1055,7 +1589,7 @@ public class Model {
 		if (!init(option))
 			return false;
 		
-		Dataset dataset = Dataset.readDataSet(dir + File.separator + dfile, trnModel.data.localDict);
+		Dataset dataset = readDataSet(option, trnModel.data.localDict);
 		if (dataset == null) {
 			System.out.println("Fail to read dataset!\n");
 			return false;
@@ -1071,8 +1605,6 @@ public class Model {
 		if (!init(option))
 			return false;
 		
-		int d, m, n, i, j, k;
-		
 		pz = new double[T];
 		pv = new double[V];
 		
@@ -1092,164 +1624,348 @@ public class Model {
 		System.out.println("\tW0:" + W0);	
 		System.out.println("\tW1:" + W1);	
 		
-		nvz = new double[V][T];
-		for (i = 0; i < V; i++) {
-			for (j = 0; j < T; j++) {
-				nvz[i][j] = 0;
+		initCounts();
+	 
+		theta = new double[V][T];
+		pi = new double[V];
+		dir = option.dir;
+		savestep = option.savestep;
+	 
+		return true;
+	}
+	
+	/**
+	 * Compute the perplexity of the model
+	 */
+	public void computePerplexity() {
+		final LikelihoodEvaluator evaluator = new LikelihoodEvaluator(this);
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(nthreads, 1));
+		
+		try {
+			if (data.chunks == null) {
+				perplexity = Math.exp(-evaluator.logLikelihood(data.corpus, pool)/data.corpus.N);
+				return;
 			}
+			
+			final double[] logP = new double[1];
+			final long[] N = new long[1];
+			forEachChunk(false, false, new ChunkTask() {
+				public void run(int c) {
+					logP[0] += evaluator.logLikelihood(data.corpus, pool);
+					N[0] += data.corpus.N;
+				}
+			});
+			
+			perplexity = Math.exp(-logP[0]/N[0]);
+		} finally {
+			pool.shutdown();
 		}
+	}
+	
+	//---------------------------------------------------------------
+	// Out-of-core Methods
+	//---------------------------------------------------------------
+	
+	/**
+	 * Run a task on every chunk of the corpus, in out-of-core mode. The
+	 * chunks are streamed from disk in order: the next chunk is read by
+	 * another thread while the task runs on the current one, whose corpus
+	 * and assignments become the current ones of the model (the documents
+	 * are then indexed within the chunk). The assignments of a chunk are
+	 * written back by the same thread after the task.
+	 * @param readAssignments whether the assignments of the chunks, and the
+	 * per-document counts, are read (otherwise, only the corpus is read)
+	 * @param writeAssignments whether the assignments of the chunks are
+	 * written after the task
+	 */
+	public void forEachChunk(final boolean readAssignments, boolean writeAssignments, ChunkTask task) {
+		final ChunkedCorpus chunks = data.chunks;
+		int nchunks = chunks.getChunkCount();
+		ExecutorService io = Executors.newSingleThreadExecutor();
+		List<Future<Void>> writes = new ArrayList<Future<Void>>();
 		
-		n0zw = new double[T][W];
-		for (j = 0; j < T; j++) {
-			for (k = 0; k < W; k++) {
-				n0zw[j][k] = 0;
+		try {
+			Future<Chunk> next = (nchunks > 0 ? io.submit(chunkReader(0, readAssignments)) : null);
+			for (int c = 0; c < nchunks; c++) {
+				Chunk chunk = next.get();
+				if (c + 1 < nchunks) {
+					next = io.submit(chunkReader(c + 1, readAssignments));
+				}
+				
+				data.corpus = chunk.corpus;
+				if (readAssignments) {
+					vAssign = chunk.vAssign;
+					zAssign = chunk.zAssign;
+					docCounts = chunk.docCounts;
+				}
+				
+				task.run(c);
+				
+				if (writeAssignments) {
+					final int _c = c;
+					final int[] _vAssign = vAssign;
+					final int[][] _zAssign = zAssign;
+					writes.add(io.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							chunks.writeAssignments(assignName, _c, _vAssign, _zAssign);
+							return null;
+						}
+					}));
+				}
+			}
+			
+			for (Future<Void> write : writes) {
+				write.get();
 			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error while streaming the chunks: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Streaming of the chunks interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error while streaming the chunks: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			io.shutdown();
 		}
-		
-		n1vzw = new double[V][T][W];
-		for (i = 0; i < V; i++) {
-			for (j = 0; j < T; j++) {
-				for (k = 0; k < W; k++) {
-					n1vzw[i][j][k] = 0;
+	}
+	
+	/**
+	 * @return a task reading chunk c, and its assignments if
+	 * readAssignments is true
+	 */
+	private Callable<Chunk> chunkReader(final int c, final boolean readAssignments) {
+		return new Callable<Chunk>() {
+			public Chunk call() throws IOException {
+				Chunk chunk = new Chunk();
+				chunk.corpus = data.chunks.readCorpus(c);
+				
+				if (readAssignments) {
+					Corpus corpus = chunk.corpus;
+					chunk.vAssign = new int[corpus.D];
+					chunk.zAssign = new int[corpus.D][];
+					for (int d = 0; d < corpus.D; d++) {
+						chunk.zAssign[d] = new int[corpus.length(d)];
+					}
+					data.chunks.readAssignments(assignName, c, corpus, chunk.vAssign, chunk.zAssign);
+					
+					chunk.docCounts = new DocumentOpinionCounts[corpus.D];
+					for (int d = 0; d < corpus.D; d++) {
+						chunk.docCounts[d] = new DocumentOpinionCounts(corpus, d, chunk.zAssign[d]);
+					}
 				}
+				
+				return chunk;
 			}
+		};
+	}
+	
+	//---------------------------------------------------------------
+	// Parallel Sampling Methods
+	//---------------------------------------------------------------
+	
+	/**
+	 * Create a worker model for parallel sampling. The worker shares the
+	 * dataset, the assignments and the hyperparameters of this model, but
+	 * owns a private copy of the count variables.
+	 */
+	public Model newWorkerModel() {
+		Model worker = copyModel();
+		
+		// every worker draws from its own stream
+		worker.random = random.split();
+		
+		// assignments are shared: each worker only writes those of its own documents
+		shareAssignments(worker);
+		
+		worker.pz = new double[T];
+		worker.pv = new double[V];
+		
+		return worker;
+	}
+	
+	/**
+	 * Create a snapshot of this model, to be saved while the sampling goes
+	 * on. The snapshot shares the dataset and the hyperparameters of this
+	 * model, but owns a copy of the count variables, of the assignments and
+	 * of the state of the random number generator (for its checkpoint), as
+	 * well as its own parameters. The corpus must be in memory.
+	 */
+	public Model snapshot() {
+		Model snapshot = copyModel();
+		
+		snapshot.random = new Xoshiro256(random.getState());
+		snapshot.chain = chain;
+		snapshot.iteration = iteration;
+		snapshot.stopIteration = stopIteration;
+		snapshot.finished = finished;
+		snapshot.lastLogLikelihood = lastLogLikelihood;
+		snapshot.lastViewpoints = (lastViewpoints != null ? lastViewpoints.clone() : null);
+		snapshot.stableChecks = stableChecks;
+		snapshot.reportedLogLikelihoods = new ArrayList<Double>(reportedLogLikelihoods);
+		snapshot.kernel = kernel;
+		snapshot.nthreads = nthreads;
+		
+		snapshot.vAssign = vAssign.clone();
+		snapshot.zAssign = new int[zAssign.length][];
+		for (int d = 0; d < zAssign.length; d++) {
+			snapshot.zAssign[d] = zAssign[d].clone();
 		}
 		
-		nv = new double[V];
-		for (i = 0; i < V; i++) {
-			nv[i] = 0;
+		snapshot.theta = new double[V][T];
+		snapshot.pi = new double[V];
+		
+		return snapshot;
+	}
+	
+	/**
+	 * @return a model sharing the dataset and the hyperparameters of this
+	 * model, with a copy of its count variables
+	 */
+	private Model copyModel() {
+		Model copy = new Model();
+		
+		copy.dir = dir;
+		copy.dfile = dfile;
+		copy.modelName = modelName;
+		copy.data = data;
+		copy.D = D;
+		copy.W = W;
+		copy.W0 = W0;
+		copy.W1 = W1;
+		copy.T = T;
+		copy.V = V;
+		copy.alpha = alpha;
+		copy.eta = eta;
+		copy.beta0 = beta0;
+		copy.beta1 = beta1;
+		copy.nchains = nchains;
+		copy.niters = niters;
+		copy.savestep = savestep;
+		copy.topwords = topwords;
+		copy.maxDenseCounts = maxDenseCounts;
+		copy.seed = seed;
+		
+		copy.nvz = new int[V][T];
+		copy.nvzsum = new int[V];
+		copy.n0zw = new int[W * T];
+		copy.n0zwsum = new int[T];
+		copy.n1vzwsum = new int[V][T];
+		copy.nv = new int[V];
+		copy.copyCounts(this);
+		
+		return copy;
+	}
+	
+	/**
+	 * Share the current assignments of this model with a worker model.
+	 */
+	public void shareAssignments(Model worker) {
+		worker.zAssign = zAssign;
+		worker.vAssign = vAssign;
+		worker.docCounts = docCounts;
+	}
+	
+	/**
+	 * Copy the count variables of the given model into this model.
+	 */
+	protected void copyCounts(Model src) {
+		for (int i = 0; i < V; i++) {
+			System.arraycopy(src.nvz[i], 0, nvz[i], 0, T);
+			System.arraycopy(src.n1vzwsum[i], 0, n1vzwsum[i], 0, T);
+		}
+		n1vzw = src.n1vzw.copy();
+		System.arraycopy(src.n0zw, 0, n0zw, 0, W * T);
+		System.arraycopy(src.nvzsum, 0, nvzsum, 0, V);
+		System.arraycopy(src.n0zwsum, 0, n0zwsum, 0, T);
+		System.arraycopy(src.nv, 0, nv, 0, V);
+		nvsum = src.nvsum;
+	}
+	
+	/**
+	 * Merge the count variables of worker models created from this model
+	 * (AD-LDA): the change made by every worker since the last merge is
+	 * added to the counts of this model, and the merged counts are then
+	 * copied back into the workers for the next iteration.
+	 * The merge is split into nparts independent parts so that it can be
+	 * shared among threads: the word-topic counts are split by ranges of
+	 * words, which are contiguous, and the other counts by ranges of
+	 * topics; the counts that are not indexed by topic are merged along
+	 * with part 0.
+	 * @param workers worker models
+	 * @param part index of the part to merge
+	 * @param nparts number of parts
+	 */
+	protected void mergeWorkerCounts(Model[] workers, int part, int nparts) {
+		int jStart = (T * part) / nparts;
+		int jEnd = (T * (part + 1)) / nparts;
+		int kStart = (int) (((long) W * part) / nparts);
+		int kEnd = (int) (((long) W * (part + 1)) / nparts);
+		int[][] local = new int[workers.length][];
+		
+		for (int w = 0; w < workers.length; w++) {
+			local[w] = workers[w].n0zw;
 		}
+		mergeCounts(n0zw, local, kStart*T, kEnd*T);
 		
-		nvzsum = new double[V];
-		for (i = 0; i < V; i++) {
-			nvzsum[i] = 0;
+		OpinionWordCounts[] localN1vzw = new OpinionWordCounts[workers.length];
+		for (int w = 0; w < workers.length; w++) {
+			localN1vzw[w] = workers[w].n1vzw;
 		}
+		n1vzw.merge(localN1vzw, part, nparts);
 		
-		n0zwsum = new double[T];
-		for (j = 0; j < T; j++) {
-			n0zwsum[j] = 0;
+		for (int w = 0; w < workers.length; w++) {
+			local[w] = workers[w].n0zwsum;
 		}
+		mergeCounts(n0zwsum, local, jStart, jEnd);
 		
-		n1vzwsum = new double[V][T];
-		for (i = 0; i < V; i++) {
-			for (j = 0; j < T; j++) {
-				n1vzwsum[i][j] = 0;
+		for (int i = 0; i < V; i++) {
+			for (int w = 0; w < workers.length; w++) {
+				local[w] = workers[w].n1vzwsum[i];
 			}
+			mergeCounts(n1vzwsum[i], local, jStart, jEnd);
+			
+			for (int w = 0; w < workers.length; w++) {
+				local[w] = workers[w].nvz[i];
+			}
+			mergeCounts(nvz[i], local, jStart, jEnd);
 		}
 		
-		nvsum = 0;
-		
-		// initialize count variables
-		for (d = 0; d < data.D; d++) {
-			int M = data.docs[d].length; // number of sentences
-			
-			int viewpoint = vAssign[d];
+		if (part == 0) {
+			for (int w = 0; w < workers.length; w++) {
+				local[w] = workers[w].nvzsum;
+			}
+			mergeCounts(nvzsum, local, 0, V);
 			
-			// increment the number of documents assigned to viewpoint
-			nv[viewpoint] += 1;
-
-			// increment the total number of documents
-			nvsum += 1;
+			for (int w = 0; w < workers.length; w++) {
+				local[w] = workers[w].nv;
+			}
+			mergeCounts(nv, local, 0, V);
 			
-			for (m = 0; m < M; m++) {
-				int N = data.docs[d].sentences[m].length; // number of words in the sentence m
-				
-				int topic = zAssign[d][m];
-				
-				for (n = 0; n < N; n++) {
-					int word = data.docs[d].sentences[m].words[n];
-					int pos = data.docs[d].sentences[m].pos[n];
-					
-					if (pos == 0) {
-						// topical word
-						
-						// increment the number of topical instances of word assigned to topic
-						n0zw[topic][word] += 1;
-						
-						// increment the total number of topical words assigned to topic
-						n0zwsum[topic] += 1;
-					} else if (pos == 1) {
-						// opinion word
-						
-						// increment the number of opinion instances of word assigned to viewpoint and topic
-						n1vzw[viewpoint][topic][word] += 1;
-						
-						// increment the total number of opinion words assigned to viewpoint and topic
-						n1vzwsum[viewpoint][topic] += 1;
-					}
-				}
-				
-				// increment the number of sentences in the collection assigned to viewpoint and topic
-				nvz[viewpoint][topic] += 1;
-				
-				// increment the total number of sentences in the collection assigned to viewpoint
-				nvzsum[viewpoint] += 1;
+			int sum = nvsum;
+			for (Model worker : workers) {
+				sum += worker.nvsum - nvsum;
+			}
+			nvsum = sum;
+			for (Model worker : workers) {
+				worker.nvsum = nvsum;
 			}
 		}
-	 
-		theta = new double[V][T];
-		pi = new double[V];
-		phi0 = new double[T][W];
-		phi1 = new double[V][T][W];
-		dir = option.dir;
-		savestep = option.savestep;
-	 
-		return true;
 	}
 	
 	/**
-	 * Compute the perplexity of the model
+	 * Merge the entries [start, end) of local count arrays into a global
+	 * count array, and copy the result back into the local arrays.
 	 */
-	public void computePerplexity() {
-		double logP = 0;
-		
-		for (int d = 0; d < D; d++) {
-			Document document = data.docs[d];
-			double[] logPv = new double[V];
-			
-			for (int i = 0; i < V; i++) {
-				logPv[i] = 0;
-				
-				for (int m = 0; m < document.length; m++) {
-					Sentence sentence = data.docs[d].sentences[m];
-					double[] logPz = new double[T];
-					
-					for (int j = 0; j < T; j++) {
-						logPz[j] = 0;
-						
-						for (int n = 0; n < sentence.length; n++) {
-							int word = sentence.words[n];
-							int pos = sentence.pos[n];
-							
-							if (pos == 0) {
-								logPz[j] += Math.log(phi0[j][word]);
-							} else if (pos == 1) {
-								logPz[j] += Math.log(phi1[i][j][word]);
-							}
-						} // end for each word
-						
-						logPz[j] += Math.log(theta[i][j]);
-					} // end for each topic
-					
-					logPv[i] += Utils.logSum(logPz);
-				} // end for each sentence
-				
-				logPv[i] += Math.log(pi[i]);
-			} // end for each viewpoint
-			
-			logP += Utils.logSum(logPv);
-		} // end for each document
-		
-		double N = 0;
-		
-		for (int d = 0; d < D; d++) {
-			Document document = data.docs[d];
-			for (int m = 0; m < document.length; m++) {
-				Sentence sentence = data.docs[d].sentences[m];
-				N += sentence.length;
-			} // end for each sentence
-		} // end for each document
-		
-		perplexity = Math.exp(-logP/N);
+	private static void mergeCounts(int[] global, int[][] local, int start, int end) {
+		for (int x = start; x < end; x++) {
+			int sum = global[x];
+			for (int w = 0; w < local.length; w++) {
+				sum += local[w][x] - global[x];
+			}
+			global[x] = sum;
+			for (int w = 0; w < local.length; w++) {
+				local[w][x] = sum;
+			}
+		}
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+/**
+ * Counts n1vzw[i][j][k] of the instances of opinion word k assigned to
+ * viewpoint i and topic j. Depending on its size, the table is stored
+ * either densely or sparsely (see create()).
+ */
+public abstract class OpinionWordCounts {
+	
+	protected final int V; // number of viewpoints
+	protected final int T; // number of topics
+	protected final int W; // vocabulary size
+	
+	protected OpinionWordCounts(int V, int T, int W) {
+		this.V = V;
+		this.T = T;
+		this.W = W;
+	}
+	
+	/**
+	 * Create a count table filled with zeroes, which is dense if it has at
+	 * most maxDenseSize cells (and fits in a single array) and sparse
+	 * otherwise.
+	 */
+	public static OpinionWordCounts create(int V, int T, int W, long maxDenseSize) {
+		if ((long) V * T * W <= Math.min(maxDenseSize, Integer.MAX_VALUE - 8)) {
+			return new DenseOpinionWordCounts(V, T, W);
+		} else {
+			return new SparseOpinionWordCounts(V, T, W);
+		}
+	}
+	
+	/**
+	 * @return the number of instances of opinion word k assigned to viewpoint i and topic j
+	 */
+	public abstract int get(int i, int j, int k);
+	
+	/**
+	 * Copy into dest[j] the number of instances of opinion word k assigned
+	 * to viewpoint i and topic j, for every topic j.
+	 */
+	public abstract void getTopics(int i, int k, int[] dest);
+	
+	/**
+	 * Add delta to the number of instances of opinion word k assigned to
+	 * viewpoint i and topic j.
+	 */
+	public abstract void add(int i, int j, int k, int delta);
+	
+	/**
+	 * @return a deep copy of this table
+	 */
+	public abstract OpinionWordCounts copy();
+	
+	/**
+	 * Merge the tables of worker models created from this table (AD-LDA):
+	 * the change made in every local table is added to this table, and the
+	 * merged counts are copied back into the local tables. The merge is
+	 * split into nparts independent parts so that it can be shared among
+	 * threads.
+	 * @param local tables of the workers, of the same kind as this table
+	 * @param part index of the part to merge
+	 * @param nparts number of parts
+	 */
+	public abstract void merge(OpinionWordCounts[] local, int part, int nparts);
+}
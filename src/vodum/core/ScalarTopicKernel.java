@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+import vodum.utils.LogGammaCache;
+
+/**
+ * Topic kernel with plain loops over the topics. The rising factorials are
+ * computed as differences of cached log-gamma values, one cache per offset,
+ * which is faster than multiplying their factors without SIMD lanes.
+ */
+public class ScalarTopicKernel extends TopicKernel {
+	
+	private double[] offsets; // offsets of the caches
+	private LogGammaCache[] caches; // caches[c]: log(gamma(offsets[c] + n))
+	private boolean productUsed; // whether multiply() was called since the last reset
+	
+	public ScalarTopicKernel(int T) {
+		super(T);
+		offsets = new double[0];
+		caches = new LogGammaCache[0];
+	}
+	
+	public String getName() {
+		return "scalar";
+	}
+	
+	/**
+	 * @return the log-gamma cache of the given offset, created on first use
+	 */
+	private LogGammaCache cache(double offset) {
+		for (int c = 0; c < offsets.length; c++) {
+			if (offsets[c] == offset) {
+				return caches[c];
+			}
+		}
+		
+		offsets = Arrays.copyOf(offsets, offsets.length + 1);
+		caches = Arrays.copyOf(caches, caches.length + 1);
+		offsets[offsets.length - 1] = offset;
+		caches[caches.length - 1] = new LogGammaCache(offset, Model.LOG_GAMMA_CACHE_SIZE);
+		
+		return caches[caches.length - 1];
+	}
+	
+	public void reset() {
+		Arrays.fill(logAcc, 0.0);
+		if (productUsed) {
+			Arrays.fill(prod, 1.0);
+			productUsed = false;
+		}
+	}
+	
+	public void multiplyRising(int[] counts, int start, double offset, int count) {
+		LogGammaCache cache = cache(offset);
+		for (int j = 0; j < T; j++) {
+			logAcc[j] += cache.logRising(counts[start + j], count);
+		}
+	}
+	
+	public void divideRising(int[] counts, int start, double offset, int count) {
+		LogGammaCache cache = cache(offset);
+		for (int j = 0; j < T; j++) {
+			logAcc[j] -= cache.logRising(counts[start + j], count);
+		}
+	}
+	
+	public void multiply(double[] factors) {
+		productUsed = true;
+		multiply(factors, 0);
+	}
+	
+	public void log(double[] dest) {
+		if (productUsed) {
+			log(dest, 0);
+		} else {
+			System.arraycopy(logAcc, 0, dest, 0, T);
+		}
+	}
+	public int sample(double[] logP, double u) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < T; j++) {
+			max = Math.max(max, logP[j]);
+		}
+		
+		double total = 0;
+		for (int j = 0; j < T; j++) {
+			weights[j] = Math.exp(logP[j] - max);
+			total += weights[j];
+		}
+		
+		return pick(u, total, 0, 0);
+	}
+	
+	public double logSumExp(double[] logP) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < T; j++) {
+			max = Math.max(max, logP[j]);
+		}
+		
+		double sum = 0;
+		for (int j = 0; j < T; j++) {
+			sum += Math.exp(logP[j] - max);
+		}
+		
+		return max + Math.log(sum);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+/**
+ * Sparse opinion word count table. The non-zero counts of each word are
+ * stored in a small open-addressing hash table (with linear probing)
+ * whose keys are the (viewpoint, topic) pairs, so that the counts of a
+ * word for all topics are looked up in the same few cache lines. The
+ * table of a word is only allocated when the word gets a non-zero count.
+ */
+public class SparseOpinionWordCounts extends OpinionWordCounts {
+	
+	private static final int INITIAL_CAPACITY = 4; // capacity of a new word table (a power of 2)
+	
+	private final int[][] keys; // keys[k][s]: pair (i, j) stored in slot s of the table of word k, as i*T + j + 1, 0 for an empty slot
+	private final int[][] values; // values[k][s]: count of the pair stored in slot s of the table of word k
+	private final int[] sizes; // sizes[k]: number of pairs stored in the table of word k
+	
+	public SparseOpinionWordCounts(int V, int T, int W) {
+		super(V, T, W);
+		keys = new int[W][];
+		values = new int[W][];
+		sizes = new int[W];
+	}
+	
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	public int get(int i, int j, int k) {
+		int[] table = keys[k];
+		if (table == null) {
+			return 0;
+		}
+		
+		int key = i*T + j + 1;
+		int mask = table.length - 1;
+		for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+			int stored = table[s];
+			if (stored == key) {
+				return values[k][s];
+			} else if (stored == 0) {
+				return 0;
+			}
+		}
+	}
+	
+	public void getTopics(int i, int k, int[] dest) {
+		Arrays.fill(dest, 0, T, 0);
+		int[] table = keys[k];
+		if (table == null) {
+			return;
+		}
+		
+		// the pairs of viewpoint i are stored as keys i*T + 1 to i*T + T
+		int first = i*T + 1;
+		for (int s = 0; s < table.length; s++) {
+			int j = table[s] - first;
+			if (j >= 0 && j < T) {
+				dest[j] = values[k][s];
+			}
+		}
+	}
+	
+	public void add(int i, int j, int k, int delta) {
+		if (delta != 0) {
+			addKey(k, i*T + j + 1, delta);
+		}
+	}
+	
+	private void addKey(int k, int key, int delta) {
+		if (keys[k] == null) {
+			keys[k] = new int[INITIAL_CAPACITY];
+			values[k] = new int[INITIAL_CAPACITY];
+		}
+		
+		int[] table = keys[k];
+		int mask = table.length - 1;
+		int s = hash(key) & mask;
+		while (table[s] != 0 && table[s] != key) {
+			s = (s + 1) & mask;
+		}
+		
+		if (table[s] == key) {
+			values[k][s] += delta;
+			if (values[k][s] == 0) {
+				remove(k, s);
+			}
+		} else {
+			// new pair for this word
+			table[s] = key;
+			values[k][s] = delta;
+			sizes[k]++;
+			if (2*sizes[k] > table.length) {
+				rehash(k, 2*table.length);
+			}
+		}
+	}
+	
+	/**
+	 * Remove the pair in slot s of the table of word k, shifting back the
+	 * following pairs of its probe sequence.
+	 */
+	private void remove(int k, int s) {
+		int[] table = keys[k];
+		int[] counts = values[k];
+		int mask = table.length - 1;
+		
+		int hole = s;
+		for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int home = hash(table[next]) & mask;
+			// the pair can fill the hole if the hole lies between its home slot and its slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				counts[hole] = counts[next];
+				hole = next;
+			}
+		}
+		table[hole] = 0;
+		counts[hole] = 0;
+		sizes[k]--;
+	}
+	
+	private void rehash(int k, int capacity) {
+		int[] oldTable = keys[k];
+		int[] oldCounts = values[k];
+		int[] table = new int[capacity];
+		int[] counts = new int[capacity];
+		int mask = capacity - 1;
+		
+		for (int s = 0; s < oldTable.length; s++) {
+			if (oldTable[s] != 0) {
+				int t = hash(oldTable[s]) & mask;
+				while (table[t] != 0) {
+					t = (t + 1) & mask;
+				}
+				table[t] = oldTable[s];
+				counts[t] = oldCounts[s];
+			}
+		}
+		
+		keys[k] = table;
+		values[k] = counts;
+	}
+	
+	public OpinionWordCounts copy() {
+		SparseOpinionWordCounts copy = new SparseOpinionWordCounts(V, T, W);
+		for (int k = 0; k < W; k++) {
+			copyWord(this, copy, k);
+		}
+		
+		return copy;
+	}
+	
+	private static void copyWord(SparseOpinionWordCounts src, SparseOpinionWordCounts dest, int k) {
+		dest.keys[k] = (src.keys[k] == null ? null : src.keys[k].clone());
+		dest.values[k] = (src.values[k] == null ? null : src.values[k].clone());
+		dest.sizes[k] = src.sizes[k];
+	}
+	
+	public void merge(OpinionWordCounts[] local, int part, int nparts) {
+		// the parts are ranges of words
+		int kStart = (int) (((long) W * part) / nparts);
+		int kEnd = (int) (((long) W * (part + 1)) / nparts);
+		
+		for (int k = kStart; k < kEnd; k++) {
+			// merged = global + sum_w (local_w - global): the local counts are
+			// added first so that no count becomes negative
+			int[] globalKeys = (keys[k] == null ? null : keys[k].clone());
+			int[] globalCounts = (values[k] == null ? null : values[k].clone());
+			
+			for (int w = 0; w < local.length; w++) {
+				SparseOpinionWordCounts localCounts = (SparseOpinionWordCounts) local[w];
+				int[] table = localCounts.keys[k];
+				if (table != null) {
+					for (int s = 0; s < table.length; s++) {
+						if (table[s] != 0) {
+							addKey(k, table[s], localCounts.values[k][s]);
+						}
+					}
+				}
+			}
+			
+			if (globalKeys != null) {
+				for (int s = 0; s < globalKeys.length; s++) {
+					if (globalKeys[s] != 0) {
+						addKey(k, globalKeys[s], -local.length * globalCounts[s]);
+					}
+				}
+			}
+			
+			for (int w = 0; w < local.length; w++) {
+				copyWord(this, (SparseOpinionWordCounts) local[w], k);
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import java.util.Arrays;
+
+/**
+ * Kernel computing unnormalized log probabilities over all topics, and
+ * sampling from them. The probability of each topic is accumulated in a
+ * log accumulator, or as a product of factors which is flushed into the
+ * log accumulator when it leaves [MIN_PRODUCT, MAX_PRODUCT], so that only
+ * one log is computed per topic most of the time. A kernel holds scratch
+ * arrays and is not thread-safe.
+ * The scalar implementation is always available; the vectorized one
+ * (VectorTopicKernel, in the optional source directory src-vector)
+ * requires the incubator module jdk.incubator.vector and is loaded by
+ * reflection, so that the program still compiles and runs without it.
+ */
+public abstract class TopicKernel {
+	
+	protected static final double MAX_PRODUCT = 1e150;
+	protected static final double MIN_PRODUCT = 1e-150;
+	
+	private static boolean unavailableWarned = false; // whether the unavailability of the vector kernel was reported
+	
+	protected final int T; // number of topics
+	protected final double[] prod; // prod[j]: product of the factors of topic j not yet flushed, size T
+	protected final double[] logAcc; // logAcc[j]: sum of the logs of the flushed factors of topic j, size T
+	protected final double[] weights; // weights[j]: normalized probability of topic j while sampling, size T
+	
+	protected TopicKernel(int T) {
+		this.T = T;
+		prod = new double[T];
+		logAcc = new double[T];
+		weights = new double[T];
+		Arrays.fill(prod, 1.0);
+	}
+	
+	/**
+	 * @return whether kind is a kind of kernel: scalar, vector or auto
+	 */
+	public static boolean isKind(String kind) {
+		return kind.equalsIgnoreCase("scalar") || kind.equalsIgnoreCase("vector") || kind.equalsIgnoreCase("auto");
+	}
+	
+	/**
+	 * Create the kernel of the given kind: scalar, vector, or auto (vector
+	 * if the Vector API is available and the processor has SIMD registers
+	 * of at least 4 doubles, scalar otherwise).
+	 */
+	public static TopicKernel create(int T, String kind) {
+		if (!kind.equalsIgnoreCase("scalar")) {
+			try {
+				Class<?> vectorKernel = Class.forName("vodum.core.VectorTopicKernel");
+				boolean supported = (Boolean) vectorKernel.getMethod("isSupported").invoke(null);
+				if (supported || kind.equalsIgnoreCase("vector")) {
+					return (TopicKernel) vectorKernel.getConstructor(int.class).newInstance(T);
+				}
+			} catch (ReflectiveOperationException e) {
+				// the class was not compiled, or the module is missing at run time
+			} catch (LinkageError e) {
+				// idem
+			}
+			
+			if (kind.equalsIgnoreCase("vector") && !unavailableWarned) {
+				unavailableWarned = true;
+				System.out.println("The vector kernel is not available (compile src-vector and run with --add-modules jdk.incubator.vector), using the scalar kernel!");
+			}
+		}
+		
+		return new ScalarTopicKernel(T);
+	}
+	
+	/**
+	 * @return a short description of the kernel
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Set the probability of every topic to 1.
+	 */
+	public void reset() {
+		Arrays.fill(prod, 1.0);
+		Arrays.fill(logAcc, 0.0);
+	}
+	
+	/**
+	 * Multiply the probability of every topic j by the rising factorial
+	 * (offset + counts[start + j])...(offset + counts[start + j] + count - 1).
+	 */
+	public abstract void multiplyRising(int[] counts, int start, double offset, int count);
+	
+	/**
+	 * Divide the probability of every topic j by the rising factorial
+	 * (offset + counts[start + j])...(offset + counts[start + j] + count - 1).
+	 */
+	public abstract void divideRising(int[] counts, int start, double offset, int count);
+	
+	/**
+	 * Multiply the probability of every topic j by factors[j].
+	 */
+	public abstract void multiply(double[] factors);
+	
+	/**
+	 * Write the log of the probability of every topic j in dest[j].
+	 */
+	public abstract void log(double[] dest);
+	
+	/**
+	 * Draw a topic with probability proportional to exp(logP[j]).
+	 * @param u uniform random number in [0, 1)
+	 */
+	public abstract int sample(double[] logP, double u);
+	
+	/**
+	 * @return log(sum_j exp(logP[j]))
+	 */
+	public abstract double logSumExp(double[] logP);
+	
+	//---------------------------------------------------------------
+	// Scalar implementations with products, on the topics from j0 to T - 1
+	//---------------------------------------------------------------
+	
+	protected void multiplyRising(int[] counts, int start, double offset, int count, int j0) {
+		for (int j = j0; j < T; j++) {
+			double n = offset + counts[start + j];
+			double p = prod[j];
+			for (int t = 0; t < count; t++) {
+				p *= n + t;
+				if (p > MAX_PRODUCT || p < MIN_PRODUCT) {
+					logAcc[j] += Math.log(p);
+					p = 1.0;
+				}
+			}
+			prod[j] = p;
+		}
+	}
+	
+	protected void divideRising(int[] counts, int start, double offset, int count, int j0) {
+		for (int j = j0; j < T; j++) {
+			double n = offset + counts[start + j];
+			double p = prod[j];
+			for (int t = 0; t < count; t++) {
+				p /= n + t;
+				if (p > MAX_PRODUCT || p < MIN_PRODUCT) {
+					logAcc[j] += Math.log(p);
+					p = 1.0;
+				}
+			}
+			prod[j] = p;
+		}
+	}
+	
+	protected void multiply(double[] factors, int j0) {
+		for (int j = j0; j < T; j++) {
+			double p = prod[j] * factors[j];
+			if (p > MAX_PRODUCT || p < MIN_PRODUCT) {
+				logAcc[j] += Math.log(p);
+				p = 1.0;
+			}
+			prod[j] = p;
+		}
+	}
+	
+	protected void log(double[] dest, int j0) {
+		for (int j = j0; j < T; j++) {
+			dest[j] = logAcc[j] + Math.log(prod[j]);
+		}
+	}
+	
+	/**
+	 * Pick the topic of the given weights, whose sum is total, at which
+	 * the cumulated weight exceeds u*total, starting from topic j0 with
+	 * the cumulated weight sum of the previous topics.
+	 */
+	protected int pick(double u, double total, int j0, double sum) {
+		double target = u * total;
+		for (int j = j0; j < T; j++) {
+			sum += weights[j];
+			if (sum > target) {
+				return j;
+			}
+		}
+		
+		// rounding errors
+		return T - 1;
+	}
+}
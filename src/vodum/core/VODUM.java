@@ -70,8 +70,14 @@ public class VODUM {
 			
 			if (option.est) {
 				Estimator estimator = new Estimator();
-				estimator.init(option);
-				estimator.estimate();
+				if (estimator.init(option)) {
+					estimator.estimate();
+				}
+			} else if (option.serve) {
+				ViewpointScorer scorer = ViewpointScorer.load(option.dir, option.modelName, option.niters);
+				if (scorer != null) {
+					new InferenceServer(scorer, option.port, option.maxbatch, option.maxwait, option.nthreads).start();
+				}
 			} else if (option.inf) {
 				Inferencer inferencer = new Inferencer();
 				inferencer.init(option);
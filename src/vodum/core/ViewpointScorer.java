@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+import vodum.utils.Xoshiro256;
+
+/**
+ * Thread-safe scorer of new documents against a trained model, loaded once
+ * and never modified afterwards. Every document is sampled on its own (see
+ * DocumentInferencer) by the calling thread, whose sampler and buffers are
+ * kept in thread-local storage and reused from one call to the next, so
+ * that several threads can score documents concurrently without sharing
+ * any mutable state. The sampling of a document is seeded by its text, so
+ * that a document always gets the same result from the same scorer, whether
+ * it is scored alone or in a batch.
+ */
+public class ViewpointScorer {
+	
+	private final Model trnModel; // trained model, only read
+	private final Dictionary dict; // frozen dictionary of the trained model
+	private final int[] identity; // identity[k] = k, the words of the documents having the ids of the trained model
+	private final int niters; // number of sampling iterations per document
+	private final long seed;
+	
+	private final ThreadLocal<Scratch> scratch; // sampler and buffers of each thread
+	
+	/**
+	 * Result of the scoring of a document.
+	 */
+	public static class Result {
+		
+		public final double[] viewpoints; // viewpoints[i]: probability of viewpoint i, size V
+		public final int viewpoint; // most likely viewpoint
+		public final int[] topics; // topics[m]: topic sampled for sentence m
+		
+		Result(double[] viewpoints, int[] topics) {
+			int best = 0;
+			for (int i = 1; i < viewpoints.length; i++) {
+				if (viewpoints[i] > viewpoints[best]) {
+					best = i;
+				}
+			}
+			
+			this.viewpoints = viewpoints;
+			this.viewpoint = best;
+			this.topics = topics;
+		}
+	}
+	
+	/**
+	 * Buffers used by one thread.
+	 */
+	private class Scratch {
+		final DocumentInferencer sampler = new DocumentInferencer(trnModel, identity);
+		final Corpus.Builder builder = new Corpus.Builder(false);
+		int[] ids = new int[64];
+		int[] pos = new int[64];
+	}
+	
+	/**
+	 * Create a scorer from a trained model (see Model.initEstimatedModel()),
+	 * which must not be modified afterwards.
+	 * @param niters number of sampling iterations per document
+	 * @param seed seed of the random number generators
+	 */
+	public ViewpointScorer(Model trnModel, int niters, long seed) {
+		if (niters < 1) {
+			throw new IllegalArgumentException("The number of iterations must be positive");
+		}
+		
+		this.trnModel = trnModel;
+		this.dict = trnModel.data.localDict;
+		this.niters = niters;
+		this.seed = seed;
+		
+		identity = new int[trnModel.W];
+		for (int k = 0; k < trnModel.W; k++) {
+			identity[k] = k;
+		}
+		
+		scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+	}
+	
+	/**
+	 * Load a trained model and create its scorer.
+	 * @param dir directory of the model
+	 * @param modelName name of the model (e.g., model-01-final)
+	 * @param niters number of sampling iterations per document
+	 * @return the scorer, null if the model cannot be loaded
+	 */
+	public static ViewpointScorer load(String dir, String modelName, int niters) {
+		CmdOption option = new CmdOption();
+		option.dir = dir;
+		option.modelName = modelName;
+		option.niters = niters;
+		
+		Model trnModel = new Model();
+		if (!trnModel.initEstimatedModel(option)) {
+			return null;
+		}
+		
+		return new ViewpointScorer(trnModel, niters, 0);
+	}
+	
+	public int getViewpointCount() {
+		return trnModel.V;
+	}
+	
+	public int getTopicCount() {
+		return trnModel.T;
+	}
+	
+	/**
+	 * Score a document, in the format of the lines of the data files: the
+	 * sentences are separated by |, and the words of a sentence, written
+	 * word:pos with pos 0 (topical word) or 1 (opinion word), by spaces.
+	 * The words that are not in the dictionary of the model are ignored.
+	 * @throws IllegalArgumentException if the document is malformed
+	 */
+	public Result score(String document) {
+		return score(new String[] {document})[0];
+	}
+	
+	/**
+	 * Score a small batch of documents (see score()): the documents are
+	 * sampled one after the other, but share the reads of the opinion word
+	 * counts of the trained model (see DocumentInferencer.sampleAll()), so
+	 * that a batch is faster to score than its documents one at a time.
+	 * @throws IllegalArgumentException if a document is malformed
+	 */
+	public Result[] score(String[] documents) {
+		Scratch buffers = scratch.get();
+		buffers.builder.clear();
+		for (String document : documents) {
+			parse(document, buffers);
+		}
+		Corpus corpus = buffers.builder.build();
+		
+		int[][] topics = new int[documents.length][];
+		double[][] viewpoints = new double[documents.length][trnModel.V];
+		Xoshiro256[] random = new Xoshiro256[documents.length];
+		for (int d = 0; d < documents.length; d++) {
+			topics[d] = new int[corpus.length(d)];
+			
+			// the initial topics are drawn as in the inference of a data file
+			random[d] = new Xoshiro256(seed ^ documents[d].hashCode());
+			for (int m = 0; m < topics[d].length; m++) {
+				topics[d][m] = random[d].nextInt(trnModel.T);
+			}
+		}
+		
+		buffers.sampler.sampleAll(corpus, topics, niters, random, viewpoints);
+		
+		Result[] results = new Result[documents.length];
+		for (int d = 0; d < documents.length; d++) {
+			results[d] = new Result(viewpoints[d], topics[d]);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Parse a document and add it to the corpus being built, whose word
+	 * ids are those of the trained model.
+	 */
+	private void parse(String document, Scratch buffers) {
+		Corpus.Builder builder = buffers.builder;
+		
+		String[] sentences = document.split("[|]"); // each sentence is separated by a |
+		for (String sentence : sentences) {
+			String[] posWords = sentence.split("[ \\t\\n]");
+			if (posWords.length > buffers.ids.length) {
+				buffers.ids = new int[posWords.length];
+				buffers.pos = new int[posWords.length];
+			}
+			
+			int length = 0;
+			for (String posWord : posWords) {
+				if (posWord.isEmpty()) {
+					continue;
+				}
+				
+				int separator = posWord.lastIndexOf(':');
+				if (separator < 0) {
+					throw new IllegalArgumentException("Word without part-of-speech category: " + posWord);
+				}
+				int _pos;
+				try {
+					_pos = Integer.parseInt(posWord.substring(separator + 1));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid part-of-speech category: " + posWord);
+				}
+				if (_pos != 0 && _pos != 1) {
+					throw new IllegalArgumentException("Invalid part-of-speech category: " + posWord);
+				}
+				
+				// the words that are not in the dictionary are not considered
+				Integer id = dict.getID(posWord.substring(0, separator));
+				if (id != null) {
+					buffers.ids[length] = id;
+					buffers.pos[length] = _pos;
+					length++;
+				}
+			}
+			
+			builder.addSentence(buffers.ids, buffers.pos, length, null);
+		}
+		builder.endDocument(null);
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+/**
+ * Topical and opinion word distributions (phi0 and phi1) of a model,
+ * computed from its count variables when they are read instead of being
+ * stored: phi0 is a T x W matrix and phi1 a V x T x W one, which would
+ * otherwise be held in memory for the sole purpose of being saved. The
+ * counts of the model must not change while the distributions are read.
+ * For inference, the counts of the training model are added to those of
+ * the new model. An instance is not thread-safe, except for the methods
+ * reading the counts.
+ */
+public class WordDistributions {
+	
+	private final Model model;
+	private final Model prior; // training model whose counts are added to those of the model (inference), null if there is none
+	private final int[] priorIds; // priorIds[k]: id in the prior model of word k of the model, -1 if it has none
+	private final int T;
+	private final int W;
+	
+	private final double[] topicalDenominators; // topicalDenominators[j]: denominator of phi0 for topic j, size T
+	private final double[][] opinionDenominators; // opinionDenominators[i][j]: denominator of phi1 for viewpoint i and topic j, size V x T
+	
+	private final int[] counts; // counts of a word for every topic, size T (scratch of the column methods)
+	private final int[] priorCounts; // counts of the same word in the prior model, size T (idem)
+	
+	/**
+	 * Word distributions of an estimated model.
+	 */
+	public WordDistributions(Model model) {
+		this(model, null);
+	}
+	
+	/**
+	 * Word distributions of a model whose counts are added to those of a
+	 * prior model.
+	 * @param model model whose words index the distributions
+	 * @param prior training model (for inference), null if there is none
+	 */
+	public WordDistributions(Model model, Model prior) {
+		this.model = model;
+		this.prior = prior;
+		this.T = model.T;
+		this.W = model.W;
+		
+		priorIds = (prior != null ? new int[W] : null);
+		if (prior != null) {
+			for (int k = 0; k < W; k++) {
+				Integer id = model.data.lid2gid.get(k);
+				priorIds[k] = (id != null ? id : -1);
+			}
+		}
+		
+		// the sizes of the vocabularies are those of the prior model
+		int W0 = (prior != null ? prior.W0 : model.W0);
+		int W1 = (prior != null ? prior.W1 : model.W1);
+		
+		topicalDenominators = new double[T];
+		for (int j = 0; j < T; j++) {
+			int sum = model.n0zwsum[j] + (prior != null ? prior.n0zwsum[j] : 0);
+			topicalDenominators[j] = sum + W0*model.beta0;
+		}
+		
+		opinionDenominators = new double[model.V][T];
+		for (int i = 0; i < model.V; i++) {
+			for (int j = 0; j < T; j++) {
+				int sum = model.n1vzwsum[i][j] + (prior != null ? prior.n1vzwsum[i][j] : 0);
+				opinionDenominators[i][j] = sum + W1*model.beta1;
+			}
+		}
+		
+		counts = new int[T];
+		priorCounts = new int[T];
+	}
+	
+	/**
+	 * Copy phi0[j][k] into dest[k], for every word k.
+	 */
+	public void getTopicalRow(int j, double[] dest) {
+		for (int k = 0; k < W; k++) {
+			int priorId = (prior != null ? priorIds[k] : k);
+			if (priorId < 0 || !isTopical(k, priorId)) {
+				dest[k] = 0;
+				continue;
+			}
+			
+			int count = model.n0zw[k*T + j] + (prior != null ? prior.n0zw[priorId*T + j] : 0);
+			dest[k] = (count + model.beta0)/topicalDenominators[j];
+		}
+	}
+	
+	/**
+	 * Copy phi1[i][j][k] into dest[k], for every word k.
+	 */
+	public void getOpinionRow(int i, int j, double[] dest) {
+		for (int k = 0; k < W; k++) {
+			int priorId = (prior != null ? priorIds[k] : k);
+			if (priorId < 0 || !isOpinion(k, priorId)) {
+				dest[k] = 0;
+				continue;
+			}
+			
+			int count = model.n1vzw.get(i, j, k) + (prior != null ? prior.n1vzw.get(i, j, priorId) : 0);
+			dest[k] = (count + model.beta1)/opinionDenominators[i][j];
+		}
+	}
+	
+	/**
+	 * Copy phi0[j][k] into dest[j], for every topic j.
+	 */
+	public void getTopicalColumn(int k, double[] dest) {
+		if (!getTopicalCounts(k, counts)) {
+			for (int j = 0; j < T; j++) {
+				dest[j] = 0;
+			}
+			return;
+		}
+		
+		for (int j = 0; j < T; j++) {
+			dest[j] = (counts[j] + model.beta0)/topicalDenominators[j];
+		}
+	}
+	
+	/**
+	 * Copy phi1[i][j][k] into dest[j], for every topic j.
+	 */
+	public void getOpinionColumn(int i, int k, double[] dest) {
+		if (!getOpinionCounts(i, k, counts, priorCounts)) {
+			for (int j = 0; j < T; j++) {
+				dest[j] = 0;
+			}
+			return;
+		}
+		
+		for (int j = 0; j < T; j++) {
+			dest[j] = (counts[j] + model.beta1)/opinionDenominators[i][j];
+		}
+	}
+	
+	/**
+	 * Copy into dest[j] the number of instances of topical word k assigned
+	 * to topic j, in the model and in the prior model, for every topic j:
+	 * phi0[j][k] = (dest[j] + beta0)/getTopicalDenominator(j). This method
+	 * is thread-safe.
+	 * @return false if phi0[j][k] = 0 for every topic j (dest is then left
+	 * unchanged)
+	 */
+	public boolean getTopicalCounts(int k, int[] dest) {
+		int priorId = (prior != null ? priorIds[k] : k);
+		if (priorId < 0 || !isTopical(k, priorId)) {
+			return false;
+		}
+		
+		for (int j = 0; j < T; j++) {
+			dest[j] = model.n0zw[k*T + j] + (prior != null ? prior.n0zw[priorId*T + j] : 0);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Copy into dest[j] the number of instances of opinion word k assigned
+	 * to viewpoint i and topic j, in the model and in the prior model, for
+	 * every topic j: phi1[i][j][k] = (dest[j] + beta1)/getOpinionDenominator(i, j).
+	 * This method is thread-safe.
+	 * @param scratch array of size T used for the counts of the prior model
+	 * @return false if phi1[i][j][k] = 0 for every topic j (dest is then
+	 * left unchanged)
+	 */
+	public boolean getOpinionCounts(int i, int k, int[] dest, int[] scratch) {
+		int priorId = (prior != null ? priorIds[k] : k);
+		if (priorId < 0 || !isOpinion(k, priorId)) {
+			return false;
+		}
+		
+		model.n1vzw.getTopics(i, k, dest);
+		if (prior != null) {
+			prior.n1vzw.getTopics(i, priorId, scratch);
+			for (int j = 0; j < T; j++) {
+				dest[j] += scratch[j];
+			}
+		}
+		
+		return true;
+	}
+	
+	public double getTopicalDenominator(int j) {
+		return topicalDenominators[j];
+	}
+	
+	public double getOpinionDenominator(int i, int j) {
+		return opinionDenominators[i][j];
+	}
+	
+	/**
+	 * @return whether word k occurs as a topical word in the dataset of the
+	 * model, or in that of the prior model
+	 */
+	private boolean isTopical(int k, int priorId) {
+		return model.data.topicalWords.get(k) || (prior != null && prior.data.topicalWords.get(priorId));
+	}
+	
+	private boolean isOpinion(int k, int priorId) {
+		return model.data.opinionWords.get(k) || (prior != null && prior.data.opinionWords.get(priorId));
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.core;
+
+/**
+ * Occurrences of the topical words in the sentences of a dataset, grouped
+ * by word. Drawing an occurrence of a word and reading the topic of its
+ * sentence samples a topic in proportion to the word-topic counts, in
+ * constant time.
+ */
+public class WordOccurrenceIndex {
+	
+	private final int[] start; // start[k]: index of the first occurrence of topical word k, size W + 1
+	private final int[] docs; // docs[o]: document of occurrence o
+	private final int[] sentences; // sentences[o]: index in its document of the sentence of occurrence o
+	
+	public WordOccurrenceIndex(Dataset data) {
+		Corpus corpus = data.corpus;
+		start = new int[data.W + 1];
+		
+		for (int x = 0; x < corpus.n0Words.length; x++) {
+			start[corpus.n0Words[x] + 1] += corpus.n0Counts[x];
+		}
+		for (int k = 0; k < data.W; k++) {
+			start[k + 1] += start[k];
+		}
+		
+		docs = new int[start[data.W]];
+		sentences = new int[start[data.W]];
+		int[] next = new int[data.W];
+		System.arraycopy(start, 0, next, 0, data.W);
+		
+		for (int d = 0; d < data.D; d++) {
+			for (int m = 0; m < corpus.length(d); m++) {
+				int s = corpus.sentence(d, m);
+				for (int x = corpus.n0Start[s]; x < corpus.n0Start[s + 1]; x++) {
+					int k = corpus.n0Words[x];
+					for (int c = 0; c < corpus.n0Counts[x]; c++) {
+						docs[next[k]] = d;
+						sentences[next[k]] = m;
+						next[k]++;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of occurrences of topical word k
+	 */
+	public int count(int k) {
+		return start[k + 1] - start[k];
+	}
+	
+	/**
+	 * @return the document of the o-th occurrence of topical word k
+	 */
+	public int doc(int k, int o) {
+		return docs[start[k] + o];
+	}
+	
+	/**
+	 * @return the index in its document of the sentence of the o-th
+	 * occurrence of topical word k
+	 */
+	public int sentence(int k, int o) {
+		return sentences[start[k] + o];
+	}
+}
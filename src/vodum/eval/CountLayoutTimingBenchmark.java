@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.eval;
+
+import java.util.Random;
+
+/**
+ * Timing micro-benchmark of the access pattern of the topic sampling on the
+ * word-topic counts: for every distinct word of a sentence, the counts of
+ * the word are read for all the topics. The counts are stored either in
+ * the former topic-major jagged layout (counts[j][k]) or in the word-major
+ * flat layout (counts[k*T + j]), and the mean time per count read is
+ * printed for each layout. The benchmark only measures time: the cache
+ * misses themselves are not counted.
+ * 
+ * Usage: CountLayoutTimingBenchmark jagged|flat|both [ntopics] [nwords] [nsentences]
+ */
+public class CountLayoutTimingBenchmark {
+	
+	private static final int SENTENCE_LENGTH = 10; // number of distinct words per sentence
+	private static final int ROUNDS = 5; // number of timed rounds, after a warm-up round
+	
+	private final int T; // number of topics
+	private final int W; // vocabulary size
+	private final int[][] sentences; // sentences[m]: distinct words of sentence m
+	
+	private final int[][] jagged; // jagged[j][k]: count of word k for topic j, size T x W
+	private final int[] flat; // flat[k*T + j]: count of word k for topic j, size W x T
+	
+	/**
+	 * Create random sentences and counts, stored only in the layouts that
+	 * are benchmarked so that the other one does not add cache misses.
+	 */
+	public CountLayoutTimingBenchmark(int T, int W, int nsentences, boolean withJagged, boolean withFlat) {
+		this.T = T;
+		this.W = W;
+		
+		Random random = new Random(1);
+		
+		// draw the words from a Zipf-like distribution, as in natural language
+		sentences = new int[nsentences][SENTENCE_LENGTH];
+		for (int m = 0; m < nsentences; m++) {
+			for (int x = 0; x < SENTENCE_LENGTH; x++) {
+				sentences[m][x] = (int) Math.min(W - 1, Math.exp(random.nextDouble() * Math.log(W)) - 1);
+			}
+		}
+		
+		jagged = withJagged ? new int[T][W] : null;
+		flat = withFlat ? new int[W * T] : null;
+		for (int j = 0; j < T; j++) {
+			for (int k = 0; k < W; k++) {
+				int count = random.nextInt(100);
+				if (withJagged) {
+					jagged[j][k] = count;
+				}
+				if (withFlat) {
+					flat[k*T + j] = count;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read the counts of every sentence with the jagged layout.
+	 */
+	public long sumJagged(double[] score) {
+		long sum = 0;
+		for (int[] sentence : sentences) {
+			for (int j = 0; j < T; j++) {
+				int[] row = jagged[j];
+				for (int x = 0; x < sentence.length; x++) {
+					score[j] += row[sentence[x]];
+				}
+			}
+			sum += (long) score[T - 1];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Read the counts of every sentence with the flat layout.
+	 */
+	public long sumFlat(double[] score) {
+		long sum = 0;
+		for (int[] sentence : sentences) {
+			for (int x = 0; x < sentence.length; x++) {
+				int offset = sentence[x]*T;
+				for (int j = 0; j < T; j++) {
+					score[j] += flat[offset + j];
+				}
+			}
+			sum += (long) score[T - 1];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Time the given layout and print the mean time per count read.
+	 */
+	public void run(boolean useFlat) {
+		double[] score = new double[T];
+		long reads = (long) sentences.length * SENTENCE_LENGTH * T;
+		long check = 0;
+		long time = 0;
+		
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			check += useFlat ? sumFlat(score) : sumJagged(score);
+			if (round > 0) {
+				time += System.nanoTime() - start;
+			}
+		}
+		
+		System.out.println((useFlat ? "flat:   " : "jagged: ") + ((double) time / ROUNDS / reads) + " ns per count (checksum " + check + ")");
+	}
+	
+	public static void main(String[] args) {
+		String layout = args.length > 0 ? args[0] : "both";
+		int T = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int W = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+		int nsentences = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+		
+		System.out.println("T=" + T + ", W=" + W + ", " + nsentences + " sentences");
+		
+		boolean withJagged = !layout.equals("flat");
+		boolean withFlat = !layout.equals("jagged");
+		
+		CountLayoutTimingBenchmark benchmark = new CountLayoutTimingBenchmark(T, W, nsentences, withJagged, withFlat);
+		if (withJagged) {
+			benchmark.run(false);
+		}
+		if (withFlat) {
+			benchmark.run(true);
+		}
+	}
+}
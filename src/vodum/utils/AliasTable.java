@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.utils;
+
+/**
+ * Alias table (Walker, Vose) of a discrete distribution over n outcomes,
+ * giving samples in constant time once built in O(n) time. The table keeps
+ * the weights it was built with, so that a sampler using it as a stale
+ * proposal can compute the proposal probabilities.
+ */
+public class AliasTable {
+	
+	private final int n;
+	private final double[] weights; // weights[j]: unnormalized probability of outcome j at the last build
+	private final double[] prob; // prob[j]: probability of keeping outcome j when bucket j is drawn
+	private final int[] alias; // alias[j]: outcome drawn when bucket j is drawn and j is not kept
+	private final int[] small; // buckets of probability lower than 1/n, used during build
+	private final int[] large; // buckets of probability at least 1/n, used during build
+	
+	public AliasTable(int n) {
+		this.n = n;
+		weights = new double[n];
+		prob = new double[n];
+		alias = new int[n];
+		small = new int[n];
+		large = new int[n];
+	}
+	
+	/**
+	 * Build the table of the distribution proportional to the given
+	 * positive weights.
+	 */
+	public void build(double[] w) {
+		double sum = 0;
+		for (int j = 0; j < n; j++) {
+			weights[j] = w[j];
+			sum += w[j];
+		}
+		
+		int nsmall = 0;
+		int nlarge = 0;
+		for (int j = 0; j < n; j++) {
+			prob[j] = w[j] * n / sum;
+			if (prob[j] < 1.0) {
+				small[nsmall++] = j;
+			} else {
+				large[nlarge++] = j;
+			}
+		}
+		
+		while (nsmall > 0 && nlarge > 0) {
+			int s = small[--nsmall];
+			int l = large[--nlarge];
+			alias[s] = l;
+			prob[l] -= 1.0 - prob[s];
+			if (prob[l] < 1.0) {
+				small[nsmall++] = l;
+			} else {
+				large[nlarge++] = l;
+			}
+		}
+		
+		// the remaining buckets are full, up to rounding errors
+		while (nlarge > 0) {
+			prob[large[--nlarge]] = 1.0;
+		}
+		while (nsmall > 0) {
+			prob[small[--nsmall]] = 1.0;
+		}
+	}
+	
+	/**
+	 * @return an outcome drawn from the distribution
+	 */
+	public int sample(Xoshiro256 random) {
+		int j = random.nextInt(n);
+		return (random.nextDouble() < prob[j] ? j : alias[j]);
+	}
+	
+	/**
+	 * @return the unnormalized probability of outcome j given at the last build
+	 */
+	public double weight(int j) {
+		return weights[j];
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.utils;
+
+/**
+ * Table of the values log(offset + n) for a fixed offset (typically a
+ * Dirichlet hyperparameter) and for integers n (typically counts) below a
+ * fixed size; beyond it, the values are computed directly. Unlike
+ * LogGammaCache, the table is filled once and never changes, so that it
+ * can be read by several threads.
+ */
+public class LogCache {
+	
+	private final double offset;
+	private final double[] values; // values[n] = log(offset + n)
+	
+	/**
+	 * @param offset the positive offset added to every count
+	 * @param size the number of cached values
+	 */
+	public LogCache(double offset, int size) {
+		this.offset = offset;
+		values = new double[size];
+		for (int n = 0; n < size; n++) {
+			values[n] = Math.log(offset + n);
+		}
+	}
+	
+	/**
+	 * @return the double log(offset + n)
+	 */
+	public double log(int n) {
+		if (n < values.length) {
+			return values[n];
+		}
+		
+		return Math.log(offset + n);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.utils;
+
+/**
+ * Cache of the values log(gamma(offset + n)) for a fixed offset (typically
+ * a Dirichlet hyperparameter) and for integers n (typically counts).
+ * The cache grows on demand up to a maximal size; beyond it, the values
+ * are computed directly. A cache is not thread-safe.
+ */
+public class LogGammaCache {
+	
+	private static final int INITIAL_SIZE = 1024;
+	
+	private final double offset;
+	private final int maxSize;
+	private double[] values; // values[n] = log(gamma(offset + n))
+	
+	/**
+	 * @param offset the positive offset added to every count
+	 * @param maxSize the maximal number of cached values
+	 */
+	public LogGammaCache(double offset, int maxSize) {
+		this.offset = offset;
+		this.maxSize = maxSize;
+		values = new double[0];
+		grow(Math.min(INITIAL_SIZE, maxSize));
+	}
+	
+	/**
+	 * @return the double log(gamma(offset + n))
+	 */
+	public double logGamma(int n) {
+		if (n < values.length) {
+			return values[n];
+		}
+		
+		if (n < maxSize) {
+			grow(Math.min(Math.max(2*values.length, n + 1), maxSize));
+			return values[n];
+		}
+		
+		return Utils.logGamma(offset + n);
+	}
+	
+	/**
+	 * Compute the log of the rising factorial
+	 * (offset + n)(offset + n + 1)...(offset + n + count - 1),
+	 * i.e., log(gamma(offset + n + count)) - log(gamma(offset + n)).
+	 */
+	public double logRising(int n, int count) {
+		if (n + count < maxSize) {
+			return logGamma(n + count) - logGamma(n);
+		}
+		
+		// cached values are computed by recurrence: do not mix them with
+		// directly computed values
+		return Utils.logGamma(offset + n + count) - Utils.logGamma(offset + n);
+	}
+	
+	private void grow(int size) {
+		double[] newValues = new double[size];
+		System.arraycopy(values, 0, newValues, 0, values.length);
+		
+		for (int n = values.length; n < size; n++) {
+			// log(gamma(x + 1)) = log(gamma(x)) + log(x)
+			newValues[n] = (n == 0 ? Utils.logGamma(offset) : newValues[n - 1] + Math.log(offset + n - 1));
+		}
+		
+		values = newValues;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.utils;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered writer of numbers as ASCII text, in the format of
+ * Double.toString. The characters are copied straight
+ * into a byte buffer, without the string concatenations and the charset
+ * encoder of a Writer.
+ */
+public class NumberWriter implements Closeable {
+	
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_NUMBER_LENGTH = 32; // the output of Double.toString is at most 24 characters long
+	
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position;
+	
+	public NumberWriter(String filename) throws IOException {
+		this(new FileOutputStream(filename));
+	}
+	
+	public NumberWriter(OutputStream out) {
+		this.out = out;
+		this.buffer = new byte[BUFFER_SIZE];
+		this.position = 0;
+	}
+	
+	public void write(double x) throws IOException {
+		if (position + MAX_NUMBER_LENGTH > buffer.length) {
+			flushBuffer();
+		}
+		
+		if (Double.doubleToRawLongBits(x) == 0) {
+			// zero probabilities fill most of the word distributions
+			buffer[position++] = '0';
+			buffer[position++] = '.';
+			buffer[position++] = '0';
+			return;
+		}
+		
+		String s = Double.toString(x);
+		for (int n = 0; n < s.length(); n++) {
+			buffer[position++] = (byte)s.charAt(n);
+		}
+	}
+	
+	/**
+	 * Write an ASCII character.
+	 */
+	public void write(char c) throws IOException {
+		if (position == buffer.length) {
+			flushBuffer();
+		}
+		buffer[position++] = (byte)c;
+	}
+	
+	/**
+	 * Write an ASCII string.
+	 */
+	public void write(String s) throws IOException {
+		for (int n = 0; n < s.length(); n++) {
+			write(s.charAt(n));
+		}
+	}
+	
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+	
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -91,4 +91,31 @@ public class Utils {
 		
 		return yMax + Math.log(logArg);
 	}
+	
+	/**
+	 * Compute the log of the gamma function with Stirling's series, shifting
+	 * the argument with the recurrence gamma(x + 1) = x*gamma(x) when it is
+	 * small. The absolute error is below 1e-12 for all x > 0.
+	 * 
+	 * @param x a positive double
+	 * @return the double log(gamma(x))
+	 */
+	public static double logGamma(double x) {
+		double shift = 0;
+		if (x < 7) {
+			double product = 1;
+			while (x < 7) {
+				product *= x;
+				x++;
+			}
+			shift = Math.log(product);
+		}
+		
+		double x2 = 1/(x*x);
+		double series = (1.0/12 - x2*(1.0/360 - x2*(1.0/1260 - x2*(1.0/1680 - x2*(1.0/1188)))))/x;
+		
+		return (x - 0.5)*Math.log(x) - x + HALF_LOG_TWO_PI + series - shift;
+	}
+	
+	private static final double HALF_LOG_TWO_PI = 0.5*Math.log(2*Math.PI);
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 by
+ * 
+ *  Thibaut Thonet
+ *  thibaut.thonet@irit.fr
+ *  Institut de Recherche en Informatique de Toulouse (IRIT)
+ *  University of Toulouse, Toulouse
+ * 
+ * This file is part of VODUM.
+ *
+ * VODUM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VODUM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VODUM. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package vodum.utils;
+
+/**
+ * Fast pseudo-random number generator xoshiro256** (Blackman and Vigna).
+ * A generator is not thread-safe: every sampler owns its generator, and
+ * independent streams for other samplers are obtained with split() or
+ * with the jump functions, which skip 2^128 or 2^192 draws.
+ * The state of a generator can be exported and restored.
+ */
+public class Xoshiro256 {
+	
+	private static final long[] JUMP = {
+		0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL, 0xa9582618e03fc9aaL, 0x39abdc4529b1661cL
+	};
+	private static final long[] LONG_JUMP = {
+		0x76e15d3efefdcbbfL, 0xc5004e441c522fb3L, 0x77710069854ee241L, 0x39109bb02acbe635L
+	};
+	
+	private long s0, s1, s2, s3; // state, never all zero
+	
+	/**
+	 * Create a generator whose state is expanded from the seed with
+	 * splitmix64, so that close seeds give unrelated streams.
+	 */
+	public Xoshiro256(long seed) {
+		long x = seed;
+		s0 = splitMix64(x += 0x9e3779b97f4a7c15L);
+		s1 = splitMix64(x += 0x9e3779b97f4a7c15L);
+		s2 = splitMix64(x += 0x9e3779b97f4a7c15L);
+		s3 = splitMix64(x += 0x9e3779b97f4a7c15L);
+	}
+	
+	/**
+	 * Create a generator with the given state (see getState()).
+	 */
+	public Xoshiro256(long[] state) {
+		setState(state);
+	}
+	
+	private static long splitMix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * @return a non-zero int seed drawn from the clock, to be printed so
+	 * that the run can be reproduced
+	 */
+	public static int randomSeed() {
+		int seed = (int) splitMix64(System.nanoTime() ^ System.currentTimeMillis());
+		return (seed != 0 ? seed : 1);
+	}
+	
+	public long nextLong() {
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		
+		return result;
+	}
+	
+	/**
+	 * @return a double uniformly distributed in [0, 1)
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+	
+	/**
+	 * @return an int uniformly distributed in [0, bound)
+	 */
+	public int nextInt(int bound) {
+		// multiply-shift with rejection of the biased values (Lemire)
+		long m = (nextLong() >>> 32) * bound;
+		if ((m & 0xffffffffL) < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			while ((m & 0xffffffffL) < threshold) {
+				m = (nextLong() >>> 32) * bound;
+			}
+		}
+		
+		return (int) (m >>> 32);
+	}
+	
+	/**
+	 * Advance the generator by 2^128 draws.
+	 */
+	public void jump() {
+		jump(JUMP);
+	}
+	
+	/**
+	 * Advance the generator by 2^192 draws.
+	 */
+	public void longJump() {
+		jump(LONG_JUMP);
+	}
+	
+	private void jump(long[] polynomial) {
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		for (long word : polynomial) {
+			for (int b = 0; b < 64; b++) {
+				if ((word & (1L << b)) != 0) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				nextLong();
+			}
+		}
+		
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+	}
+	
+	/**
+	 * @return a new generator that continues the stream of this generator,
+	 * which jumps 2^128 draws ahead so that the two streams do not overlap
+	 */
+	public Xoshiro256 split() {
+		Xoshiro256 copy = new Xoshiro256(getState());
+		jump();
+		
+		return copy;
+	}
+	
+	/**
+	 * @return a copy of the state of the generator
+	 */
+	public long[] getState() {
+		return new long[] {s0, s1, s2, s3};
+	}
+	
+	public void setState(long[] state) {
+		if ((state[0] | state[1] | state[2] | state[3]) == 0) {
+			throw new IllegalArgumentException("The state of the generator cannot be all zero");
+		}
+		s0 = state[0];
+		s1 = state[1];
+		s2 = state[2];
+		s3 = state[3];
+	}
+}